@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Compares the provider's weather writes, which bind every row to compiled statements, with
+    the way they used to be done: SQLiteDatabase.query, insert and update, and
+    WeatherContract.normalizeDate, for every row.  Both sides run on the same database inside
+    one transaction, without the display rows or notifications the provider adds around them,
+    so only the statements are timed.  The rows per second of each are logged for a
+    sync-sized batch, a large one and a very large one.
+ */
+public class TestBulkInsertBenchmark extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestBulkInsertBenchmark.class.getSimpleName();
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    // Very large batches go in as several bulk inserts, so the rows fit in memory
+    private static final int MAX_BATCH = 10000;
+    // December 20th, 2014, in milliseconds this time
+    private static final long NORMALIZER_START_DATE = 1419033600000L;
+
+    private long mLocationRowId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        mLocationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    // The normalizer has to agree with normalizeDate, including across daylight saving changes
+    public void testDateNormalizerMatchesContract() {
+        DateNormalizer normalizer = new DateNormalizer();
+        long date = NORMALIZER_START_DATE;
+        // Every 7 hours for two years lands on every hour of the day, both sides of each change
+        for (int i = 0; i < 2 * 365 * 24 / 7; i++, date += 7 * 60 * 60 * 1000) {
+            assertEquals("Error: normalizing " + date, WeatherContract.normalizeDate(date),
+                    normalizer.normalize(date));
+        }
+    }
+
+    public void testBulkInsertStoresEveryRow() {
+        ContentValues[] values = TestProvider.createBulkInsertWeatherValues(mLocationRowId);
+        int inserted = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+        assertEquals(values.length, inserted);
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(values.length, cursor.getCount());
+        cursor.moveToFirst();
+        for (int i = 0; i < values.length; i++, cursor.moveToNext()) {
+            // The provider doesn't touch the values it's given, so normalize our copy
+            values[i].put(WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(
+                    values[i].getAsLong(WeatherEntry.COLUMN_DATE)));
+            TestUtilities.validateCurrentRecord("Error validating row " + i, cursor, values[i]);
+        }
+        cursor.close();
+    }
+
+    // A row without some of the columns leaves them as they are, rather than nulling them
+    public void testUpsertKeepsMissingColumns() {
+        ContentValues[] values = createRows(0, 2);
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        try {
+            assertEquals(2, upsert(db, values, true));
+            assertEquals("Error: unchanged rows should not be written",
+                    0, upsert(db, createRows(0, 2), true));
+
+            ContentValues partial = new ContentValues();
+            partial.put(WeatherEntry.COLUMN_LOC_KEY, mLocationRowId);
+            partial.put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE);
+            partial.put(WeatherEntry.COLUMN_MAX_TEMP, 99);
+            assertEquals(1, upsert(db, new ContentValues[]{partial}, true));
+        } finally {
+            db.close();
+        }
+
+        values[0].put(WeatherEntry.COLUMN_MAX_TEMP, 99);
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(2, cursor.getCount());
+        cursor.moveToFirst();
+        for (int i = 0; i < values.length; i++, cursor.moveToNext()) {
+            values[i].put(WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(
+                    values[i].getAsLong(WeatherEntry.COLUMN_DATE)));
+            TestUtilities.validateCurrentRecord("Error validating row " + i, cursor, values[i]);
+        }
+        cursor.close();
+    }
+
+    public void testBulkInsertThroughput() {
+        for (int rows : new int[]{14, 1000, 100000}) {
+            double legacy = rowsPerSecond(rows, Pass.INSERT, false);
+            double compiled = rowsPerSecond(rows, Pass.INSERT, true);
+            Log.i(LOG_TAG, String.format("%d rows: %.0f rows/s with insert, %.0f rows/s compiled",
+                    rows, legacy, compiled));
+        }
+    }
+
+    // The upsert the sync writes through, for days that are new, the same and changed
+    public void testUpsertThroughput() {
+        for (int rows : new int[]{14, 1000, 100000}) {
+            for (Pass pass : new Pass[]{Pass.NEW, Pass.UNCHANGED, Pass.CHANGED}) {
+                double legacy = rowsPerSecond(rows, pass, false);
+                double compiled = rowsPerSecond(rows, pass, true);
+                Log.i(LOG_TAG, String.format(
+                        "%d %s rows: %.0f rows/s with query, %.0f rows/s compiled",
+                        rows, pass, legacy, compiled));
+            }
+        }
+    }
+
+    private enum Pass {
+        // Plain inserts
+        INSERT,
+        // Upserts into an empty table, then of the same rows, then of every row changed
+        NEW,
+        UNCHANGED,
+        CHANGED
+    }
+
+    private double rowsPerSecond(int rows, Pass pass, boolean compiled) {
+        deleteWeather();
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        long elapsed = 0;
+        try {
+            for (int start = 0; start < rows; start += MAX_BATCH) {
+                int count = Math.min(MAX_BATCH, rows - start);
+                if (pass != Pass.INSERT && pass != Pass.NEW) {
+                    // What the earlier pass left, written the same way each time
+                    upsert(db, createRows(start, count), true);
+                }
+                ContentValues[] values = createRows(start, count);
+                if (pass == Pass.CHANGED) {
+                    for (ContentValues value : values) {
+                        value.put(WeatherEntry.COLUMN_MAX_TEMP, 99);
+                    }
+                }
+                long begin = SystemClock.elapsedRealtime();
+                int written = pass == Pass.INSERT
+                        ? insert(db, values, compiled)
+                        : upsert(db, values, compiled);
+                elapsed += SystemClock.elapsedRealtime() - begin;
+                assertEquals(pass == Pass.UNCHANGED ? 0 : values.length, written);
+            }
+        } finally {
+            db.close();
+        }
+        return rows * 1000.0 / Math.max(elapsed, 1);
+    }
+
+    private static int insert(SQLiteDatabase db, ContentValues[] values, boolean compiled) {
+        db.beginTransaction();
+        try {
+            int returnCount = compiled
+                    ? WeatherProvider.insertWeatherRows(db, values)
+                    : legacyInsertRows(db, values);
+            db.setTransactionSuccessful();
+            return returnCount;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static int upsert(SQLiteDatabase db, ContentValues[] values, boolean compiled) {
+        db.beginTransaction();
+        try {
+            int changed = compiled
+                    ? WeatherProvider.upsertWeatherRows(db, values,
+                            new long[values.length], new long[values.length])
+                    : legacyUpsertRows(db, values);
+            db.setTransactionSuccessful();
+            return changed;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // What WeatherProvider.bulkInsert did before it compiled its statement
+    private static int legacyInsertRows(SQLiteDatabase db, ContentValues[] values) {
+        int returnCount = 0;
+        for (ContentValues value : values) {
+            value.put(WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(
+                    value.getAsLong(WeatherEntry.COLUMN_DATE)));
+            long _id = db.insert(WeatherEntry.TABLE_NAME, null, value);
+            if (_id != -1) {
+                returnCount++;
+            }
+        }
+        return returnCount;
+    }
+
+    // What WeatherProvider.upsertWeatherRows did before it compiled its statements
+    private static int legacyUpsertRows(SQLiteDatabase db, ContentValues[] values) {
+        int changed = 0;
+        for (ContentValues value : values) {
+            value.put(WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(
+                    value.getAsLong(WeatherEntry.COLUMN_DATE)));
+            Cursor cursor = db.query(WeatherEntry.TABLE_NAME, null,
+                    WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " = ? ",
+                    new String[]{value.getAsString(WeatherEntry.COLUMN_LOC_KEY),
+                            value.getAsString(WeatherEntry.COLUMN_DATE)},
+                    null, null, null);
+            try {
+                if (!cursor.moveToFirst()) {
+                    if (db.insert(WeatherEntry.TABLE_NAME, null, value) == -1) {
+                        continue;
+                    }
+                } else if (isSameRow(cursor, value)) {
+                    continue;
+                } else {
+                    db.update(WeatherEntry.TABLE_NAME, value, WeatherEntry._ID + " = ?",
+                            new String[]{cursor.getString(
+                                    cursor.getColumnIndex(WeatherEntry._ID))});
+                }
+            } finally {
+                cursor.close();
+            }
+            changed++;
+        }
+        return changed;
+    }
+
+    private static boolean isSameRow(Cursor cursor, ContentValues values) {
+        for (String column : values.keySet()) {
+            int index = cursor.getColumnIndex(column);
+            Object value = values.get(column);
+            if (value instanceof Number) {
+                if (((Number) value).doubleValue() != cursor.getDouble(index)) {
+                    return false;
+                }
+            } else if (!String.valueOf(value).equals(cursor.getString(index))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // One row a day, so none of them replace each other
+    private ContentValues[] createRows(int first, int count) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            ContentValues weatherValues = TestUtilities.createWeatherValues(mLocationRowId);
+            weatherValues.put(WeatherEntry.COLUMN_DATE,
+                    TestUtilities.TEST_DATE + (first + i) * DAY_IN_MILLIS);
+            values[i] = weatherValues;
+        }
+        return values;
+    }
+
+    private void deleteWeather() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+    }
+
+    private void deleteAll() {
+        deleteWeather();
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Checks that with write-ahead logging the provider's readers don't wait for a sync's write
+    transaction, and measures how long their queries take while several writers are busy.
+ */
+public class TestConcurrentAccess extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestConcurrentAccess.class.getSimpleName();
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    private static final int WRITERS = 2;
+    private static final int READERS = 4;
+    private static final int BATCHES_PER_WRITER = 10;
+    private static final int ROWS_PER_BATCH = 1000;
+    // How long a read may take while a transaction is open, before we call it blocked
+    private static final long MAX_BLOCKED_READ_MILLIS = 1000;
+
+    private long mLocationRowId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        mLocationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    public void testWriteAheadLoggingIsOn() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        assertEquals("Error: weather.db should use write-ahead logging", "wal",
+                DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null).toLowerCase());
+        db.close();
+    }
+
+    public void testReadsProceedDuringWriteTransaction() throws InterruptedException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        final ContentValues[] committed =
+                TestProvider.createBulkInsertWeatherValues(mLocationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, committed);
+
+        // Another connection opens a transaction, writes a lot to it and holds it open
+        final CountDownLatch written = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    for (ContentValues values : createRows(committed.length, 10 * ROWS_PER_BATCH)) {
+                        db.insert(WeatherEntry.TABLE_NAME, null, values);
+                    }
+                    written.countDown();
+                    release.await();
+                    db.setTransactionSuccessful();
+                } catch (InterruptedException e) {
+                    // roll back
+                } finally {
+                    db.endTransaction();
+                    db.close();
+                }
+            }
+        });
+        writer.start();
+        try {
+            assertTrue(written.await(60, TimeUnit.SECONDS));
+
+            long start = SystemClock.elapsedRealtime();
+            Cursor cursor = mContext.getContentResolver().query(
+                    WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                    null, null, null, null);
+            assertNotNull(cursor);
+            // The open transaction isn't visible yet, only what was committed before it
+            int count = cursor.getCount();
+            cursor.close();
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            Log.i(LOG_TAG, "Read during an open write transaction took " + elapsed + "ms");
+
+            assertEquals(committed.length, count);
+            assertTrue("Error: the read waited " + elapsed + "ms for the writer",
+                    elapsed < MAX_BLOCKED_READ_MILLIS);
+        } finally {
+            release.countDown();
+            writer.join();
+        }
+    }
+
+    public void testReaderLatencyUnderWriteLoad() throws InterruptedException {
+        List<Long> idleLatencies = new ArrayList<Long>();
+        for (int i = 0; i < 50; i++) {
+            idleLatencies.add(timeRead());
+        }
+
+        final List<Long> loadLatencies = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        final CountDownLatch writersDone = new CountDownLatch(WRITERS);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int w = 0; w < WRITERS; w++) {
+            final int writer = w;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int batch = 0; batch < BATCHES_PER_WRITER; batch++) {
+                            // Every writer gets dates of its own, so no row replaces another
+                            int first = (writer * BATCHES_PER_WRITER + batch) * ROWS_PER_BATCH;
+                            mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                                    createRows(first, ROWS_PER_BATCH));
+                        }
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    } finally {
+                        writersDone.countDown();
+                    }
+                }
+            }, "Writer " + w));
+        }
+        for (int r = 0; r < READERS; r++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (writersDone.getCount() > 0) {
+                            loadLatencies.add(timeRead());
+                        }
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                }
+            }, "Reader " + r));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue("Error: " + failures, failures.isEmpty());
+        assertFalse(loadLatencies.isEmpty());
+        Log.i(LOG_TAG, "Reads while idle: " + describe(idleLatencies));
+        Log.i(LOG_TAG, "Reads under " + WRITERS + " writers: " + describe(loadLatencies));
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals(WRITERS * BATCHES_PER_WRITER * ROWS_PER_BATCH, cursor.getCount());
+        cursor.close();
+    }
+
+    // Reads the way the forecast list does, and returns how long it took
+    private long timeRead() {
+        long start = SystemClock.elapsedRealtime();
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                        TestUtilities.TEST_DATE),
+                null, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertNotNull(cursor);
+        // Make the cursor actually run the query
+        cursor.getCount();
+        cursor.close();
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private static String describe(List<Long> latencies) {
+        List<Long> sorted = new ArrayList<Long>(latencies);
+        Collections.sort(sorted);
+        return sorted.size() + " reads, p50 " + percentile(sorted, 50) + "ms, p99 "
+                + percentile(sorted, 99) + "ms, max " + sorted.get(sorted.size() - 1) + "ms";
+    }
+
+    private static long percentile(List<Long> sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index));
+    }
+
+    private ContentValues[] createRows(int first, int count) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            ContentValues weatherValues = TestUtilities.createWeatherValues(mLocationRowId);
+            weatherValues.put(WeatherEntry.COLUMN_DATE,
+                    TestUtilities.TEST_DATE + (first + i) * DAY_IN_MILLIS);
+            values[i] = weatherValues;
+        }
+        return values;
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
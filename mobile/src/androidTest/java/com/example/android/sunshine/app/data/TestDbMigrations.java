@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationSearchEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncHistoryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/*
+    Builds a database as every earlier version of the app left it, with some rows in it, and
+    checks that WeatherDbHelper upgrades it to the current schema without losing them.  The
+    schemas below are frozen copies of what each version created; don't update them when the
+    schema changes, add the new version instead.
+ */
+public class TestDbMigrations extends AndroidTestCase {
+
+    private static final String OLD_DATABASE = "migration_test.db";
+    private static final String FRESH_DATABASE = "migration_fresh.db";
+
+    private static final String LOCATION_V1 = "CREATE TABLE location (" +
+            "_id INTEGER PRIMARY KEY,location_setting TEXT UNIQUE NOT NULL, " +
+            "city_name TEXT NOT NULL, coord_lat REAL NOT NULL, coord_long REAL NOT NULL  );";
+
+    // Version 1 kept the dates as yyyyMMdd text
+    private static final String WEATHER_V1 = "CREATE TABLE weather (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT,location_id INTEGER NOT NULL, " +
+            "date TEXT NOT NULL, short_desc TEXT NOT NULL, weather_id INTEGER NOT NULL," +
+            "min REAL NOT NULL, max REAL NOT NULL, humidity REAL NOT NULL, " +
+            "pressure REAL NOT NULL, wind REAL NOT NULL, degrees REAL NOT NULL,  " +
+            "FOREIGN KEY (location_id) REFERENCES location (_id),  " +
+            "UNIQUE (date, location_id) ON CONFLICT REPLACE);";
+
+    private static final String WEATHER_V2 = WEATHER_V1.replace("date TEXT", "date INTEGER");
+
+    private static final String SYNC_HISTORY_V3 = "CREATE TABLE sync_history (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT,start_time INTEGER NOT NULL, " +
+            "duration INTEGER NOT NULL, wire_bytes INTEGER NOT NULL, " +
+            "body_bytes INTEGER NOT NULL, http_status INTEGER NOT NULL, " +
+            "rows_changed INTEGER NOT NULL, outcome INTEGER NOT NULL);";
+
+    private static final String SYNC_HISTORY_TRIGGER_V3 = "CREATE TRIGGER sync_history_ring " +
+            "AFTER INSERT ON sync_history BEGIN DELETE FROM sync_history " +
+            "WHERE _id <= NEW._id - 100; END;";
+
+    private static final String WEATHER_LOCATION_DATE_INDEX_V4 = "CREATE INDEX " +
+            "weather_location_date ON weather (location_id, date, weather_id, short_desc, " +
+            "max, min);";
+
+    private static final String WEATHER_ARCHIVE_V5 = "CREATE TABLE weather_archive (" +
+            "_id INTEGER PRIMARY KEY,location_id INTEGER NOT NULL, month INTEGER NOT NULL, " +
+            "day_count INTEGER NOT NULL, data BLOB NOT NULL,  " +
+            "FOREIGN KEY (location_id) REFERENCES location (_id),  " +
+            "UNIQUE (location_id, month) ON CONFLICT REPLACE);";
+
+    private static final String WEATHER_DISPLAY_V6 = "CREATE TABLE weather_display (" +
+            "_id INTEGER PRIMARY KEY,location_id INTEGER NOT NULL, date INTEGER NOT NULL, " +
+            "weather_id INTEGER NOT NULL, icon_res INTEGER NOT NULL, art_res INTEGER NOT NULL, " +
+            "friendly_date TEXT NOT NULL, friendly_date_long TEXT NOT NULL, " +
+            "full_friendly_date TEXT NOT NULL, description TEXT NOT NULL, " +
+            "humidity TEXT NOT NULL, pressure TEXT NOT NULL, a11y_description TEXT NOT NULL, " +
+            "a11y_icon TEXT NOT NULL, a11y_humidity TEXT NOT NULL, " +
+            "a11y_pressure TEXT NOT NULL, " +
+            "high_metric TEXT NOT NULL, low_metric TEXT NOT NULL, wind_metric TEXT NOT NULL, " +
+            "a11y_high_metric TEXT NOT NULL, a11y_low_metric TEXT NOT NULL, " +
+            "a11y_wind_metric TEXT NOT NULL, " +
+            "high_imperial TEXT NOT NULL, low_imperial TEXT NOT NULL, " +
+            "wind_imperial TEXT NOT NULL, " +
+            "a11y_high_imperial TEXT NOT NULL, a11y_low_imperial TEXT NOT NULL, " +
+            "a11y_wind_imperial TEXT NOT NULL, " +
+            " FOREIGN KEY (location_id) REFERENCES location (_id),  " +
+            "UNIQUE (location_id, date) ON CONFLICT REPLACE);";
+
+    private static final String LOCATION_SEARCH_V7 = "CREATE VIRTUAL TABLE location_search " +
+            "USING fts3(city_name, location_setting, country);";
+
+    private static final String LOCATION_SEARCH_INSERT_TRIGGER_V7 = "CREATE TRIGGER " +
+            "location_search_insert AFTER INSERT ON location BEGIN INSERT INTO " +
+            "location_search (docid, city_name, location_setting, country) VALUES (NEW._id, " +
+            "NEW.city_name, NEW.location_setting, ''); END;";
+
+    private static final String LOCATION_SEARCH_UPDATE_TRIGGER_V7 = "CREATE TRIGGER " +
+            "location_search_update AFTER UPDATE ON location BEGIN DELETE FROM " +
+            "location_search WHERE docid = OLD._id; INSERT INTO location_search (docid, " +
+            "city_name, location_setting, country) VALUES (NEW._id, NEW.city_name, " +
+            "NEW.location_setting, ''); END;";
+
+    private static final String LOCATION_SEARCH_DELETE_TRIGGER_V7 = "CREATE TRIGGER " +
+            "location_search_delete AFTER DELETE ON location BEGIN DELETE FROM " +
+            "location_search WHERE docid = OLD._id; END;";
+
+    private static final String[][] SCHEMAS = {
+            {},
+            {LOCATION_V1, WEATHER_V1},
+            {LOCATION_V1, WEATHER_V2},
+            {LOCATION_V1, WEATHER_V2, SYNC_HISTORY_V3, SYNC_HISTORY_TRIGGER_V3},
+            {LOCATION_V1, WEATHER_V2, SYNC_HISTORY_V3, SYNC_HISTORY_TRIGGER_V3,
+                    WEATHER_LOCATION_DATE_INDEX_V4},
+            {LOCATION_V1, WEATHER_V2, SYNC_HISTORY_V3, SYNC_HISTORY_TRIGGER_V3,
+                    WEATHER_LOCATION_DATE_INDEX_V4, WEATHER_ARCHIVE_V5},
+            {LOCATION_V1, WEATHER_V2, SYNC_HISTORY_V3, SYNC_HISTORY_TRIGGER_V3,
+                    WEATHER_LOCATION_DATE_INDEX_V4, WEATHER_ARCHIVE_V5, WEATHER_DISPLAY_V6},
+            {LOCATION_V1, WEATHER_V2, SYNC_HISTORY_V3, SYNC_HISTORY_TRIGGER_V3,
+                    WEATHER_LOCATION_DATE_INDEX_V4, WEATHER_ARCHIVE_V5, WEATHER_DISPLAY_V6,
+                    LOCATION_SEARCH_V7, LOCATION_SEARCH_INSERT_TRIGGER_V7,
+                    LOCATION_SEARCH_UPDATE_TRIGGER_V7, LOCATION_SEARCH_DELETE_TRIGGER_V7},
+    };
+
+    private static final String[] V1_DATES = {"20141220", "20141221", "20141222"};
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteDatabases();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDatabases();
+        super.tearDown();
+    }
+
+    public void testEveryVersionHasAMigrationTest() {
+        assertEquals("Error: add the new version's schema to SCHEMAS",
+                WeatherDbHelper.DATABASE_VERSION, SCHEMAS.length);
+    }
+
+    public void testUpgradeFromEveryVersion() throws Exception {
+        for (int version = 1; version < WeatherDbHelper.DATABASE_VERSION; version++) {
+            deleteDatabases();
+            createOldDatabase(version);
+
+            SQLiteDatabase db = new WeatherDbHelper(mContext, OLD_DATABASE).getWritableDatabase();
+            String error = "Error: upgrading from version " + version + ": ";
+            assertEquals(error, WeatherDbHelper.DATABASE_VERSION, db.getVersion());
+
+            // The location is still there, and so are its forecasts, with their dates in millis
+            Cursor location = db.query(LocationEntry.TABLE_NAME, null, null, null, null, null,
+                    null);
+            assertEquals(error + "lost the location", 1, location.getCount());
+            location.close();
+
+            // The saved location is in the search index, under its id
+            Cursor search = db.query(LocationSearchEntry.TABLE_NAME,
+                    new String[]{LocationSearchEntry.COLUMN_LOCATION_SETTING},
+                    "docid = 1", null, null, null, null);
+            assertTrue(error + "didn't index the location", search.moveToFirst());
+            assertEquals(error, "99705", search.getString(0));
+            search.close();
+
+            Cursor weather = db.query(WeatherEntry.TABLE_NAME,
+                    new String[]{WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_SHORT_DESC},
+                    null, null, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+            assertEquals(error + "lost forecasts", V1_DATES.length, weather.getCount());
+            for (int i = 0; weather.moveToNext(); i++) {
+                assertEquals(error, expectedDate(i), weather.getLong(0));
+                assertEquals(error, "Clear", weather.getString(1));
+            }
+            weather.close();
+
+            if (version >= 3) {
+                Cursor history = db.query(SyncHistoryEntry.TABLE_NAME, null, null, null, null,
+                        null, null);
+                assertEquals(error + "lost the sync history", 1, history.getCount());
+                // Syncs from before art was counted count as having downloaded none
+                assertTrue(history.moveToFirst());
+                assertEquals(error, 0, history.getLong(
+                        history.getColumnIndexOrThrow(SyncHistoryEntry.COLUMN_ART_WIRE_BYTES)));
+                assertEquals(error, 0, history.getLong(
+                        history.getColumnIndexOrThrow(SyncHistoryEntry.COLUMN_ART_BODY_BYTES)));
+                history.close();
+            }
+
+            SQLiteDatabase fresh =
+                    new WeatherDbHelper(mContext, FRESH_DATABASE).getReadableDatabase();
+            assertEquals(error + "the schema differs from a new database's",
+                    describeSchema(fresh), describeSchema(db));
+            fresh.close();
+            db.close();
+        }
+    }
+
+    // A forecast whose date can't be read is dropped, and the rest still make it
+    public void testUnreadableDateIsDropped() throws Exception {
+        createOldDatabase(1);
+        SQLiteDatabase old = mContext.openOrCreateDatabase(OLD_DATABASE, Context.MODE_PRIVATE,
+                null);
+        old.execSQL("INSERT INTO weather (location_id, date, short_desc, weather_id, min, max, " +
+                "humidity, pressure, wind, degrees) VALUES (1, 'someday', 'Clear', 800, 1, 2, " +
+                "3, 4, 5, 6)");
+        old.close();
+
+        SQLiteDatabase db = new WeatherDbHelper(mContext, OLD_DATABASE).getWritableDatabase();
+        Cursor weather = db.query(WeatherEntry.TABLE_NAME, null, null, null, null, null, null);
+        assertEquals(V1_DATES.length, weather.getCount());
+        weather.close();
+        db.close();
+    }
+
+    private void createOldDatabase(int version) throws Exception {
+        SQLiteDatabase db = mContext.openOrCreateDatabase(OLD_DATABASE, Context.MODE_PRIVATE,
+                null);
+        for (String sql : SCHEMAS[version]) {
+            db.execSQL(sql);
+        }
+        db.execSQL("INSERT INTO location (_id, location_setting, city_name, coord_lat, " +
+                "coord_long) VALUES (1, '99705', 'North Pole', 64.7488, -147.353)");
+        for (int i = 0; i < V1_DATES.length; i++) {
+            Object date = version == 1 ? V1_DATES[i] : expectedDate(i);
+            db.execSQL("INSERT INTO weather (location_id, date, short_desc, weather_id, min, " +
+                    "max, humidity, pressure, wind, degrees) VALUES (1, ?, 'Clear', 800, 1, 2, " +
+                    "3, 4, 5, 6)", new Object[]{date});
+        }
+        if (version >= 3) {
+            db.execSQL("INSERT INTO sync_history (start_time, duration, wire_bytes, " +
+                    "body_bytes, http_status, rows_changed, outcome) VALUES (1, 2, 3, 4, 200, " +
+                    "14, 0)");
+        }
+        db.setVersion(version);
+        db.close();
+    }
+
+    private static long expectedDate(int i) throws Exception {
+        return WeatherContract.normalizeDate(
+                new SimpleDateFormat("yyyyMMdd", Locale.US).parse(V1_DATES[i]).getTime());
+    }
+
+    // Every table's columns, every index's columns and every trigger, in a comparable form
+    private static List<String> describeSchema(SQLiteDatabase db) {
+        List<String> schema = new ArrayList<String>();
+        Cursor master = db.rawQuery("SELECT type, name, sql FROM sqlite_master " +
+                "WHERE name != 'android_metadata' ORDER BY type, name", null);
+        while (master.moveToNext()) {
+            String type = master.getString(0);
+            String name = master.getString(1);
+            schema.add(type + " " + name);
+            if (type.equals("table")) {
+                Cursor columns = db.rawQuery("PRAGMA table_info(" + name + ")", null);
+                while (columns.moveToNext()) {
+                    schema.add("  " + columns.getString(columns.getColumnIndex("name")) + " "
+                            + columns.getString(columns.getColumnIndex("type")) + " notnull="
+                            + columns.getInt(columns.getColumnIndex("notnull")) + " pk="
+                            + columns.getInt(columns.getColumnIndex("pk")));
+                }
+                columns.close();
+            } else if (type.equals("index")) {
+                Cursor columns = db.rawQuery("PRAGMA index_info(" + name + ")", null);
+                while (columns.moveToNext()) {
+                    schema.add("  " + columns.getString(columns.getColumnIndex("name")));
+                }
+                columns.close();
+            } else {
+                schema.add("  " + master.getString(2));
+            }
+        }
+        master.close();
+        return schema;
+    }
+
+    private void deleteDatabases() {
+        mContext.deleteDatabase(OLD_DATABASE);
+        mContext.deleteDatabase(FRESH_DATABASE);
+    }
+}
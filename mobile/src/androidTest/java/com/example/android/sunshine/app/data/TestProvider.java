@@ -24,11 +24,19 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationSearchEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncHistoryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherDisplayEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherSummaryEntry;
+
+import java.util.Arrays;
+import java.util.HashMap;
 
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
@@ -155,11 +163,22 @@ public class TestProvider extends AndroidTestCase {
         assertEquals("Error: the WeatherEntry CONTENT_URI with location and date should return WeatherEntry.CONTENT_ITEM_TYPE",
                 WeatherEntry.CONTENT_ITEM_TYPE, type);
 
+        // content://com.example.android.sunshine.app/weather/94074/summary
+        type = mContext.getContentResolver().getType(
+                WeatherSummaryEntry.buildSummaryLocation(testLocation));
+        assertEquals("Error: the summary uri should return WeatherSummaryEntry.CONTENT_ITEM_TYPE",
+                WeatherSummaryEntry.CONTENT_ITEM_TYPE, type);
+
         // content://com.example.android.sunshine.app/location/
         type = mContext.getContentResolver().getType(LocationEntry.CONTENT_URI);
         // vnd.android.cursor.dir/com.example.android.sunshine.app/location
         assertEquals("Error: the LocationEntry CONTENT_URI should return LocationEntry.CONTENT_TYPE",
                 LocationEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/location/search?q=north
+        type = mContext.getContentResolver().getType(LocationSearchEntry.buildSearchUri("north"));
+        assertEquals("Error: the search uri should return LocationSearchEntry.CONTENT_TYPE",
+                LocationSearchEntry.CONTENT_TYPE, type);
     }
 
 
@@ -512,4 +531,551 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    // Upserting the same rows again must not write or notify anything, and changing one row
+    // must update it in place.
+    public void testBulkInsertDeltaUpsert() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues[] values = createBulkInsertWeatherValues(locationRowId);
+
+        int insertCount = mContext.getContentResolver().bulkInsert(
+                WeatherEntry.buildWeatherDeltaUpsertUri(), values);
+        assertEquals("Error: new rows should all be written",
+                BULK_INSERT_RECORDS_TO_INSERT, insertCount);
+        long[] ids = queryWeatherIds();
+
+        // The same rows again: nothing changes, and nobody hears about it
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+        int unchangedCount = mContext.getContentResolver().bulkInsert(
+                WeatherEntry.buildWeatherDeltaUpsertUri(), createBulkInsertWeatherValues(locationRowId));
+        weatherObserver.assertNoNotification();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+        assertEquals("Error: unchanged rows should not be written", 0, unchangedCount);
+
+        // Change one row
+        values = createBulkInsertWeatherValues(locationRowId);
+        values[3].put(WeatherEntry.COLUMN_MAX_TEMP, 99);
+        weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+        int changedCount = mContext.getContentResolver().bulkInsert(
+                WeatherEntry.buildWeatherDeltaUpsertUri(), values);
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+        assertEquals("Error: only the changed row should be written", 1, changedCount);
+
+        // Every row kept its _id, and the changed one has the new value
+        assertTrue("Error: delta upsert changed row ids",
+                Arrays.equals(ids, queryWeatherIds()));
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        cursor.moveToFirst();
+        for (int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++, cursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord("testBulkInsertDeltaUpsert.  Error validating WeatherEntry " + i,
+                    cursor, values[i]);
+        }
+        cursor.close();
+    }
+
+    // The call() form of the delta upsert reports which rows changed
+    public void testUpsertWeatherCall() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.buildWeatherDeltaUpsertUri(),
+                createBulkInsertWeatherValues(locationRowId));
+
+        ContentValues[] values = createBulkInsertWeatherValues(locationRowId);
+        values[0].put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        values[7].put(WeatherEntry.COLUMN_HUMIDITY, 50);
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.KEY_VALUES, values);
+        Bundle result = mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_UPSERT_WEATHER, null, extras);
+
+        assertEquals(2, result.getInt(WeatherContract.KEY_CHANGED_COUNT));
+        long[] dates = result.getLongArray(WeatherContract.KEY_CHANGED_DATES);
+        long[] locationIds = result.getLongArray(WeatherContract.KEY_CHANGED_LOCATION_IDS);
+        assertEquals(2, dates.length);
+        assertEquals(WeatherContract.normalizeDate(
+                values[0].getAsLong(WeatherEntry.COLUMN_DATE)), dates[0]);
+        assertEquals(WeatherContract.normalizeDate(
+                values[7].getAsLong(WeatherEntry.COLUMN_DATE)), dates[1]);
+        assertEquals(locationRowId, locationIds[0]);
+        assertEquals(locationRowId, locationIds[1]);
+    }
+
+    // An ingest writes the locations, their weather and the retention delete together
+    public void testIngest() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        ContentValues location = TestUtilities.createNorthPoleLocationValues();
+        String locationSetting = location.getAsString(LocationEntry.COLUMN_LOCATION_SETTING);
+
+        Bundle result = ingest(location, createIngestWeatherValues(locationSetting), null);
+        long locationId = result.getLongArray(WeatherContract.KEY_LOCATION_IDS)[0];
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT,
+                result.getInt(WeatherContract.KEY_CHANGED_COUNT));
+        assertEquals(0, result.getInt(WeatherContract.KEY_DELETED_COUNT));
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, queryWeatherIds().length);
+
+        // The same forecast again, with the first day now past keeping.  The location is
+        // found again, nothing is rewritten, and observers hear about the delete.
+        ContentValues[] values = createIngestWeatherValues(locationSetting);
+        long firstDate = WeatherContract.normalizeDate(values[0].getAsLong(WeatherEntry.COLUMN_DATE));
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+        result = ingest(TestUtilities.createNorthPoleLocationValues(), values, firstDate);
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+        assertEquals(locationId, result.getLongArray(WeatherContract.KEY_LOCATION_IDS)[0]);
+        assertEquals(0, result.getInt(WeatherContract.KEY_CHANGED_COUNT));
+        assertEquals(1, result.getInt(WeatherContract.KEY_DELETED_COUNT));
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT - 1, queryWeatherIds().length);
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals("Error: the location should only be stored once", 1, cursor.getCount());
+        cursor.close();
+    }
+
+    private Bundle ingest(ContentValues location, ContentValues[] values, Long retentionDate) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.KEY_LOCATIONS, new ContentValues[]{location});
+        extras.putParcelableArray(WeatherContract.KEY_VALUES, values);
+        if (retentionDate != null) {
+            extras.putLong(WeatherContract.KEY_RETENTION_DATE, retentionDate);
+        }
+        return mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_INGEST, null, extras);
+    }
+
+    // Weather rows that name their location by its setting, the way an ingest takes them
+    private static ContentValues[] createIngestWeatherValues(String locationSetting) {
+        ContentValues[] values = createBulkInsertWeatherValues(0);
+        for (ContentValues value : values) {
+            value.remove(WeatherEntry.COLUMN_LOC_KEY);
+            value.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        }
+        return values;
+    }
+
+    // A limit or an end date cuts the forecast short, in date order
+    public void testLimitAndDateRangeQueries() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues[] values = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+        long[] dates = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            dates[i] = WeatherContract.normalizeDate(values[i].getAsLong(WeatherEntry.COLUMN_DATE));
+        }
+
+        long[] firstDay = queryDates(WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, dates[0], 1));
+        assertTrue("Error: a limit of 1 should return only the first day",
+                Arrays.equals(new long[]{dates[0]}, firstDay));
+
+        long[] fromSecondDay = queryDates(WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, dates[1], 3));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(dates, 1, 4), fromSecondDay));
+
+        long[] range = queryDates(WeatherEntry.buildWeatherLocationWithDateRange(
+                TestUtilities.TEST_LOCATION, dates[2], dates[5]));
+        assertTrue("Error: the range should include both ends",
+                Arrays.equals(Arrays.copyOfRange(dates, 2, 6), range));
+    }
+
+    // Paging after the last date of each page goes through every day once, in order
+    public void testKeysetPaging() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues[] values = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+        long[] dates = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            dates[i] = WeatherContract.normalizeDate(values[i].getAsLong(WeatherEntry.COLUMN_DATE));
+        }
+
+        int pageSize = 3;
+        long[] paged = new long[0];
+        long[] page = queryDates(WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, dates[0], pageSize));
+        while (page.length > 0) {
+            assertTrue("Error: a page should hold no more than the limit", page.length <= pageSize);
+            long[] pages = Arrays.copyOf(paged, paged.length + page.length);
+            System.arraycopy(page, 0, pages, paged.length, page.length);
+            paged = pages;
+            page = queryDates(WeatherEntry.buildWeatherLocationAfterDate(
+                    TestUtilities.TEST_LOCATION, page[page.length - 1], pageSize));
+        }
+        assertTrue("Error: the pages should hold every day once",
+                Arrays.equals(dates, paged));
+    }
+
+    /*
+        Reads two locations' forecasts in one call, one of which has no weather, and checks the
+        snapshot matches the display rows a query returns.
+     */
+    public void testForecastSnapshot() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues[] values = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+        long startDate = WeatherContract.normalizeDate(
+                values[0].getAsLong(WeatherEntry.COLUMN_DATE));
+        String emptyLocation = "nowhere";
+
+        int dayCount = 3;
+        HashMap<String, WeatherSnapshot> snapshots = WeatherSnapshot.load(
+                mContext.getContentResolver(), startDate, dayCount,
+                TestUtilities.TEST_LOCATION, emptyLocation);
+        WeatherSnapshot snapshot = snapshots.get(TestUtilities.TEST_LOCATION);
+        assertNotNull("Error: no snapshot for the test location", snapshot);
+        assertEquals("Error: the snapshot should hold no more than the day count",
+                dayCount, snapshot.getDayCount());
+        assertEquals("Error: a location without weather should have no days",
+                0, snapshots.get(emptyLocation).getDayCount());
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherDisplayEntry.buildDisplayLocationWithStartDate(
+                        TestUtilities.TEST_LOCATION, startDate, dayCount),
+                WeatherSnapshot.COLUMNS, null, null, WeatherDisplayEntry.COLUMN_DATE + " ASC");
+        assertNotNull(cursor);
+        for (int i = 0; cursor.moveToNext(); i++) {
+            assertEquals(cursor.getLong(0), snapshot.ids[i]);
+            assertEquals(cursor.getLong(1), snapshot.dates[i]);
+            assertEquals(cursor.getInt(2), snapshot.weatherIds[i]);
+            assertEquals(cursor.getString(6), snapshot.descriptions[i]);
+            assertEquals(cursor.getString(7), snapshot.highs[i]);
+        }
+        cursor.close();
+
+        snapshot = WeatherSnapshot.load(mContext.getContentResolver(), startDate, 0,
+                TestUtilities.TEST_LOCATION).get(TestUtilities.TEST_LOCATION);
+        assertEquals("Error: a day count of 0 should read every day",
+                values.length, snapshot.getDayCount());
+    }
+
+    /*
+        Searches the saved locations and the gazetteer by the start of their words, and checks
+        that the index follows the location table as locations are saved, renamed and removed.
+     */
+    public void testLocationSearch() {
+        assertEquals("san* fr*", WeatherProvider.buildSearchMatch("San Fr"));
+        assertEquals("or* not*", WeatherProvider.buildSearchMatch(" \"OR\" -NOT("));
+        assertNull(WeatherProvider.buildSearchMatch(" ,- "));
+
+        // The gazetteer's cities are there before any location is saved
+        String[] settings = querySearch("san fran");
+        assertTrue("Error: the gazetteer should have San Francisco",
+                Arrays.asList(settings).contains("San Francisco,US"));
+        assertEquals("Error: an empty query should find nothing", 0, querySearch("").length);
+
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        settings = querySearch("north");
+        assertTrue("Error: the saved location should be found", settings.length > 0);
+        assertEquals("Error: saved locations should come first",
+                TestUtilities.TEST_LOCATION, settings[0]);
+        assertEquals("Error: the location setting should be found too",
+                TestUtilities.TEST_LOCATION, querySearch("997")[0]);
+
+        ContentValues renamed = new ContentValues();
+        renamed.put(LocationEntry.COLUMN_CITY_NAME, "Santa Claus Village");
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, renamed,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(locationRowId)});
+        assertEquals("Error: a renamed location should be found by its new name",
+                TestUtilities.TEST_LOCATION, querySearch("santa cl")[0]);
+
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(locationRowId)});
+        assertEquals("Error: a removed location should no longer be found",
+                0, querySearch("997").length);
+    }
+
+    private String[] querySearch(String query) {
+        Cursor cursor = mContext.getContentResolver().query(
+                LocationSearchEntry.buildSearchUri(query, 10),
+                new String[]{LocationSearchEntry.COLUMN_LOCATION_SETTING}, null, null, null);
+        assertNotNull(cursor);
+        String[] settings = new String[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            settings[i] = cursor.getString(0);
+        }
+        cursor.close();
+        return settings;
+    }
+
+    private long[] queryDates(Uri uri) {
+        Cursor cursor = mContext.getContentResolver().query(uri,
+                new String[]{WeatherEntry.COLUMN_DATE}, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        assertNotNull(cursor);
+        long[] dates = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            dates[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        return dates;
+    }
+
+    // The summary sums up only the days in its range, and follows writes to them
+    public void testWeatherSummary() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues[] values = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+        long[] dates = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            dates[i] = WeatherContract.normalizeDate(values[i].getAsLong(WeatherEntry.COLUMN_DATE));
+        }
+        Uri summaryUri = WeatherSummaryEntry.buildSummaryLocationWithDateRange(
+                TestUtilities.TEST_LOCATION, dates[2], dates[5]);
+        String[] projection = {
+                WeatherSummaryEntry.COLUMN_DAY_COUNT,
+                WeatherSummaryEntry.COLUMN_FIRST_DATE,
+                WeatherSummaryEntry.COLUMN_LAST_DATE,
+                WeatherSummaryEntry.COLUMN_LOW,
+                WeatherSummaryEntry.COLUMN_HIGH,
+                WeatherSummaryEntry.COLUMN_MEAN_HIGH,
+                WeatherSummaryEntry.COLUMN_RAIN_DAYS,
+                WeatherSummaryEntry.COLUMN_CLEAR_DAYS
+        };
+
+        Cursor cursor = mContext.getContentResolver().query(summaryUri, projection, null, null,
+                null);
+        assertNotNull(cursor);
+        assertEquals("Error: a summary is one row", 1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(4, cursor.getInt(0));
+        assertEquals(dates[2], cursor.getLong(1));
+        assertEquals(dates[5], cursor.getLong(2));
+        // The bulk insert's highs climb and its lows fall a degree a day
+        assertEquals(60.0, cursor.getDouble(3));
+        assertEquals(80.0, cursor.getDouble(4));
+        assertEquals(78.5, cursor.getDouble(5), 0.001);
+        assertEquals("Error: drizzle should count as a rainy day", 4, cursor.getInt(6));
+        assertEquals(0, cursor.getInt(7));
+        cursor.close();
+
+        ContentValues clearSky = new ContentValues();
+        clearSky.put(WeatherEntry.COLUMN_WEATHER_ID, 800);
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, clearSky,
+                WeatherEntry.COLUMN_DATE + " = ?", new String[]{Long.toString(dates[3])});
+        cursor = mContext.getContentResolver().query(summaryUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(3, cursor.getInt(6));
+        assertEquals(1, cursor.getInt(7));
+        cursor.close();
+
+        // No days still gives a row, with nothing to take a minimum of
+        cursor = mContext.getContentResolver().query(
+                WeatherSummaryEntry.buildSummaryLocation("elsewhere"), projection, null, null,
+                null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(0, cursor.getInt(0));
+        assertTrue(cursor.isNull(3));
+        cursor.close();
+    }
+
+    // Reads of the same day come from the cache until a write for that location drops it;
+    // writes for other locations leave it alone
+    public void testQueryCache() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues[] values = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+        long date = WeatherContract.normalizeDate(values[0].getAsLong(WeatherEntry.COLUMN_DATE));
+        Uri dayUri = WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION, date);
+
+        long[] start = getCacheStats();
+        assertEquals(75.0, queryMaxTemp(dayUri));
+        assertEquals(75.0, queryMaxTemp(dayUri));
+        long[] stats = getCacheStats();
+        assertEquals("Error: the first read should miss", 1, stats[1] - start[1]);
+        assertEquals("Error: the second read should hit", 1, stats[0] - start[0]);
+
+        // Weather for another location
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, "elsewhere");
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        long otherRowId = db.insert(LocationEntry.TABLE_NAME, null, otherLocation);
+        db.close();
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(otherRowId));
+        assertEquals(75.0, queryMaxTemp(dayUri));
+        assertEquals("Error: another location's write shouldn't drop the cached day",
+                stats[0] + 1, getCacheStats()[0]);
+
+        // A new forecast for this location
+        values = createBulkInsertWeatherValues(locationRowId);
+        values[0].put(WeatherEntry.COLUMN_MAX_TEMP, 80);
+        mContext.getContentResolver().bulkInsert(
+                WeatherEntry.buildWeatherDeltaUpsertUri(), values);
+        assertEquals("Error: the cached day should have been dropped",
+                80.0, queryMaxTemp(dayUri));
+    }
+
+    private double queryMaxTemp(Uri uri) {
+        Cursor cursor = mContext.getContentResolver().query(uri,
+                new String[]{WeatherEntry.COLUMN_MAX_TEMP}, null, null, null);
+        assertNotNull(cursor);
+        assertTrue(cursor.moveToFirst());
+        double maxTemp = cursor.getDouble(0);
+        cursor.close();
+        return maxTemp;
+    }
+
+    // The hits and misses, in that order
+    private long[] getCacheStats() {
+        Bundle result = mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_GET_CACHE_STATS, null, null);
+        return new long[]{result.getLong(WeatherContract.KEY_CACHE_HITS),
+                result.getLong(WeatherContract.KEY_CACHE_MISSES)};
+    }
+
+    // A write tells the observers of the days it changed, and of their location, but not the
+    // readers of other days or other locations
+    public void testScopedNotifications() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.buildWeatherDeltaUpsertUri(),
+                createBulkInsertWeatherValues(locationRowId));
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, "elsewhere");
+        mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, otherLocation);
+
+        ContentValues[] values = createBulkInsertWeatherValues(locationRowId);
+        values[3].put(WeatherEntry.COLUMN_MAX_TEMP, 99);
+        Uri changedDay = WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                WeatherContract.normalizeDate(values[3].getAsLong(WeatherEntry.COLUMN_DATE)));
+        Uri otherDay = WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                WeatherContract.normalizeDate(values[0].getAsLong(WeatherEntry.COLUMN_DATE)));
+
+        TestUtilities.TestContentObserver changedDayObserver = TestUtilities.getTestContentObserver();
+        TestUtilities.TestContentObserver listObserver = TestUtilities.getTestContentObserver();
+        TestUtilities.TestContentObserver otherDayObserver = TestUtilities.getTestContentObserver();
+        TestUtilities.TestContentObserver otherLocationObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(changedDay, false, changedDayObserver);
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), true, listObserver);
+        mContext.getContentResolver().registerContentObserver(otherDay, false, otherDayObserver);
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation("elsewhere"), true, otherLocationObserver);
+
+        mContext.getContentResolver().bulkInsert(WeatherEntry.buildWeatherDeltaUpsertUri(), values);
+
+        changedDayObserver.waitForNotificationOrFail();
+        listObserver.waitForNotificationOrFail();
+        otherDayObserver.assertNoNotification();
+        otherLocationObserver.assertNoNotification();
+        mContext.getContentResolver().unregisterContentObserver(changedDayObserver);
+        mContext.getContentResolver().unregisterContentObserver(listObserver);
+        mContext.getContentResolver().unregisterContentObserver(otherDayObserver);
+        mContext.getContentResolver().unregisterContentObserver(otherLocationObserver);
+
+        // Deleting the day tells its observer too
+        changedDayObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(changedDay, false, changedDayObserver);
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(WeatherContract.normalizeDate(
+                        values[3].getAsLong(WeatherEntry.COLUMN_DATE)))});
+        changedDayObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(changedDayObserver);
+    }
+
+    // An update tells the observers of the days it changed, and an ingest that renames a
+    // location tells the location table and that location's readers, but neither wakes the
+    // readers of other days or of the other tables
+    public void testScopedUpdateAndLocationNotifications() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues[] values = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.buildWeatherDeltaUpsertUri(), values);
+        long changedDate = WeatherContract.normalizeDate(
+                values[3].getAsLong(WeatherEntry.COLUMN_DATE));
+        Uri changedDay = WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                changedDate);
+        Uri otherDay = WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                WeatherContract.normalizeDate(values[0].getAsLong(WeatherEntry.COLUMN_DATE)));
+
+        TestUtilities.TestContentObserver changedDayObserver = TestUtilities.getTestContentObserver();
+        TestUtilities.TestContentObserver otherDayObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(changedDay, false, changedDayObserver);
+        mContext.getContentResolver().registerContentObserver(otherDay, false, otherDayObserver);
+        ContentValues update = new ContentValues();
+        update.put(WeatherEntry.COLUMN_MAX_TEMP, 99);
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, update,
+                WeatherEntry.COLUMN_DATE + " = ?", new String[]{Long.toString(changedDate)});
+        changedDayObserver.waitForNotificationOrFail();
+        otherDayObserver.assertNoNotification();
+        mContext.getContentResolver().unregisterContentObserver(changedDayObserver);
+        mContext.getContentResolver().unregisterContentObserver(otherDayObserver);
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        ContentValues location = TestUtilities.createNorthPoleLocationValues();
+        location.put(LocationEntry.COLUMN_CITY_NAME, "Santa's Workshop");
+        TestUtilities.TestContentObserver locationObserver = TestUtilities.getTestContentObserver();
+        TestUtilities.TestContentObserver listObserver = TestUtilities.getTestContentObserver();
+        TestUtilities.TestContentObserver historyObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                LocationEntry.CONTENT_URI, true, locationObserver);
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), true, listObserver);
+        mContext.getContentResolver().registerContentObserver(
+                SyncHistoryEntry.CONTENT_URI, true, historyObserver);
+
+        ingest(location, createIngestWeatherValues(TestUtilities.TEST_LOCATION), null);
+
+        locationObserver.waitForNotificationOrFail();
+        listObserver.waitForNotificationOrFail();
+        historyObserver.assertNoNotification();
+        mContext.getContentResolver().unregisterContentObserver(locationObserver);
+        mContext.getContentResolver().unregisterContentObserver(listObserver);
+        mContext.getContentResolver().unregisterContentObserver(historyObserver);
+    }
+
+    // The sync history only keeps the latest attempts, and hands them back newest first
+    public void testSyncHistoryRingBuffer() {
+        mContext.getContentResolver().delete(SyncHistoryEntry.CONTENT_URI, null, null);
+        int attempts = SyncHistoryEntry.CAPACITY + 5;
+        for (int i = 0; i < attempts; i++) {
+            ContentValues values = new ContentValues();
+            values.put(SyncHistoryEntry.COLUMN_START_TIME, 1000L * i);
+            values.put(SyncHistoryEntry.COLUMN_DURATION, 250);
+            values.put(SyncHistoryEntry.COLUMN_WIRE_BYTES, 1200);
+            values.put(SyncHistoryEntry.COLUMN_BODY_BYTES, 6000);
+            values.put(SyncHistoryEntry.COLUMN_HTTP_STATUS, 200);
+            values.put(SyncHistoryEntry.COLUMN_ROWS_CHANGED, 14);
+            values.put(SyncHistoryEntry.COLUMN_OUTCOME, 0);
+            assertNotNull(mContext.getContentResolver().insert(SyncHistoryEntry.CONTENT_URI, values));
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(SyncHistoryEntry.CONTENT_URI,
+                new String[]{SyncHistoryEntry.COLUMN_START_TIME}, null, null, null);
+        assertEquals("Error: the sync history should be trimmed to its capacity",
+                SyncHistoryEntry.CAPACITY, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(1000L * (attempts - 1), cursor.getLong(0));
+        assertTrue(cursor.moveToLast());
+        assertEquals(1000L * (attempts - SyncHistoryEntry.CAPACITY), cursor.getLong(0));
+        cursor.close();
+
+        assertEquals(SyncHistoryEntry.CONTENT_TYPE,
+                mContext.getContentResolver().getType(SyncHistoryEntry.CONTENT_URI));
+        mContext.getContentResolver().delete(SyncHistoryEntry.CONTENT_URI, null, null);
+    }
+
+    private long[] queryWeatherIds() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        long[] ids = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        return ids;
+    }
 }
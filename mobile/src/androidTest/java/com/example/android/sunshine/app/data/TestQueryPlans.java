@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherDisplayEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Asks SQLite how it runs the provider's hot queries and fails if any of them scans a table
+    instead of searching an index.  The benchmark times the same queries over a few years of
+    history for many locations, with and without the location and date index.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestQueryPlans.class.getSimpleName();
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    private static final int HISTORY_LOCATIONS = 20;
+    private static final int HISTORY_DAYS = 5 * 365;
+    private static final int MAX_BATCH = 10000;
+    private static final int QUERY_REPEATS = 50;
+    // The paging benchmark's histories, in days for one location, and its page size
+    private static final int[] PAGED_HISTORY_DAYS = {10000, 100000};
+    private static final int PAGE_SIZE = 20;
+    private static final int PAGED_QUERY_REPEATS = 10;
+
+    // What the forecast list asks for, a page at a time, from the display rows
+    private static final String[] DISPLAY_LIST_COLUMNS = {
+            WeatherDisplayEntry._ID,
+            WeatherDisplayEntry.COLUMN_DATE,
+            WeatherDisplayEntry.COLUMN_DESCRIPTION,
+            WeatherDisplayEntry.COLUMN_HIGH,
+            WeatherDisplayEntry.COLUMN_LOW,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherDisplayEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG,
+            WeatherDisplayEntry.COLUMN_ICON_RES,
+            WeatherDisplayEntry.COLUMN_ART_RES,
+            WeatherDisplayEntry.COLUMN_FRIENDLY_DATE,
+            WeatherDisplayEntry.COLUMN_FRIENDLY_DATE_LONG,
+            WeatherDisplayEntry.COLUMN_A11Y_DESCRIPTION,
+            WeatherDisplayEntry.COLUMN_A11Y_HIGH,
+            WeatherDisplayEntry.COLUMN_A11Y_LOW
+    };
+
+    private static final String DATE_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+
+    // The UNIQUE (location_id, date) constraint's index on the display table
+    private static final String DISPLAY_LOCATION_DATE_INDEX =
+            "sqlite_autoindex_" + WeatherDisplayEntry.TABLE_NAME + "_1";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    // A page after a date comes straight off the display table's index, already in order
+    public void testForecastPagesSearchTheDisplayIndex() {
+        List<String> plan = explain(buildDisplayQuery(DISPLAY_LIST_COLUMNS,
+                WeatherProvider.sLocationSettingAfterDateSelection,
+                Integer.toString(PAGE_SIZE)), 2);
+        assertNoScans(plan);
+        assertTrue("Error: a forecast page should be found with "
+                        + DISPLAY_LOCATION_DATE_INDEX + ": " + plan,
+                contains(plan, "USING INDEX " + DISPLAY_LOCATION_DATE_INDEX));
+        assertFalse("Error: a forecast page shouldn't need sorting: " + plan,
+                contains(plan, "TEMP B-TREE"));
+    }
+
+    public void testHotQueriesDontScan() {
+        // The display rows the list, the detail view and the widgets read: every row for a
+        // location, the days from a date on, a page after a date, and one day
+        assertNoScans(explain(buildDisplayQuery(null,
+                WeatherProvider.sLocationSettingSelection, null), 1));
+        assertNoScans(explain(buildDisplayQuery(null,
+                WeatherProvider.sLocationSettingWithStartDateSelection, null), 2));
+        assertNoScans(explain(buildDisplayQuery(null,
+                WeatherProvider.sLocationSettingAfterDateSelection,
+                Integer.toString(PAGE_SIZE)), 2));
+        assertNoScans(explain(buildDisplayQuery(null,
+                WeatherProvider.sLocationSettingAndDaySelection, null), 2));
+        // The weather rows: every row for a location
+        assertNoScans(explainJoin(null, WeatherProvider.sLocationSettingSelection,
+                DATE_ORDER, 1));
+        // A range of days for a location
+        assertNoScans(explainJoin(null, WeatherProvider.sLocationSettingWithDateRangeSelection,
+                DATE_ORDER, 3));
+        // A page after a date
+        assertNoScans(explainJoin(null, WeatherProvider.sLocationSettingAfterDateSelection,
+                DATE_ORDER, 2));
+        // One day for a location
+        assertNoScans(explainJoin(null, WeatherProvider.sLocationSettingAndDaySelection,
+                null, 2));
+        // A summary of a range of days for a location
+        assertNoScans(explain(WeatherProvider.sWeatherSummaryQueryBuilder.buildQuery(null,
+                WeatherProvider.sLocationSettingWithDateRangeSelection, null, null, null, null),
+                3));
+        // The rows the delta upsert compares against
+        assertNoScans(explain("SELECT * FROM " + WeatherEntry.TABLE_NAME + " WHERE " +
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " = ?", 2));
+        // The retention deletes: by date, by location and date, and the lookups that find
+        // the dates for the row and size limits
+        assertNoScans(explain("DELETE FROM " + WeatherEntry.TABLE_NAME + " WHERE " +
+                WeatherProvider.sRetentionSelection, 1));
+        assertNoScans(explain("DELETE FROM " + WeatherEntry.TABLE_NAME + " WHERE " +
+                WeatherProvider.sLocationIdRetentionSelection, 2));
+        assertNoScans(explain("SELECT " + WeatherEntry.COLUMN_DATE + " FROM " +
+                WeatherEntry.TABLE_NAME + " WHERE " + WeatherProvider.sLocationIdSelection +
+                " ORDER BY " + WeatherEntry.COLUMN_DATE + " DESC LIMIT 1 OFFSET 45", 1));
+        assertNoScans(explain("SELECT MIN(" + WeatherEntry.COLUMN_DATE + ") FROM " +
+                WeatherEntry.TABLE_NAME + " WHERE " + WeatherProvider.sRetentionSelection, 1));
+    }
+
+    public void testHotQueryBenchmark() {
+        long startDate = WeatherContract.normalizeDate(System.currentTimeMillis())
+                - HISTORY_DAYS * DAY_IN_MILLIS;
+        String busiest = insertHistory(startDate);
+
+        Uri listUri = WeatherEntry.buildWeatherLocationWithStartDate(busiest,
+                startDate + (HISTORY_DAYS - 14) * DAY_IN_MILLIS);
+        Uri dayUri = WeatherEntry.buildWeatherLocationWithDate(busiest,
+                startDate + (HISTORY_DAYS / 2) * DAY_IN_MILLIS);
+
+        double listIndexed = timeQuery(listUri, null, DATE_ORDER);
+        double dayIndexed = timeQuery(dayUri, null, null);
+
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        try {
+            db.execSQL("DROP INDEX " + WeatherDbHelper.WEATHER_LOCATION_DATE_INDEX);
+            double listUnindexed = timeQuery(listUri, null, DATE_ORDER);
+            double dayUnindexed = timeQuery(dayUri, null, null);
+            Log.i(LOG_TAG, String.format("%d rows: list %.2fms (%.2fms without the index), "
+                            + "day %.2fms (%.2fms without the index)",
+                    HISTORY_LOCATIONS * HISTORY_DAYS, listIndexed, listUnindexed,
+                    dayIndexed, dayUnindexed));
+        } finally {
+            db.execSQL(WeatherDbHelper.SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+            db.close();
+        }
+    }
+
+    /*
+        Times the last page of a long history found by the date before it, the way the
+        forecast list pages through the display rows, against the same page found with an
+        OFFSET, and against reading the whole history into one cursor.  The queries go
+        straight to the database, so the times are SQLite's alone.
+     */
+    public void testPagedHistoryBenchmark() {
+        for (int days : PAGED_HISTORY_DAYS) {
+            String locationSetting = "paged-" + days;
+            long startDate = WeatherContract.normalizeDate(System.currentTimeMillis())
+                    - days * DAY_IN_MILLIS;
+            insertHistoryDirectly(locationSetting, startDate, days);
+            long afterDate = startDate + (days - PAGE_SIZE - 1) * DAY_IN_MILLIS;
+
+            String keysetQuery = buildDisplayQuery(DISPLAY_LIST_COLUMNS,
+                    WeatherProvider.sLocationSettingAfterDateSelection,
+                    Integer.toString(PAGE_SIZE));
+            // The plan with a long history in the table, not just an empty one
+            assertNoScans(explain(keysetQuery, 2));
+
+            SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+            try {
+                double keyset = timeRawQuery(db, keysetQuery,
+                        new String[]{locationSetting, Long.toString(afterDate)}, PAGE_SIZE);
+
+                String offsetQuery = buildDisplayQuery(DISPLAY_LIST_COLUMNS,
+                        WeatherProvider.sLocationSettingSelection,
+                        (days - PAGE_SIZE) + "," + PAGE_SIZE);
+                double offset = timeRawQuery(db, offsetQuery, new String[]{locationSetting},
+                        PAGE_SIZE);
+
+                String wholeQuery = buildDisplayQuery(DISPLAY_LIST_COLUMNS,
+                        WeatherProvider.sLocationSettingSelection, null);
+                double whole = timeRawQuery(db, wholeQuery, new String[]{locationSetting}, days);
+
+                Log.i(LOG_TAG, String.format("%d days: last page %.2fms after a date, "
+                                + "%.2fms with an offset, whole history %.2fms",
+                        days, keyset, offset, whole));
+            } finally {
+                db.close();
+            }
+            deleteAll();
+        }
+    }
+
+    // A display query for a location's days, sorted by date, as the forecast list makes it
+    private static String buildDisplayQuery(String[] projection, String selection,
+                                            String limit) {
+        return WeatherProvider.sMetricDisplayQueryBuilder.buildQuery(projection, selection,
+                null, null, DATE_ORDER, limit);
+    }
+
+    // Each run reads every row, as filling the cursor's window is part of the cost
+    private double timeRawQuery(SQLiteDatabase db, String sql, String[] args, int rows) {
+        long start = System.nanoTime();
+        for (int i = 0; i < PAGED_QUERY_REPEATS; i++) {
+            Cursor cursor = db.rawQuery(sql, args);
+            assertEquals(rows, cursor.getCount());
+            cursor.close();
+        }
+        return (System.nanoTime() - start) / 1e6 / PAGED_QUERY_REPEATS;
+    }
+
+    // A day a row for one location, and its display rows, written straight to the database
+    // to keep it quick
+    private void insertHistoryDirectly(String locationSetting, long startDate, int days) {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+            locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+            long locationRowId = db.insert(LocationEntry.TABLE_NAME, null, locationValues);
+            ContentValues values = TestUtilities.createWeatherValues(locationRowId);
+            for (int i = 0; i < days; i++) {
+                values.put(WeatherEntry.COLUMN_DATE, startDate + i * DAY_IN_MILLIS);
+                db.insert(WeatherEntry.TABLE_NAME, null, values);
+            }
+
+            WeatherDisplayBuilder displayBuilder = new WeatherDisplayBuilder(mContext);
+            Cursor cursor = db.query(WeatherEntry.TABLE_NAME,
+                    WeatherDisplayBuilder.SOURCE_COLUMNS, WeatherProvider.sLocationIdSelection,
+                    new String[]{Long.toString(locationRowId)}, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    db.insert(WeatherDisplayEntry.TABLE_NAME, null, displayBuilder.build(cursor));
+                }
+            } finally {
+                cursor.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            db.close();
+        }
+    }
+
+    private List<String> explainJoin(String[] projection, String selection, String sortOrder,
+            int parameters) {
+        SQLiteQueryBuilder builder = WeatherProvider.sWeatherByLocationSettingQueryBuilder;
+        return explain(SQLiteQueryBuilder.buildQueryString(false, builder.getTables(),
+                projection, selection, null, null, sortOrder, null), parameters);
+    }
+
+    // The plan's details, one per line, with every parameter bound to a made up value
+    private List<String> explain(String sql, int parameters) {
+        String[] args = new String[parameters];
+        for (int i = 0; i < parameters; i++) {
+            args[i] = "1";
+        }
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        List<String> plan = new ArrayList<String>();
+        while (cursor.moveToNext()) {
+            // The detail is the last column, whatever the SQLite version calls the others
+            plan.add(cursor.getString(cursor.getColumnCount() - 1));
+        }
+        cursor.close();
+        db.close();
+        Log.v(LOG_TAG, sql + ": " + plan);
+        return plan;
+    }
+
+    private static void assertNoScans(List<String> plan) {
+        assertFalse("Error: empty query plan", plan.isEmpty());
+        for (String detail : plan) {
+            assertFalse("Error: query falls back to a scan: " + plan,
+                    detail.startsWith("SCAN ") && !detail.startsWith("SCAN CONSTANT"));
+        }
+    }
+
+    private static boolean contains(List<String> plan, String text) {
+        for (String detail : plan) {
+            if (detail.contains(text)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private double timeQuery(Uri uri, String[] projection, String sortOrder) {
+        long start = System.nanoTime();
+        for (int i = 0; i < QUERY_REPEATS; i++) {
+            Cursor cursor = mContext.getContentResolver().query(uri, projection, null, null,
+                    sortOrder);
+            assertNotNull(cursor);
+            assertTrue(cursor.getCount() > 0);
+            cursor.close();
+        }
+        return (System.nanoTime() - start) / 1e6 / QUERY_REPEATS;
+    }
+
+    // A day a row for every location, and returns the setting of the last one
+    private String insertHistory(long startDate) {
+        String locationSetting = null;
+        for (int location = 0; location < HISTORY_LOCATIONS; location++) {
+            ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+            locationSetting = "history-" + location;
+            locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+            long locationRowId = Long.parseLong(mContext.getContentResolver()
+                    .insert(LocationEntry.CONTENT_URI, locationValues).getLastPathSegment());
+
+            for (int first = 0; first < HISTORY_DAYS; first += MAX_BATCH) {
+                int count = Math.min(MAX_BATCH, HISTORY_DAYS - first);
+                ContentValues[] values = new ContentValues[count];
+                for (int i = 0; i < count; i++) {
+                    values[i] = TestUtilities.createWeatherValues(locationRowId);
+                    values[i].put(WeatherEntry.COLUMN_DATE,
+                            startDate + (first + i) * DAY_IN_MILLIS);
+                }
+                mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+            }
+        }
+        return locationSetting;
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
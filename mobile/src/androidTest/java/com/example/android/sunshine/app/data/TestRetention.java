@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Runs a year or so of made up daily syncs through the provider, the way the sync adapter
+    stores them, and checks that the retention policy keeps the weather, and the database,
+    from growing without end.  call() needs Honeycomb, so older versions skip these.
+ */
+public class TestRetention extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestRetention.class.getSimpleName();
+
+    private static final int FORECAST_DAYS = 14;
+    private static final int LOCATIONS = 5;
+    private static final long NO_SIZE_LIMIT = Long.MAX_VALUE;
+
+    private int mJulianToday;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        mJulianToday = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    // Past days go once they're older than the policy keeps, and a location over its row
+    // limit loses its oldest days, but never any of its forecast
+    public void testDaysAndRowLimits() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        WeatherRetentionPolicy week = new WeatherRetentionPolicy(7, 100, NO_SIZE_LIMIT);
+        for (int day = 0; day < 30; day++) {
+            ingest(week, mJulianToday + day);
+        }
+        int lastDay = mJulianToday + 29;
+        assertRowsPerLocation(FORECAST_DAYS + 7);
+        assertEquals(julianDate(lastDay - 7), queryOldestDate());
+
+        ingest(new WeatherRetentionPolicy(30, FORECAST_DAYS + 3, NO_SIZE_LIMIT), lastDay);
+        assertRowsPerLocation(FORECAST_DAYS + 3);
+        assertEquals(julianDate(lastDay - 3), queryOldestDate());
+
+        // A limit below the forecast's length only takes the history
+        ingest(new WeatherRetentionPolicy(30, 5, NO_SIZE_LIMIT), lastDay);
+        assertRowsPerLocation(FORECAST_DAYS);
+        assertEquals(julianDate(lastDay), queryOldestDate());
+    }
+
+    // With a size limit the oldest days go until the weather fits, and the forecast stays
+    public void testSizeLimit() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        long maxBytes = getUsedBytes() + 16 * 1024;
+        WeatherRetentionPolicy policy = new WeatherRetentionPolicy(365, 1000, maxBytes);
+        for (int day = 0; day < 120; day++) {
+            int julianDay = mJulianToday + day;
+            ingest(policy, julianDay);
+            long usedBytes = getUsedBytes();
+            assertTrue("Error: " + usedBytes + " bytes used on day " + day + ", over the "
+                            + maxBytes + " allowed, with history left to drop",
+                    usedBytes <= maxBytes || queryOldestDate() >= julianDate(julianDay));
+        }
+        assertTrue("Error: the size limit should have dropped some history",
+                queryWeatherCount() < LOCATIONS * (FORECAST_DAYS + 119));
+        assertEquals("Error: the forecast should all be kept",
+                LOCATIONS * FORECAST_DAYS, queryWeatherCount(julianDate(mJulianToday + 119)));
+    }
+
+    // A long run of syncs with daily maintenance settles at one size instead of growing
+    public void testDatabaseSizeStaysBounded() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        WeatherRetentionPolicy policy = new WeatherRetentionPolicy(30,
+                WeatherRetentionPolicy.DEFAULT_MAX_ROWS_PER_LOCATION, NO_SIZE_LIMIT);
+        long settledBytes = 0;
+        for (int day = 0; day < 365; day++) {
+            ingest(policy, mJulianToday + day);
+            if (day % 7 != 6) {
+                continue;
+            }
+            runMaintenance(policy, mJulianToday + day);
+            long databaseBytes = getDatabaseBytes();
+            if (day < 90) {
+                // Still filling up the history
+                settledBytes = Math.max(settledBytes, databaseBytes);
+            } else {
+                assertTrue("Error: the database grew to " + databaseBytes + " bytes on day "
+                                + day + ", from " + settledBytes,
+                        databaseBytes <= settledBytes + settledBytes / 4);
+            }
+        }
+        Log.i(LOG_TAG, "Database settled at " + settledBytes + " bytes, ended at "
+                + getDatabaseBytes());
+        assertEquals(LOCATIONS * (FORECAST_DAYS + 30), queryWeatherCount());
+    }
+
+    // Maintenance moves the database to incremental vacuuming, and hands deleted weather's
+    // pages back to the file system
+    public void testMaintenanceReclaimsSpace() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        WeatherRetentionPolicy keepAll = new WeatherRetentionPolicy(365, 1000, NO_SIZE_LIMIT);
+        for (int day = 0; day < 60; day++) {
+            ingest(keepAll, mJulianToday + day);
+        }
+        runMaintenance(keepAll, mJulianToday + 59);
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+        assertEquals(WeatherDbHelper.AUTO_VACUUM_INCREMENTAL,
+                DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null));
+        db.close();
+
+        long before = getDatabaseBytes();
+        Bundle result = runMaintenance(new WeatherRetentionPolicy(0, 1000, NO_SIZE_LIMIT),
+                mJulianToday + 59);
+        assertEquals(LOCATIONS * 59, result.getInt(WeatherContract.KEY_DELETED_COUNT));
+        assertTrue("Error: maintenance should have freed the deleted rows' pages",
+                result.getLong(WeatherContract.KEY_FREED_BYTES) > 0);
+        assertEquals(before - result.getLong(WeatherContract.KEY_FREED_BYTES),
+                getDatabaseBytes());
+
+        db = new WeatherDbHelper(mContext).getReadableDatabase();
+        assertEquals("Error: pages left on the free list", 0,
+                DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null));
+        db.close();
+    }
+
+    // One sync's worth: every location's forecast from the given day on
+    private void ingest(WeatherRetentionPolicy policy, int julianToday) {
+        ContentValues[] locations = new ContentValues[LOCATIONS];
+        ContentValues[] values = new ContentValues[LOCATIONS * FORECAST_DAYS];
+        for (int i = 0; i < LOCATIONS; i++) {
+            String locationSetting = "retention-" + i;
+            locations[i] = TestUtilities.createNorthPoleLocationValues();
+            locations[i].put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+            for (int day = 0; day < FORECAST_DAYS; day++) {
+                ContentValues value = TestUtilities.createWeatherValues(0);
+                value.remove(WeatherEntry.COLUMN_LOC_KEY);
+                value.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+                value.put(WeatherEntry.COLUMN_DATE, julianDate(julianToday + day));
+                // A forecast that changes from one sync to the next, as they do
+                value.put(WeatherEntry.COLUMN_MAX_TEMP, 60 + (julianToday + day) % 20);
+                values[i * FORECAST_DAYS + day] = value;
+            }
+        }
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.KEY_LOCATIONS, locations);
+        extras.putParcelableArray(WeatherContract.KEY_VALUES, values);
+        policy.putExtras(extras, julianToday);
+        mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_INGEST, null, extras);
+    }
+
+    private Bundle runMaintenance(WeatherRetentionPolicy policy, int julianToday) {
+        Bundle extras = new Bundle();
+        policy.putExtras(extras, julianToday);
+        return mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_RUN_MAINTENANCE, null, extras);
+    }
+
+    private static long julianDate(int julianDay) {
+        return WeatherContract.normalizeDate(new Time().setJulianDay(julianDay));
+    }
+
+    private void assertRowsPerLocation(int expected) {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + WeatherEntry.TABLE_NAME +
+                " GROUP BY " + WeatherEntry.COLUMN_LOC_KEY, null);
+        assertEquals(LOCATIONS, cursor.getCount());
+        while (cursor.moveToNext()) {
+            assertEquals("Error: wrong number of rows for a location", expected,
+                    cursor.getInt(0));
+        }
+        cursor.close();
+        db.close();
+    }
+
+    private long queryOldestDate() {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+        long oldest = DatabaseUtils.longForQuery(db, "SELECT MIN(" + WeatherEntry.COLUMN_DATE +
+                ") FROM " + WeatherEntry.TABLE_NAME, null);
+        db.close();
+        return oldest;
+    }
+
+    private long queryWeatherCount() {
+        return queryWeatherCount(0);
+    }
+
+    // The rows from the given date on
+    private long queryWeatherCount(long startDate) {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+        long count = DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " +
+                WeatherEntry.TABLE_NAME + " WHERE " + WeatherEntry.COLUMN_DATE + " >= ?",
+                new String[]{Long.toString(startDate)});
+        db.close();
+        return count;
+    }
+
+    private long getUsedBytes() {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+        long usedBytes = WeatherDbHelper.getUsedBytes(db);
+        db.close();
+        return usedBytes;
+    }
+
+    private long getDatabaseBytes() {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+        long databaseBytes = WeatherDbHelper.getDatabaseBytes(db);
+        db.close();
+        return databaseBytes;
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
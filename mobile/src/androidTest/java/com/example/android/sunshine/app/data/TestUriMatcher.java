@@ -36,6 +36,17 @@ public class TestUriMatcher extends AndroidTestCase {
     private static final Uri TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(LOCATION_QUERY, TEST_DATE);
     // content://com.example.android.sunshine.app/location"
     private static final Uri TEST_LOCATION_DIR = WeatherContract.LocationEntry.CONTENT_URI;
+    // content://com.example.android.sunshine.app/location/search?q=London"
+    private static final Uri TEST_LOCATION_SEARCH_DIR = WeatherContract.LocationSearchEntry.buildSearchUri("London");
+    // content://com.example.android.sunshine.app/sync_history"
+    private static final Uri TEST_SYNC_HISTORY_DIR = WeatherContract.SyncHistoryEntry.CONTENT_URI;
+    // content://com.example.android.sunshine.app/weather_archive"
+    private static final Uri TEST_WEATHER_ARCHIVE_DIR = WeatherContract.WeatherArchiveEntry.CONTENT_URI;
+    private static final Uri TEST_WEATHER_ARCHIVE_WITH_LOCATION_DIR = WeatherContract.WeatherArchiveEntry.buildArchiveLocationWithDateRange(LOCATION_QUERY, TEST_DATE, TEST_DATE);
+    private static final Uri TEST_WEATHER_DISPLAY_WITH_LOCATION_DIR = WeatherContract.WeatherDisplayEntry.buildDisplayLocationWithStartDate(LOCATION_QUERY, TEST_DATE, 1);
+    private static final Uri TEST_WEATHER_DISPLAY_WITH_LOCATION_AND_DATE_DIR = WeatherContract.WeatherDisplayEntry.buildDisplayLocationWithDate(LOCATION_QUERY, TEST_DATE);
+    // content://com.example.android.sunshine.app/weather/London,%20UK/summary"
+    private static final Uri TEST_WEATHER_SUMMARY_WITH_LOCATION_DIR = WeatherContract.WeatherSummaryEntry.buildSummaryLocationWithDateRange(LOCATION_QUERY, TEST_DATE, TEST_DATE);
 
     /*
         Students: This function tests that your UriMatcher returns the correct integer value
@@ -53,5 +64,19 @@ public class TestUriMatcher extends AndroidTestCase {
                 testMatcher.match(TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR), WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE);
         assertEquals("Error: The LOCATION URI was matched incorrectly.",
                 testMatcher.match(TEST_LOCATION_DIR), WeatherProvider.LOCATION);
+        assertEquals("Error: The LOCATION SEARCH URI was matched incorrectly.",
+                testMatcher.match(TEST_LOCATION_SEARCH_DIR), WeatherProvider.LOCATION_SEARCH);
+        assertEquals("Error: The SYNC HISTORY URI was matched incorrectly.",
+                testMatcher.match(TEST_SYNC_HISTORY_DIR), WeatherProvider.SYNC_HISTORY);
+        assertEquals("Error: The WEATHER ARCHIVE URI was matched incorrectly.",
+                testMatcher.match(TEST_WEATHER_ARCHIVE_DIR), WeatherProvider.WEATHER_ARCHIVE);
+        assertEquals("Error: The WEATHER ARCHIVE WITH LOCATION URI was matched incorrectly.",
+                testMatcher.match(TEST_WEATHER_ARCHIVE_WITH_LOCATION_DIR), WeatherProvider.WEATHER_ARCHIVE_WITH_LOCATION);
+        assertEquals("Error: The WEATHER DISPLAY WITH LOCATION URI was matched incorrectly.",
+                testMatcher.match(TEST_WEATHER_DISPLAY_WITH_LOCATION_DIR), WeatherProvider.WEATHER_DISPLAY_WITH_LOCATION);
+        assertEquals("Error: The WEATHER DISPLAY WITH LOCATION AND DATE URI was matched incorrectly.",
+                testMatcher.match(TEST_WEATHER_DISPLAY_WITH_LOCATION_AND_DATE_DIR), WeatherProvider.WEATHER_DISPLAY_WITH_LOCATION_AND_DATE);
+        assertEquals("Error: The WEATHER SUMMARY WITH LOCATION URI was matched incorrectly.",
+                testMatcher.match(TEST_WEATHER_SUMMARY_WITH_LOCATION_DIR), WeatherProvider.WEATHER_SUMMARY_WITH_LOCATION);
     }
 }
@@ -23,10 +23,13 @@ import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.test.AndroidTestCase;
 
 import com.example.android.sunshine.app.utils.PollingCheck;
 
+import junit.framework.Assert;
+
 import java.util.Map;
 import java.util.Set;
 
@@ -158,6 +161,14 @@ public class TestUtilities extends AndroidTestCase {
             }.run();
             mHT.quit();
         }
+
+        // The reverse of waitForNotificationOrFail, for writes that shouldn't notify anyone.
+        // It gives the provider the same time to send a notification before checking.
+        public void assertNoNotification() {
+            SystemClock.sleep(1000);
+            mHT.quit();
+            Assert.assertFalse("Error: unexpected change notification", mContentChanged);
+        }
     }
 
     static TestContentObserver getTestContentObserver() {
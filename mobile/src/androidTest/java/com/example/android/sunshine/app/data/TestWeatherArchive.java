@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherArchiveEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+    Checks that past weather packed into the archive reads back as it went in, and measures
+    how much smaller it is, and how quickly a range of days reads, against the weather table.
+    Archiving happens in call(), which needs Honeycomb, so older versions skip those tests.
+ */
+public class TestWeatherArchive extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestWeatherArchive.class.getSimpleName();
+
+    private static final long NO_SIZE_LIMIT = Long.MAX_VALUE;
+    private static final int HISTORY_LOCATIONS = 10;
+    private static final int HISTORY_DAYS = 2 * 365;
+    private static final int RANGE_DAYS = 90;
+    private static final int QUERY_REPEATS = 20;
+
+    private static final String[] WEATHER_COLUMNS = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    private int mJulianToday;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        mJulianToday = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    // Every value comes back as it went in, to two decimal places, whatever its sign or size
+    public void testCodecRoundTrip() {
+        Time dayTime = new Time();
+        int firstOfMonth = ArchiveCodec.firstOfMonth(mJulianToday, dayTime);
+        List<ArchiveCodec.Day> days = new ArrayList<ArchiveCodec.Day>();
+        days.add(new ArchiveCodec.Day(firstOfMonth, 800, "Clear",
+                new double[]{-12.34, 3.5, 81, 1013.25, 4.1, 350}));
+        days.add(new ArchiveCodec.Day(firstOfMonth + 1, 500, "Rain",
+                new double[]{-40, 45.67, 0, 870.01, 0, 0}));
+        days.add(new ArchiveCodec.Day(firstOfMonth + 3, 800, "Clear",
+                new double[]{1e6, -1e6, 100, 1084.99, 113.2, 359.99}));
+        days.add(new ArchiveCodec.Day(firstOfMonth + 27, 601, "Snow",
+                new double[]{0, 0, 0, 0, 0, 0}));
+
+        byte[] data = ArchiveCodec.encode(days, firstOfMonth);
+        List<ArchiveCodec.Day> decoded = ArchiveCodec.decode(data, firstOfMonth);
+        assertEquals(days.size(), decoded.size());
+        for (int i = 0; i < days.size(); i++) {
+            ArchiveCodec.Day expected = days.get(i);
+            ArchiveCodec.Day actual = decoded.get(i);
+            assertEquals(expected.julianDay, actual.julianDay);
+            assertEquals(expected.weatherId, actual.weatherId);
+            assertEquals(expected.shortDesc, actual.shortDesc);
+            for (int column = 0; column < ArchiveCodec.NUMERIC_COLUMNS.length; column++) {
+                assertEquals("Error: " + ArchiveCodec.NUMERIC_COLUMNS[column] + " of day " + i,
+                        expected.values[column], actual.values[column], 0.001);
+            }
+        }
+    }
+
+    // Past days leave the weather table for the archive, and read back from it by date, a
+    // month that is archived twice keeps the days of both, and old months expire
+    public void testArchivedDaysReadBack() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        long locationId = insertLocation("archive-0");
+        int firstDay = mJulianToday - 100;
+        insertHistory(locationId, firstDay, 114, new Random(42));
+        ContentValues[] expected = queryWeather(locationId);
+
+        WeatherRetentionPolicy policy = new WeatherRetentionPolicy(0, 1000, NO_SIZE_LIMIT, 12);
+        Bundle result = runMaintenance(policy, mJulianToday);
+        assertEquals(100, result.getInt(WeatherContract.KEY_ARCHIVED_COUNT));
+        assertEquals(100, result.getInt(WeatherContract.KEY_DELETED_COUNT));
+        assertEquals("Error: only the forecast should be left in the weather table",
+                14, queryWeather(locationId).length);
+
+        Uri all = WeatherArchiveEntry.buildArchiveLocationWithDateRange("archive-0",
+                julianDate(firstDay), julianDate(mJulianToday));
+        assertArchived(expected, 0, 100, all);
+
+        // A range that starts and ends in the middle of months
+        Uri range = WeatherArchiveEntry.buildArchiveLocationWithDateRange("archive-0",
+                julianDate(firstDay + 20), julianDate(firstDay + 69));
+        assertArchived(expected, 20, 50, range);
+
+        // A few days later, more of the current month is merged in with what it had
+        runMaintenance(policy, mJulianToday + 5);
+        assertArchived(expected, 0, 105, WeatherArchiveEntry.buildArchiveLocation("archive-0"));
+
+        // A policy that keeps one month before this one drops the months before that
+        WeatherRetentionPolicy oneMonth = new WeatherRetentionPolicy(0, 1000, NO_SIZE_LIMIT, 1);
+        Bundle extras = new Bundle();
+        oneMonth.putExtras(extras, mJulianToday + 5);
+        long archiveStart = extras.getLong(WeatherContract.KEY_ARCHIVE_START_DATE);
+        runMaintenance(oneMonth, mJulianToday + 5);
+        Cursor months = mContext.getContentResolver().query(WeatherArchiveEntry.CONTENT_URI,
+                new String[]{WeatherArchiveEntry.COLUMN_MONTH}, null, null, null);
+        assertTrue("Error: wrong number of archived months: " + months.getCount(),
+                months.getCount() >= 1 && months.getCount() <= 2);
+        while (months.moveToNext()) {
+            assertTrue("Error: an expired month is still archived",
+                    months.getLong(0) >= archiveStart);
+        }
+        months.close();
+    }
+
+    // Two years of a few locations' history, as rows and then archived
+    public void testStorageAndRangeScan() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        int firstDay = mJulianToday - HISTORY_DAYS;
+        Random random = new Random(7);
+        String busiest = null;
+        long busiestId = 0;
+        for (int i = 0; i < HISTORY_LOCATIONS; i++) {
+            busiest = "archive-" + i;
+            busiestId = insertLocation(busiest);
+            insertHistory(busiestId, firstDay, HISTORY_DAYS, random);
+        }
+
+        // Vacuumed first, so both sizes are of pages in use alone
+        WeatherRetentionPolicy keepAll =
+                new WeatherRetentionPolicy(HISTORY_DAYS + 1, 10000, NO_SIZE_LIMIT);
+        runMaintenance(keepAll, mJulianToday);
+        long rowBytes = getUsedBytes();
+        long rangeStart = julianDate(mJulianToday - RANGE_DAYS - 30);
+        long rangeEnd = julianDate(mJulianToday - 31);
+        // Straight from the table, since the weather by location queries are cached
+        double rowRange = timeQuery(WeatherEntry.CONTENT_URI, WeatherEntry.COLUMN_LOC_KEY +
+                " = ? AND " + WeatherEntry.COLUMN_DATE + " >= ? AND " + WeatherEntry.COLUMN_DATE +
+                " <= ?", new String[]{Long.toString(busiestId), Long.toString(rangeStart),
+                Long.toString(rangeEnd)});
+
+        Bundle result = runMaintenance(new WeatherRetentionPolicy(0, 10000, NO_SIZE_LIMIT, 36),
+                mJulianToday);
+        assertEquals(HISTORY_LOCATIONS * HISTORY_DAYS,
+                result.getInt(WeatherContract.KEY_ARCHIVED_COUNT));
+        long archiveBytes = getUsedBytes();
+        double archiveRange = timeQuery(WeatherArchiveEntry.buildArchiveLocationWithDateRange(
+                busiest, rangeStart, rangeEnd), null, null);
+
+        Log.i(LOG_TAG, String.format("%d days: %d bytes as rows, %d bytes archived; "
+                        + "%d day range %.2fms from rows, %.2fms from the archive",
+                HISTORY_LOCATIONS * HISTORY_DAYS, rowBytes, archiveBytes, RANGE_DAYS,
+                rowRange, archiveRange));
+        assertTrue("Error: the archive should take far less space than the rows: "
+                        + archiveBytes + " bytes against " + rowBytes,
+                archiveBytes * 4 < rowBytes);
+    }
+
+    private void assertArchived(ContentValues[] expected, int first, int count, Uri uri) {
+        Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+        assertEquals("Error: wrong number of archived days for " + uri, count, cursor.getCount());
+        for (int i = first; cursor.moveToNext(); i++) {
+            assertEquals(cursor.getLong(cursor.getColumnIndex(WeatherEntry.COLUMN_DATE)),
+                    cursor.getLong(cursor.getColumnIndex(WeatherArchiveEntry._ID)));
+            for (String column : WEATHER_COLUMNS) {
+                int index = cursor.getColumnIndex(column);
+                assertTrue("Error: no column " + column, index != -1);
+                Object value = expected[i].get(column);
+                if (value instanceof Number) {
+                    assertEquals("Error: " + column + " of day " + i,
+                            ((Number) value).doubleValue(), cursor.getDouble(index), 0.001);
+                } else {
+                    assertEquals("Error: " + column + " of day " + i, value.toString(),
+                            cursor.getString(index));
+                }
+            }
+        }
+        cursor.close();
+    }
+
+    // A day a row from the first day, with weather that changes like the real thing
+    private void insertHistory(long locationId, int firstDay, int days, Random random) {
+        ContentValues[] values = new ContentValues[days];
+        double max = 15;
+        double pressure = 1013;
+        for (int i = 0; i < days; i++) {
+            max += random.nextInt(401) / 100.0 - 2;
+            pressure += random.nextInt(601) / 100.0 - 3;
+            boolean rain = random.nextInt(4) == 0;
+            values[i] = new ContentValues();
+            values[i].put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+            values[i].put(WeatherEntry.COLUMN_DATE, julianDate(firstDay + i));
+            values[i].put(WeatherEntry.COLUMN_WEATHER_ID, rain ? 500 : 800);
+            values[i].put(WeatherEntry.COLUMN_SHORT_DESC, rain ? "Rain" : "Clear");
+            values[i].put(WeatherEntry.COLUMN_MAX_TEMP, max);
+            values[i].put(WeatherEntry.COLUMN_MIN_TEMP, max - random.nextInt(1001) / 100.0);
+            values[i].put(WeatherEntry.COLUMN_HUMIDITY, random.nextInt(101));
+            values[i].put(WeatherEntry.COLUMN_PRESSURE, pressure);
+            values[i].put(WeatherEntry.COLUMN_WIND_SPEED, random.nextInt(2001) / 100.0);
+            values[i].put(WeatherEntry.COLUMN_DEGREES, random.nextInt(360));
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+    }
+
+    private long insertLocation(String locationSetting) {
+        ContentValues location = TestUtilities.createNorthPoleLocationValues();
+        location.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        return Long.parseLong(mContext.getContentResolver()
+                .insert(LocationEntry.CONTENT_URI, location).getLastPathSegment());
+    }
+
+    // The location's weather rows, by date
+    private ContentValues[] queryWeather(long locationId) {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                WEATHER_COLUMNS, WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(locationId)}, WeatherEntry.COLUMN_DATE + " ASC");
+        ContentValues[] values = new ContentValues[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            values[i] = new ContentValues();
+            values[i].put(WeatherEntry.COLUMN_DATE, cursor.getLong(0));
+            values[i].put(WeatherEntry.COLUMN_WEATHER_ID, cursor.getInt(1));
+            values[i].put(WeatherEntry.COLUMN_SHORT_DESC, cursor.getString(2));
+            for (int column = 3; column < WEATHER_COLUMNS.length; column++) {
+                values[i].put(WEATHER_COLUMNS[column], cursor.getDouble(column));
+            }
+        }
+        cursor.close();
+        return values;
+    }
+
+    private Bundle runMaintenance(WeatherRetentionPolicy policy, int julianToday) {
+        Bundle extras = new Bundle();
+        policy.putExtras(extras, julianToday);
+        return mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_RUN_MAINTENANCE, null, extras);
+    }
+
+    private double timeQuery(Uri uri, String selection, String[] selectionArgs) {
+        long start = System.nanoTime();
+        for (int i = 0; i < QUERY_REPEATS; i++) {
+            Cursor cursor = mContext.getContentResolver().query(uri, WEATHER_COLUMNS, selection,
+                    selectionArgs, WeatherEntry.COLUMN_DATE + " ASC");
+            assertEquals(RANGE_DAYS, cursor.getCount());
+            // Read every value, as a chart would
+            while (cursor.moveToNext()) {
+                for (int column = 0; column < WEATHER_COLUMNS.length; column++) {
+                    cursor.getString(column);
+                }
+            }
+            cursor.close();
+        }
+        return (System.nanoTime() - start) / 1e6 / QUERY_REPEATS;
+    }
+
+    private static long julianDate(int julianDay) {
+        return WeatherContract.normalizeDate(new Time().setJulianDay(julianDay));
+    }
+
+    private long getUsedBytes() {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+        long usedBytes = WeatherDbHelper.getUsedBytes(db);
+        db.close();
+        return usedBytes;
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherArchiveEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
@@ -42,4 +42,22 @@ public class TestWeatherContract extends AndroidTestCase {
                 locationUri.toString(),
                 "content://com.example.android.sunshine.app/weather/%2FNorth%20Pole");
     }
+
+    public void testBuildWeatherLocationWithLimitAndRange() {
+        Uri limitUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                TEST_WEATHER_LOCATION, TEST_WEATHER_DATE, 1);
+        assertEquals(TEST_WEATHER_LOCATION,
+                WeatherContract.WeatherEntry.getLocationSettingFromUri(limitUri));
+        assertEquals(WeatherContract.normalizeDate(TEST_WEATHER_DATE),
+                WeatherContract.WeatherEntry.getStartDateFromUri(limitUri));
+        assertEquals(1, WeatherContract.WeatherEntry.getLimitFromUri(limitUri));
+        assertEquals(0, WeatherContract.WeatherEntry.getEndDateFromUri(limitUri));
+
+        long endDate = TEST_WEATHER_DATE + 2 * 24 * 60 * 60 * 1000;
+        Uri rangeUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDateRange(
+                TEST_WEATHER_LOCATION, TEST_WEATHER_DATE, endDate);
+        assertEquals(WeatherContract.normalizeDate(endDate),
+                WeatherContract.WeatherEntry.getEndDateFromUri(rangeUri));
+        assertEquals(0, WeatherContract.WeatherEntry.getLimitFromUri(rangeUri));
+    }
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherDisplayEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Checks that the display table follows every kind of write to the weather table, holds the
+    strings the app used to format as it drew them, in both units, and is formatted again
+    once it has gone stale.
+ */
+public class TestWeatherDisplay extends AndroidTestCase {
+
+    private static final int DAYS = 3;
+
+    private static final String[] DISPLAY_COLUMNS = {
+            WeatherDisplayEntry._ID,
+            WeatherDisplayEntry.COLUMN_DATE,
+            WeatherDisplayEntry.COLUMN_ICON_RES,
+            WeatherDisplayEntry.COLUMN_FRIENDLY_DATE,
+            WeatherDisplayEntry.COLUMN_DESCRIPTION,
+            WeatherDisplayEntry.COLUMN_HIGH,
+            WeatherDisplayEntry.COLUMN_LOW,
+            WeatherDisplayEntry.COLUMN_A11Y_HIGH,
+            LocationEntry.COLUMN_LOCATION_SETTING
+    };
+
+    private long mLocationId;
+    private int mJulianToday;
+    private long mToday;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        mJulianToday = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+        mToday = getDate(0);
+        mLocationId = Long.parseLong(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues())
+                .getLastPathSegment());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    // Inserts, updates and deletes all reach the display rows
+    public void testDisplayFollowsWrites() {
+        ContentValues[] values = new ContentValues[DAYS];
+        for (int i = 0; i < DAYS; i++) {
+            values[i] = TestUtilities.createWeatherValues(mLocationId);
+            values[i].put(WeatherEntry.COLUMN_DATE, getDate(i));
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+
+        Cursor cursor = queryDisplay();
+        assertEquals("Error: a display row for every weather row", DAYS, cursor.getCount());
+        for (int i = 0; cursor.moveToNext(); i++) {
+            assertEquals(getDate(i), cursor.getLong(1));
+            assertEquals(Utility.getIconResourceForWeatherCondition(321), cursor.getInt(2));
+            assertEquals(Utility.getFriendlyDayString(mContext, getDate(i), false),
+                    cursor.getString(3));
+            assertEquals(Utility.getStringForWeatherCondition(mContext, 321),
+                    cursor.getString(4));
+            String high = Utility.formatTemperature(mContext, 75);
+            assertEquals(high, cursor.getString(5));
+            assertEquals(Utility.formatTemperature(mContext, 65), cursor.getString(6));
+            assertEquals(mContext.getString(R.string.a11y_high_temp, high), cursor.getString(7));
+            assertEquals(TestUtilities.TEST_LOCATION, cursor.getString(8));
+        }
+        cursor.close();
+
+        ContentValues update = new ContentValues();
+        update.put(WeatherEntry.COLUMN_MAX_TEMP, 80);
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, update,
+                WeatherEntry.COLUMN_DATE + " = ?", new String[]{Long.toString(getDate(1))});
+        cursor = mContext.getContentResolver().query(WeatherDisplayEntry
+                .buildDisplayLocationWithDate(TestUtilities.TEST_LOCATION, getDate(1)),
+                DISPLAY_COLUMNS, null, null, null);
+        assertTrue("Error: the updated day has no display row", cursor.moveToFirst());
+        assertEquals(Utility.formatTemperature(mContext, 80), cursor.getString(5));
+        cursor.close();
+
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_DATE + " = ?", new String[]{Long.toString(getDate(0))});
+        cursor = queryDisplay();
+        assertEquals("Error: a deleted day kept its display row", DAYS - 1, cursor.getCount());
+        cursor.close();
+    }
+
+    // The table keeps both units, whichever the user has picked
+    public void testBothUnitsStored() {
+        ContentValues weather = TestUtilities.createWeatherValues(mLocationId);
+        weather.put(WeatherEntry.COLUMN_DATE, mToday);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, weather);
+
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+        Cursor cursor = db.query(WeatherDisplayEntry.TABLE_NAME, null, null, null, null, null,
+                null);
+        assertTrue("Error: no display row for the inserted weather", cursor.moveToFirst());
+        for (boolean isMetric : new boolean[]{true, false}) {
+            String suffix = isMetric
+                    ? WeatherDisplayEntry.SUFFIX_METRIC : WeatherDisplayEntry.SUFFIX_IMPERIAL;
+            assertEquals(Utility.formatTemperature(mContext, 75, isMetric), cursor.getString(
+                    cursor.getColumnIndex(WeatherDisplayEntry.COLUMN_HIGH + suffix)));
+            assertEquals(Utility.getFormattedWind(mContext, 5.5f, 1.1f, isMetric),
+                    cursor.getString(cursor.getColumnIndex(
+                            WeatherDisplayEntry.COLUMN_WIND + suffix)));
+        }
+        cursor.close();
+        db.close();
+    }
+
+    // Rows formatted for another locale or another build are formatted again on the next read
+    public void testStaleRowsAreFormattedAgain() {
+        ContentValues weather = TestUtilities.createWeatherValues(mLocationId);
+        weather.put(WeatherEntry.COLUMN_DATE, mToday);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, weather);
+
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        ContentValues stale = new ContentValues();
+        stale.put(WeatherDisplayEntry.COLUMN_FRIENDLY_DATE, "stale");
+        assertEquals(1, db.update(WeatherDisplayEntry.TABLE_NAME, stale, null, null));
+        db.close();
+        WeatherDisplayBuilder.invalidate(mContext);
+
+        Cursor cursor = queryDisplay();
+        assertTrue(cursor.moveToFirst());
+        assertEquals(Utility.getFriendlyDayString(mContext, mToday, false), cursor.getString(3));
+        cursor.close();
+    }
+
+    // A read formats only its own location's stale rows; the maintenance job does the rest
+    public void testReadFormatsOnlyItsLocation() {
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, "other");
+        long otherLocationId = Long.parseLong(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, otherLocation).getLastPathSegment());
+        for (long locationId : new long[]{mLocationId, otherLocationId}) {
+            ContentValues weather = TestUtilities.createWeatherValues(locationId);
+            weather.put(WeatherEntry.COLUMN_DATE, mToday);
+            mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, weather);
+        }
+
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        ContentValues stale = new ContentValues();
+        stale.put(WeatherDisplayEntry.COLUMN_FRIENDLY_DATE, "stale");
+        assertEquals(2, db.update(WeatherDisplayEntry.TABLE_NAME, stale, null, null));
+        WeatherDisplayBuilder.invalidate(mContext);
+
+        String friendlyDate = Utility.getFriendlyDayString(mContext, mToday, false);
+        Cursor cursor = queryDisplay();
+        assertTrue(cursor.moveToFirst());
+        assertEquals(friendlyDate, cursor.getString(3));
+        cursor.close();
+        assertEquals("Error: a read formatted another location's rows",
+                "stale", getFriendlyDate(db, otherLocationId));
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                    WeatherContract.METHOD_RUN_MAINTENANCE, null, null);
+            assertEquals(friendlyDate, getFriendlyDate(db, otherLocationId));
+        }
+        db.close();
+    }
+
+    private static String getFriendlyDate(SQLiteDatabase db, long locationId) {
+        Cursor cursor = db.query(WeatherDisplayEntry.TABLE_NAME,
+                new String[]{WeatherDisplayEntry.COLUMN_FRIENDLY_DATE},
+                WeatherDisplayEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(locationId)}, null, null, null);
+        try {
+            assertTrue("Error: no display row for location " + locationId, cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Cursor queryDisplay() {
+        Uri uri = WeatherDisplayEntry.buildDisplayLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, mToday);
+        Cursor cursor = mContext.getContentResolver().query(uri, DISPLAY_COLUMNS, null, null,
+                WeatherDisplayEntry.COLUMN_DATE + " ASC");
+        assertNotNull(cursor);
+        return cursor;
+    }
+
+    private long getDate(int day) {
+        return WeatherContract.normalizeDate(new Time().setJulianDay(mJulianToday + day));
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
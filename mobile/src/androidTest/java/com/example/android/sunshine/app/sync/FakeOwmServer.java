@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    A stand-in for the OpenWeatherMap daily forecast endpoint, listening on localhost.  Each
+    request is answered on its own thread after a configurable delay.
+
+    By default the body comes from ForecastPayloads.createForecastJson for the city in the "q"
+    parameter, so the same city always gets the same forecast.  A fixed body (such as a recorded
+    one) can be set instead, or the forecast can change with every request.  The server can
+    also be told to misbehave: answer with an HTTP error, with OWM's "cod 404" body, with a
+    truncated body, or with nothing at all.  With ETags turned on it answers matching
+    conditional requests with 304.
+ */
+public class FakeOwmServer {
+
+    public static final int MODE_OK = 0;
+    // HTTP 500 with no body
+    public static final int MODE_HTTP_ERROR = 1;
+    // HTTP 200 with OWM's {"cod":"404"} body for an unknown city
+    public static final int MODE_NOT_FOUND_CODE = 2;
+    // HTTP 200 with only the first half of the body, and a Content-Length to match
+    public static final int MODE_TRUNCATED = 3;
+    // HTTP 200 with an empty body
+    public static final int MODE_EMPTY = 4;
+
+    private final ServerSocket mServerSocket;
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mNotModifiedCount = new AtomicInteger();
+
+    private volatile long mLatencyMillis;
+    private volatile int mMode = MODE_OK;
+    private volatile String mFixedBody;
+    private volatile boolean mChangingForecast;
+    private volatile boolean mEtags;
+
+    public FakeOwmServer(long latencyMillis) throws IOException {
+        mLatencyMillis = latencyMillis;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "FakeOwmServer").start();
+    }
+
+    /**
+     * The URL to use in place of the OpenWeatherMap forecast URL.
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/data/2.5/forecast/daily?";
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public int getNotModifiedCount() {
+        return mNotModifiedCount.get();
+    }
+
+    public void setLatency(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+    }
+
+    public void setMode(int mode) {
+        mMode = mode;
+    }
+
+    // Serve this body for every city, or go back to generated ones if null
+    public void setFixedBody(String body) {
+        mFixedBody = body;
+    }
+
+    // Give every response a different forecast, so each sync has something to write
+    public void setChangingForecast(boolean changing) {
+        mChangingForecast = changing;
+    }
+
+    public void setEtags(boolean etags) {
+        mEtags = etags;
+    }
+
+    public void shutdown() throws IOException {
+        mServerSocket.close();
+    }
+
+    private void acceptLoop() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(socket);
+                    }
+                }).start();
+            } catch (IOException e) {
+                // The server socket was closed
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            String requestLine = reader.readLine();
+            String ifNoneMatch = null;
+            String line;
+            while ((line = reader.readLine()) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("If-None-Match")) {
+                    ifNoneMatch = line.substring(colon + 1).trim();
+                }
+            }
+            int request = mRequestCount.incrementAndGet();
+
+            String city = "Unknown";
+            if (requestLine != null) {
+                String[] parts = requestLine.split(" ");
+                if (parts.length > 1) {
+                    String q = Uri.parse(parts[1]).getQueryParameter("q");
+                    if (q != null) {
+                        city = q;
+                    }
+                }
+            }
+
+            Thread.sleep(mLatencyMillis);
+
+            OutputStream out = socket.getOutputStream();
+            int mode = mMode;
+            if (mode == MODE_HTTP_ERROR) {
+                respond(out, "500 Internal Server Error", null, new byte[0]);
+                return;
+            }
+
+            String body;
+            if (mode == MODE_NOT_FOUND_CODE) {
+                body = ForecastPayloads.NOT_FOUND;
+            } else if (mode == MODE_EMPTY) {
+                body = "";
+            } else if (mFixedBody != null) {
+                body = mFixedBody;
+            } else {
+                int seed = city.hashCode() & 0xff;
+                if (mChangingForecast) {
+                    seed += request;
+                }
+                body = ForecastPayloads.createForecastJson(city, 14, seed);
+            }
+            if (mode == MODE_TRUNCATED) {
+                body = body.substring(0, body.length() / 2);
+            }
+
+            String etag = null;
+            if (mEtags) {
+                etag = "\"" + Integer.toHexString(body.hashCode()) + "\"";
+                if (etag.equals(ifNoneMatch)) {
+                    mNotModifiedCount.incrementAndGet();
+                    respond(out, "304 Not Modified", etag, null);
+                    return;
+                }
+            }
+            respond(out, "200 OK", etag, body.getBytes("UTF-8"));
+        } catch (IOException | InterruptedException e) {
+            // The client went away, or we're shutting down
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing more to do
+            }
+        }
+    }
+
+    // A null body means the status doesn't allow one
+    private static void respond(OutputStream out, String status, String etag, byte[] body)
+            throws IOException {
+        StringBuilder headers = new StringBuilder("HTTP/1.1 ").append(status).append("\r\n");
+        if (etag != null) {
+            headers.append("ETag: ").append(etag).append("\r\n");
+        }
+        if (body != null) {
+            headers.append("Content-Type: application/json; charset=utf-8\r\n")
+                    .append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        headers.append("Connection: close\r\n\r\n");
+        out.write(headers.toString().getBytes("UTF-8"));
+        if (body != null) {
+            out.write(body);
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.util.Locale;
+
+/*
+    OpenWeatherMap daily forecast bodies for the sync tests.  RECORDED_94043 is a response
+    captured from the live API (trimmed to three days); createForecastJson builds bodies of the
+    same shape, including all of the fields the parser has to skip, for any number of days.
+ */
+public class ForecastPayloads {
+
+    static final String RECORDED_94043 =
+            "{\"city\":{\"id\":5375480,\"name\":\"Mountain View\",\"coord\":{\"lon\":-122.083847," +
+            "\"lat\":37.386051},\"country\":\"US\",\"population\":0},\"cod\":\"200\"," +
+            "\"message\":0.0123,\"cnt\":3,\"list\":[" +
+            "{\"dt\":1446580800,\"temp\":{\"day\":18.47,\"min\":9.12,\"max\":19.91,\"night\":9.12," +
+            "\"eve\":15.36,\"morn\":11.43},\"pressure\":1004.81,\"humidity\":84,\"weather\":[{\"id\":500," +
+            "\"main\":\"Rain\",\"description\":\"light rain\",\"icon\":\"10d\"}],\"speed\":2.96," +
+            "\"deg\":285,\"clouds\":48,\"rain\":0.52}," +
+            "{\"dt\":1446667200,\"temp\":{\"day\":16.59,\"min\":6.94,\"max\":17.45,\"night\":6.94," +
+            "\"eve\":13.2,\"morn\":7.27},\"pressure\":1010.51,\"humidity\":75,\"weather\":[{\"id\":800," +
+            "\"main\":\"Clear\",\"description\":\"sky is clear\",\"icon\":\"01d\"}],\"speed\":1.61," +
+            "\"deg\":318,\"clouds\":0}," +
+            "{\"dt\":1446753600,\"temp\":{\"day\":17.08,\"min\":6.05,\"max\":18.12,\"night\":8.4," +
+            "\"eve\":14.79,\"morn\":6.05},\"pressure\":1011.27,\"humidity\":71,\"weather\":[{\"id\":802," +
+            "\"main\":\"Clouds\",\"description\":\"scattered clouds\",\"icon\":\"03d\"}],\"speed\":1.31," +
+            "\"deg\":329,\"clouds\":36}]}";
+
+    static final String NOT_FOUND =
+            "{\"cod\":\"404\",\"message\":\"Error: Not found city\"}";
+
+    private static final int[] WEATHER_IDS = {500, 800, 802, 211, 601, 741, 804, 300};
+    private static final String[] WEATHER_MAINS =
+            {"Rain", "Clear", "Clouds", "Thunderstorm", "Snow", "Fog", "Clouds", "Drizzle"};
+
+    /**
+     * Builds a forecast body for the given city with the requested number of days.  The values
+     * only depend on the arguments, so two calls with the same arguments return the same body.
+     */
+    static String createForecastJson(String cityName, int days, int seed) {
+        StringBuilder sb = new StringBuilder(400 + 320 * days);
+        sb.append("{\"city\":{\"id\":").append(5375480 + seed)
+                .append(",\"name\":\"").append(cityName)
+                .append("\",\"coord\":{\"lon\":").append(-122.083847 + seed * 0.01)
+                .append(",\"lat\":").append(37.386051 - seed * 0.01)
+                .append("},\"country\":\"US\",\"population\":0},\"cod\":\"200\",")
+                .append("\"message\":0.0123,\"cnt\":").append(days).append(",\"list\":[");
+        for (int i = 0; i < days; i++) {
+            int w = (i + seed) % WEATHER_IDS.length;
+            double min = 5 + ((i * 7 + seed) % 11) + 0.25;
+            double max = min + 6 + (i % 5) + 0.5;
+            if (i > 0) sb.append(',');
+            sb.append("{\"dt\":").append(1446580800L + 86400L * i)
+                    .append(",\"temp\":{\"day\":").append(fmt(max - 1))
+                    .append(",\"min\":").append(fmt(min))
+                    .append(",\"max\":").append(fmt(max))
+                    .append(",\"night\":").append(fmt(min + 1))
+                    .append(",\"eve\":").append(fmt(max - 3))
+                    .append(",\"morn\":").append(fmt(min + 2))
+                    .append("},\"pressure\":").append(fmt(1000 + (i * 3 + seed) % 25 + 0.81))
+                    .append(",\"humidity\":").append(60 + (i * 5 + seed) % 35)
+                    .append(",\"weather\":[{\"id\":").append(WEATHER_IDS[w])
+                    .append(",\"main\":\"").append(WEATHER_MAINS[w])
+                    .append("\",\"description\":\"").append(WEATHER_MAINS[w].toLowerCase(Locale.US))
+                    .append("\",\"icon\":\"10d\"}],\"speed\":").append(fmt(1 + (i % 7) * 0.45))
+                    .append(",\"deg\":").append((i * 37 + seed * 13) % 360)
+                    .append(",\"clouds\":").append((i * 11) % 100)
+                    .append('}');
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    private static String fmt(double value) {
+        return String.format(Locale.US, "%.2f", value);
+    }
+}
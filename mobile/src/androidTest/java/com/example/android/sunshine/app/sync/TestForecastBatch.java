@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Fetches several locations from a local stand-in server with a fixed response delay, and
+    checks that the parallel fetch scales better than one request after another.
+ */
+public class TestForecastBatch extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastBatch.class.getSimpleName();
+
+    private static final long SERVER_LATENCY_MILLIS = 300;
+
+    private FakeOwmServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new FakeOwmServer(SERVER_LATENCY_MILLIS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testFetchAllReturnsEveryLocationInOrder() throws Exception {
+        List<String> locations = locations(6);
+        ForecastBatch.Result[] results = fetchAll(locations);
+
+        assertEquals(6, mServer.getRequestCount());
+        assertEquals(6, results.length);
+        for (int i = 0; i < results.length; i++) {
+            assertNull("Error: fetch failed for " + locations.get(i), results[i].error);
+            assertEquals(locations.get(i), results[i].locationSetting);
+            assertEquals(locations.get(i), results[i].response.forecast.cityName);
+            assertEquals(14, results[i].response.forecast.days.size());
+        }
+    }
+
+    public void testSyncTimeGrowsSubLinearly() throws Exception {
+        long one = timeFetchAll(1);
+        long eight = timeFetchAll(8);
+        Log.i(LOG_TAG, "1 location: " + one + "ms, 8 locations: " + eight + "ms");
+
+        // Eight locations one after another would take eight times as long.  With four at a
+        // time, it takes about twice as long; allow plenty of room for a slow device.
+        assertTrue("Error: 8 locations took " + eight + "ms, 1 took " + one + "ms",
+                eight < one * 4);
+    }
+
+    public void testRateLimiterSpacesRequests() throws Exception {
+        RateLimiter limiter = new RateLimiter(10, 2);
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < 4; i++) {
+            limiter.acquire();
+        }
+        // Two go through at once, the other two wait 100ms each
+        assertTrue(SystemClock.elapsedRealtime() - start >= 180);
+    }
+
+    private long timeFetchAll(int count) throws Exception {
+        long start = SystemClock.elapsedRealtime();
+        ForecastBatch.Result[] results = fetchAll(locations(count));
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        for (ForecastBatch.Result result : results) {
+            assertNull(result.error);
+        }
+        return elapsed;
+    }
+
+    private ForecastBatch.Result[] fetchAll(List<String> locations) throws Exception {
+        ResponseValidators[] validators = new ResponseValidators[locations.size()];
+        for (int i = 0; i < validators.length; i++) {
+            validators[i] = ResponseValidators.NONE;
+        }
+        // The test mustn't be held up by the real rate limit
+        ForecastBatch batch = new ForecastBatch(
+                new ForecastFetcher(getContext(), mServer.getBaseUrl()),
+                new RateLimiter(1000, 100));
+        return batch.fetchAll(locations, validators);
+    }
+
+    private static List<String> locations(int count) {
+        List<String> locations = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            locations.add("City" + i);
+        }
+        return locations;
+    }
+}
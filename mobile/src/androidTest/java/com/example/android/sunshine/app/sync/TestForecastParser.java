@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+
+/*
+    Checks that the streaming parser reads exactly what the JSONObject parser does, and compares
+    the cost of the two.  The benchmark only reports numbers to logcat; it doesn't assert on them
+    because timings depend too much on the device.
+ */
+public class TestForecastParser extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastParser.class.getSimpleName();
+
+    private static final int BENCHMARK_WARMUP = 20;
+    private static final int BENCHMARK_ITERATIONS = 200;
+
+    public void testRecordedPayloadMatches() throws Exception {
+        assertSameForecast("recorded", ForecastPayloads.RECORDED_94043);
+
+        Forecast forecast = ForecastParser.parse(stream(ForecastPayloads.RECORDED_94043));
+        assertEquals("Mountain View", forecast.cityName);
+        assertEquals(3, forecast.days.size());
+        assertEquals(500, forecast.days.get(0).weatherId);
+        assertEquals("Rain", forecast.days.get(0).description);
+        assertEquals(19.91, forecast.days.get(0).high);
+        assertEquals(9.12, forecast.days.get(0).low);
+        assertEquals(84, forecast.days.get(0).humidity);
+    }
+
+    public void testSyntheticPayloadsMatch() throws Exception {
+        for (int seed = 0; seed < 5; seed++) {
+            assertSameForecast("synthetic " + seed,
+                    ForecastPayloads.createForecastJson("City " + seed, 14, seed));
+        }
+    }
+
+    public void testErrorCode() throws Exception {
+        Forecast forecast = ForecastParser.parse(stream(ForecastPayloads.NOT_FOUND));
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, forecast.code);
+        assertTrue(forecast.days.isEmpty());
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND,
+                ForecastParser.parse(ForecastPayloads.NOT_FOUND).code);
+    }
+
+    public void testTruncatedPayloadIsInvalid() throws Exception {
+        String json = ForecastPayloads.createForecastJson("Truncated", 14, 0);
+        String truncated = json.substring(0, json.length() / 2);
+        try {
+            ForecastParser.parse(stream(truncated));
+            fail("Error: a truncated body should not parse");
+        } catch (JSONException expected) {
+        }
+    }
+
+    public void testMissingListIsInvalid() throws Exception {
+        try {
+            ForecastParser.parse(stream("{\"cod\":\"200\",\"city\":{\"name\":\"x\"," +
+                    "\"coord\":{\"lat\":1,\"lon\":2}}}"));
+            fail("Error: a successful response needs a list");
+        } catch (JSONException expected) {
+        }
+    }
+
+    public void testParserBenchmark() throws Exception {
+        String[] payloads = {
+                ForecastPayloads.RECORDED_94043,
+                ForecastPayloads.createForecastJson("Fourteen", 14, 1),
+                ForecastPayloads.createForecastJson("Sixteen", 16, 2)
+        };
+        for (String payload : payloads) {
+            byte[] body = payload.getBytes("UTF-8");
+            long streaming = benchmark(body, true);
+            long jsonObject = benchmark(body, false);
+            Log.i(LOG_TAG, "Parsing " + body.length + " bytes: streaming " + streaming
+                    + "us, JSONObject " + jsonObject + "us per response");
+        }
+    }
+
+    // Returns the average time in microseconds to parse one response.  The JSONObject path is
+    // measured the way the sync adapter used to do it: read the body into a String first.
+    @SuppressWarnings("deprecation")
+    private long benchmark(byte[] body, boolean streaming) throws Exception {
+        for (int i = 0; i < BENCHMARK_WARMUP; i++) {
+            parseOnce(body, streaming);
+        }
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            parseOnce(body, streaming);
+        }
+        long elapsed = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        Log.i(LOG_TAG, (streaming ? "streaming" : "JSONObject") + ": "
+                + Debug.getThreadAllocCount() / BENCHMARK_ITERATIONS + " allocations, "
+                + Debug.getThreadAllocSize() / BENCHMARK_ITERATIONS + " bytes per response");
+        return elapsed / BENCHMARK_ITERATIONS / 1000;
+    }
+
+    private static Forecast parseOnce(byte[] body, boolean streaming) throws Exception {
+        if (streaming) {
+            return ForecastParser.parse(new ByteArrayInputStream(body));
+        }
+        StringBuffer buffer = new StringBuffer();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new ByteArrayInputStream(body)));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line + "\n");
+        }
+        return ForecastParser.parse(buffer.toString());
+    }
+
+    private static void assertSameForecast(String error, String json) throws Exception {
+        Forecast streamed = ForecastParser.parse(stream(json));
+        Forecast legacy = ForecastParser.parse(json);
+
+        assertEquals(error, legacy.code, streamed.code);
+        assertEquals(error, legacy.cityName, streamed.cityName);
+        assertEquals(error, legacy.cityLatitude, streamed.cityLatitude);
+        assertEquals(error, legacy.cityLongitude, streamed.cityLongitude);
+        assertEquals(error, legacy.days.size(), streamed.days.size());
+        for (int i = 0; i < legacy.days.size(); i++) {
+            Forecast.Day expected = legacy.days.get(i);
+            Forecast.Day actual = streamed.days.get(i);
+            assertEquals(error + " day " + i, expected.pressure, actual.pressure);
+            assertEquals(error + " day " + i, expected.humidity, actual.humidity);
+            assertEquals(error + " day " + i, expected.windSpeed, actual.windSpeed);
+            assertEquals(error + " day " + i, expected.windDirection, actual.windDirection);
+            assertEquals(error + " day " + i, expected.high, actual.high);
+            assertEquals(error + " day " + i, expected.low, actual.low);
+            assertEquals(error + " day " + i, expected.description, actual.description);
+            assertEquals(error + " day " + i, expected.weatherId, actual.weatherId);
+        }
+    }
+
+    private static InputStream stream(String json) throws Exception {
+        return new ByteArrayInputStream(json.getBytes("UTF-8"));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.Utility;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Checks that post-sync consumers run side by side, all see the same snapshot, and that one
+    which hangs is cut off at the timeout without holding up the rest.
+ */
+public class TestPostSyncDispatcher extends AndroidTestCase {
+
+    public void testSlowConsumerDoesNotHoldUpOthers() throws Exception {
+        Forecast forecast = ForecastParser.parse(ForecastPayloads.RECORDED_94043);
+        final ForecastSnapshot snapshot =
+                ForecastSnapshot.fromForecast(getContext(), "94043", forecast, 2457000);
+        assertEquals(500, snapshot.weatherId);
+        // Formatted once, as the display table has it
+        assertEquals(Utility.getStringForWeatherCondition(getContext(), 500),
+                snapshot.description);
+        assertEquals(Utility.getIconResourceForWeatherCondition(500), snapshot.iconResource);
+        assertEquals(Utility.formatTemperature(getContext(), forecast.days.get(0).high),
+                snapshot.high);
+
+        final AtomicInteger seen = new AtomicInteger();
+        List<PostSyncDispatcher.Consumer> consumers = new ArrayList<PostSyncDispatcher.Consumer>();
+        for (int i = 0; i < 3; i++) {
+            consumers.add(new PostSyncDispatcher.Consumer("quick " + i) {
+                @Override
+                void onForecast(ForecastSnapshot received) throws Exception {
+                    Thread.sleep(200);
+                    if (received == snapshot) {
+                        seen.incrementAndGet();
+                    }
+                }
+            });
+        }
+        consumers.add(new PostSyncDispatcher.Consumer("hangs") {
+            @Override
+            void onForecast(ForecastSnapshot received) throws Exception {
+                Thread.sleep(60 * 1000);
+            }
+        });
+        consumers.add(new PostSyncDispatcher.Consumer("fails") {
+            @Override
+            void onForecast(ForecastSnapshot received) throws Exception {
+                throw new IllegalStateException("expected");
+            }
+        });
+
+        PostSyncDispatcher dispatcher = new PostSyncDispatcher(5, 1000);
+        long start = SystemClock.elapsedRealtime();
+        SyncMetrics metrics = new SyncMetrics();
+        int succeeded = dispatcher.dispatch(snapshot, consumers, metrics);
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(3, succeeded);
+        assertEquals(3, seen.get());
+        assertTrue(metrics.getMillis(SyncMetrics.STAGE_POST_SYNC_PREFIX + "quick 0") >= 200);
+        assertEquals(1, metrics.getCount(SyncMetrics.STAGE_POST_SYNC_PREFIX + "fails"));
+        // The quick ones ran together, and the hung one was given up on at the timeout
+        assertTrue("Error: dispatch took " + elapsed + "ms", elapsed < 3000);
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+
+/*
+    Runs the whole sync against a local stand-in for OpenWeatherMap: fetch, parse, store and
+    report the location status.  The first tests check how each kind of bad answer is reported.
+    The last one runs many syncs in a row and logs how long they took, how much they
+    allocated and how long they spent in the database, to compare changes against.
+ */
+public class TestSyncAdapter extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestSyncAdapter.class.getSimpleName();
+
+    private static final String TEST_LOCATION = "Stand-in City";
+    private static final int LOAD_TEST_SYNCS = 50;
+
+    private FakeOwmServer mServer;
+    private SunshineSyncAdapter mSyncAdapter;
+
+    // The settings the syncs change, put back afterwards
+    private String mSavedLocation;
+    private String mSavedExtraLocations;
+    private boolean mSavedNotifications;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getContext());
+        String locationKey = getContext().getString(R.string.pref_location_key);
+        String extraLocationsKey = getContext().getString(R.string.pref_extra_locations_key);
+        String notificationsKey = getContext().getString(R.string.pref_enable_notifications_key);
+        mSavedLocation = prefs.getString(locationKey, null);
+        mSavedExtraLocations = prefs.getString(extraLocationsKey, null);
+        mSavedNotifications = prefs.getBoolean(notificationsKey, true);
+        prefs.edit()
+                .putString(locationKey, TEST_LOCATION)
+                .putString(extraLocationsKey, "")
+                .putBoolean(notificationsKey, false)
+                .commit();
+
+        deleteAllWeather();
+        mServer = new FakeOwmServer(0);
+        SunshineSyncAdapter.setBaseUrlForTesting(mServer.getBaseUrl());
+        mSyncAdapter = new SunshineSyncAdapter(getContext(), false);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SunshineSyncAdapter.setBaseUrlForTesting(null);
+        mServer.shutdown();
+        deleteAllWeather();
+
+        SharedPreferences.Editor editor =
+                PreferenceManager.getDefaultSharedPreferences(getContext()).edit();
+        String locationKey = getContext().getString(R.string.pref_location_key);
+        String extraLocationsKey = getContext().getString(R.string.pref_extra_locations_key);
+        if (mSavedLocation == null) {
+            editor.remove(locationKey);
+        } else {
+            editor.putString(locationKey, mSavedLocation);
+        }
+        if (mSavedExtraLocations == null) {
+            editor.remove(extraLocationsKey);
+        } else {
+            editor.putString(extraLocationsKey, mSavedExtraLocations);
+        }
+        editor.putBoolean(getContext().getString(R.string.pref_enable_notifications_key),
+                mSavedNotifications);
+        editor.commit();
+        super.tearDown();
+    }
+
+    // A location setting's country code stays with its city instead of becoming a location
+    public void testExtraLocationsKeepTheirCountryCodes() {
+        PreferenceManager.getDefaultSharedPreferences(getContext()).edit()
+                .putString(getContext().getString(R.string.pref_extra_locations_key),
+                        "London,UK" + Utility.LOCATION_SEPARATOR + " Paris,FR "
+                                + Utility.LOCATION_SEPARATOR)
+                .commit();
+        assertEquals(Arrays.asList(TEST_LOCATION, "London,UK", "Paris,FR"),
+                Utility.getSyncLocations(getContext()));
+    }
+
+    public void testGoodResponseIsStored() {
+        SyncResult syncResult = sync();
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK,
+                Utility.getLocationStatus(getContext()));
+        assertEquals(14, countWeatherRows());
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(14, syncResult.stats.numInserts);
+        assertFalse(syncResult.hasError());
+
+        SyncMetrics metrics = SyncMetrics.getLast();
+        assertNotNull(metrics);
+        String[] stages = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                ? new String[]{SyncMetrics.STAGE_INGEST}
+                : new String[]{SyncMetrics.STAGE_LOCATION_LOOKUP, SyncMetrics.STAGE_BULK_INSERT,
+                        SyncMetrics.STAGE_RETENTION_DELETE};
+        for (String stage : stages) {
+            assertEquals("Error: stage " + stage + " should run once", 1, metrics.getCount(stage));
+        }
+        for (String stage : new String[]{SyncMetrics.STAGE_CONNECT, SyncMetrics.STAGE_FIRST_BYTE,
+                SyncMetrics.STAGE_BODY_READ, SyncMetrics.STAGE_PARSE}) {
+            assertEquals("Error: stage " + stage + " should run once", 1, metrics.getCount(stage));
+        }
+        assertTrue(metrics.getBodyBytes() > 0);
+    }
+
+    public void testRecordedResponseIsStored() {
+        mServer.setFixedBody(ForecastPayloads.RECORDED_94043);
+        sync();
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK,
+                Utility.getLocationStatus(getContext()));
+        assertTrue(countWeatherRows() > 0);
+    }
+
+    public void testNotFoundCodeMeansInvalidLocation() {
+        mServer.setMode(FakeOwmServer.MODE_NOT_FOUND_CODE);
+        sync();
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_INVALID,
+                Utility.getLocationStatus(getContext()));
+        assertEquals(0, countWeatherRows());
+    }
+
+    public void testTruncatedBodyMeansServerInvalid() {
+        mServer.setMode(FakeOwmServer.MODE_TRUNCATED);
+        SyncResult syncResult = sync();
+        assertEquals(1, syncResult.stats.numParseExceptions);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID,
+                Utility.getLocationStatus(getContext()));
+        assertEquals(0, countWeatherRows());
+    }
+
+    public void testHttpErrorMeansServerDown() {
+        mServer.setMode(FakeOwmServer.MODE_HTTP_ERROR);
+        SyncResult syncResult = sync();
+        assertEquals(1, syncResult.stats.numIoExceptions);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN,
+                Utility.getLocationStatus(getContext()));
+        assertEquals(0, countWeatherRows());
+
+        // The attempt is in the sync history, with the status the server gave
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.SyncHistoryEntry.CONTENT_URI,
+                new String[]{WeatherContract.SyncHistoryEntry.COLUMN_HTTP_STATUS,
+                        WeatherContract.SyncHistoryEntry.COLUMN_OUTCOME}, null, null, null);
+        assertNotNull(cursor);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(500, cursor.getInt(0));
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN, cursor.getInt(1));
+        cursor.close();
+    }
+
+    public void testEmptyBodyMeansServerDown() {
+        mServer.setMode(FakeOwmServer.MODE_EMPTY);
+        sync();
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN,
+                Utility.getLocationStatus(getContext()));
+        assertEquals(0, countWeatherRows());
+    }
+
+    public void testSyncLoad() {
+        // A little latency, and a new forecast every time so every sync writes
+        mServer.setLatency(20);
+        mServer.setChangingForecast(true);
+
+        // Warm up the connection, the database and the class loader before measuring
+        sync();
+
+        long[] syncMillis = new long[LOAD_TEST_SYNCS];
+        double dbWriteMillis = 0;
+        Debug.resetGlobalAllocCount();
+        Debug.resetGlobalAllocSize();
+        Debug.startAllocCounting();
+        for (int i = 0; i < LOAD_TEST_SYNCS; i++) {
+            long start = SystemClock.elapsedRealtime();
+            sync();
+            syncMillis[i] = SystemClock.elapsedRealtime() - start;
+            SyncMetrics metrics = SyncMetrics.getLast();
+            dbWriteMillis += metrics.getMillis(SyncMetrics.STAGE_INGEST)
+                    + metrics.getMillis(SyncMetrics.STAGE_LOCATION_LOOKUP)
+                    + metrics.getMillis(SyncMetrics.STAGE_BULK_INSERT)
+                    + metrics.getMillis(SyncMetrics.STAGE_RETENTION_DELETE);
+        }
+        Debug.stopAllocCounting();
+        int allocCount = Debug.getGlobalAllocCount();
+        int allocSize = Debug.getGlobalAllocSize();
+
+        Arrays.sort(syncMillis);
+        Log.i(LOG_TAG, LOAD_TEST_SYNCS + " syncs: p50 " + percentile(syncMillis, 50) + "ms, p99 "
+                + percentile(syncMillis, 99) + "ms, max " + syncMillis[LOAD_TEST_SYNCS - 1] + "ms");
+        Log.i(LOG_TAG, "Allocated " + allocCount / LOAD_TEST_SYNCS + " objects, "
+                + allocSize / LOAD_TEST_SYNCS + " bytes per sync");
+        Log.i(LOG_TAG, "Database writes: " + dbWriteMillis / LOAD_TEST_SYNCS
+                + "ms per sync");
+
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK,
+                Utility.getLocationStatus(getContext()));
+        assertEquals(LOAD_TEST_SYNCS + 1, mServer.getRequestCount());
+        assertEquals(14, countWeatherRows());
+    }
+
+    // A periodic sync sends the validators of the last one, so the server can answer 304
+    public void testNotModifiedIsntStored() {
+        mServer.setEtags(true);
+        sync();
+        assertEquals(14, countWeatherRows());
+
+        SyncResult syncResult = sync(false);
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals("Error: the second request should get a 304", 1,
+                mServer.getNotModifiedCount());
+        assertNothingStored(syncResult, HttpURLConnection.HTTP_NOT_MODIFIED);
+    }
+
+    // A server without validators can send the same body again, which isn't stored either
+    public void testSameBodyIsntStored() {
+        sync();
+        assertEquals(14, countWeatherRows());
+
+        SyncResult syncResult = sync(false);
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(0, mServer.getNotModifiedCount());
+        assertNothingStored(syncResult, HttpURLConnection.HTTP_OK);
+    }
+
+    private SyncResult sync() {
+        return sync(true);
+    }
+
+    private SyncResult sync(boolean manual) {
+        // Manual syncs aren't skipped for coming right after one another, and don't send
+        // validators.  A periodic one is only skipped after a recent sync, so forget that.
+        Bundle extras = new Bundle();
+        if (manual) {
+            extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        } else {
+            SyncScheduler.resetForTesting(getContext());
+        }
+        SyncResult syncResult = new SyncResult();
+        mSyncAdapter.onPerformSync(null, extras, getContext().getString(R.string.content_authority),
+                null, syncResult);
+        return syncResult;
+    }
+
+    // Checks that the last sync wrote nothing, said so in the sync history and told nothing
+    // outside the app about it
+    private void assertNothingStored(SyncResult syncResult, int httpStatus) {
+        assertFalse(syncResult.hasError());
+        assertEquals(0, syncResult.stats.numInserts);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK,
+                Utility.getLocationStatus(getContext()));
+        assertEquals(14, countWeatherRows());
+
+        SyncMetrics metrics = SyncMetrics.getLast();
+        assertNotNull(metrics);
+        for (String stage : new String[]{SyncMetrics.STAGE_INGEST,
+                SyncMetrics.STAGE_LOCATION_LOOKUP, SyncMetrics.STAGE_BULK_INSERT}) {
+            assertEquals("Error: stage " + stage + " shouldn't run", 0, metrics.getCount(stage));
+        }
+        for (String stage : metrics.getStages()) {
+            assertFalse("Error: " + stage + " shouldn't be told about an unchanged forecast",
+                    stage.startsWith(SyncMetrics.STAGE_POST_SYNC_PREFIX));
+        }
+
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.SyncHistoryEntry.CONTENT_URI,
+                new String[]{WeatherContract.SyncHistoryEntry.COLUMN_HTTP_STATUS,
+                        WeatherContract.SyncHistoryEntry.COLUMN_ROWS_CHANGED},
+                null, null, null);
+        assertNotNull(cursor);
+        // Newest first
+        assertTrue(cursor.moveToFirst());
+        assertEquals(httpStatus, cursor.getInt(0));
+        assertEquals("Error: the sync history should show no rows changed", 0, cursor.getInt(1));
+        cursor.close();
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)];
+    }
+
+    private int countWeatherRows() {
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI, null, null, null, null);
+        assertNotNull(cursor);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private void deleteAllWeather() {
+        getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
+                null, null);
+        getContext().getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI,
+                null, null);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+public class TestSyncScheduler extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SyncScheduler.resetForTesting(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        // Back to the interval the app starts with, on the account too
+        SyncScheduler.resetForTesting(getContext());
+        SunshineSyncAdapter.configurePeriodicSync(getContext(), SunshineSyncAdapter.SYNC_INTERVAL,
+                SunshineSyncAdapter.SYNC_INTERVAL / 3);
+        super.tearDown();
+    }
+
+    public void testBackoffDoublesWithinJitter() {
+        int previousMax = 0;
+        for (int failures = 1; failures <= 5; failures++) {
+            int low = SyncScheduler.getBackoffInterval(failures, 0);
+            int middle = SyncScheduler.getBackoffInterval(failures, 0.5);
+            int high = SyncScheduler.getBackoffInterval(failures, 0.999);
+
+            int expected = SyncScheduler.FIRST_RETRY_INTERVAL << (failures - 1);
+            assertEquals("Error: no jitter should give the plain backoff", expected, middle);
+            assertTrue("Error: jitter should spread retries", low < middle && middle < high);
+            assertTrue("Error: backoff should keep growing", low > previousMax / 2);
+            previousMax = high;
+        }
+    }
+
+    public void testBackoffIsCapped() {
+        assertTrue(SyncScheduler.getBackoffInterval(10, 0.999) <= SyncScheduler.MAX_INTERVAL);
+        assertTrue(SyncScheduler.getBackoffInterval(1000, 0.999) <= SyncScheduler.MAX_INTERVAL);
+    }
+
+    // A changed forecast halves the interval, down to the floor, where it stops rescheduling
+    public void testIntervalHalvesAfterChanges() {
+        assertEquals(SunshineSyncAdapter.SYNC_INTERVAL, SyncScheduler.getInterval(getContext()));
+        int expected = SunshineSyncAdapter.SYNC_INTERVAL;
+        while (expected > SyncScheduler.MIN_INTERVAL) {
+            expected = Math.max(SyncScheduler.MIN_INTERVAL, expected / 2);
+            assertTrue("Error: a new interval should be rescheduled",
+                    SyncScheduler.onSyncSucceeded(getContext(), true));
+            assertEquals(expected, SyncScheduler.getInterval(getContext()));
+        }
+        assertFalse("Error: the same interval shouldn't be rescheduled",
+                SyncScheduler.onSyncSucceeded(getContext(), true));
+        assertEquals(SyncScheduler.MIN_INTERVAL, SyncScheduler.getInterval(getContext()));
+    }
+
+    // An unchanged forecast grows the interval by half, up to the cap, where it stops
+    // rescheduling
+    public void testIntervalGrowsAfterNoChanges() {
+        int expected = SunshineSyncAdapter.SYNC_INTERVAL;
+        while (expected < SyncScheduler.MAX_INTERVAL) {
+            expected = Math.min(SyncScheduler.MAX_INTERVAL, expected + expected / 2);
+            assertTrue("Error: a new interval should be rescheduled",
+                    SyncScheduler.onSyncSucceeded(getContext(), false));
+            assertEquals(expected, SyncScheduler.getInterval(getContext()));
+        }
+        assertFalse("Error: the same interval shouldn't be rescheduled",
+                SyncScheduler.onSyncSucceeded(getContext(), false));
+        assertEquals(SyncScheduler.MAX_INTERVAL, SyncScheduler.getInterval(getContext()));
+
+        // And a change brings it back down by half
+        assertTrue(SyncScheduler.onSyncSucceeded(getContext(), true));
+        assertEquals(SyncScheduler.MAX_INTERVAL / 2, SyncScheduler.getInterval(getContext()));
+    }
+
+    public void testOnlyOneSyncInFlight() {
+        assertTrue(SyncScheduler.beginSync());
+        try {
+            assertFalse("Error: a second sync should be turned away", SyncScheduler.beginSync());
+        } finally {
+            SyncScheduler.endSync();
+        }
+        assertTrue(SyncScheduler.beginSync());
+        SyncScheduler.endSync();
+    }
+}
@@ -39,7 +39,7 @@ import android.widget.TextView;
 
 import com.bumptech.glide.Glide;
 import com.example.android.sunshine.app.data.WeatherContract;
-import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherDisplayEntry;
 
 /**
  * A placeholder fragment containing a simple view.
@@ -59,19 +59,27 @@ public class DetailFragment extends Fragment implements LoaderManager.LoaderCall
     private static final int DETAIL_LOADER = 0;
 
     private static final String[] DETAIL_COLUMNS = {
-            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
-            WeatherEntry.COLUMN_DATE,
-            WeatherEntry.COLUMN_SHORT_DESC,
-            WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherEntry.COLUMN_HUMIDITY,
-            WeatherEntry.COLUMN_PRESSURE,
-            WeatherEntry.COLUMN_WIND_SPEED,
-            WeatherEntry.COLUMN_DEGREES,
-            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherDisplayEntry._ID,
+            WeatherDisplayEntry.COLUMN_DATE,
+            WeatherDisplayEntry.COLUMN_DESCRIPTION,
+            WeatherDisplayEntry.COLUMN_HIGH,
+            WeatherDisplayEntry.COLUMN_LOW,
+            WeatherDisplayEntry.COLUMN_HUMIDITY,
+            WeatherDisplayEntry.COLUMN_PRESSURE,
+            WeatherDisplayEntry.COLUMN_WIND,
+            WeatherDisplayEntry.COLUMN_ART_RES,
+            WeatherDisplayEntry.COLUMN_WEATHER_ID,
             // This works because the WeatherProvider returns location data joined with
             // weather data, even though they're stored in two different tables.
-            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherDisplayEntry.COLUMN_FULL_FRIENDLY_DATE,
+            WeatherDisplayEntry.COLUMN_A11Y_DESCRIPTION,
+            WeatherDisplayEntry.COLUMN_A11Y_ICON,
+            WeatherDisplayEntry.COLUMN_A11Y_HIGH,
+            WeatherDisplayEntry.COLUMN_A11Y_LOW,
+            WeatherDisplayEntry.COLUMN_A11Y_HUMIDITY,
+            WeatherDisplayEntry.COLUMN_A11Y_WIND,
+            WeatherDisplayEntry.COLUMN_A11Y_PRESSURE
     };
 
     // These indices are tied to DETAIL_COLUMNS.  If DETAIL_COLUMNS changes, these
@@ -79,13 +87,21 @@ public class DetailFragment extends Fragment implements LoaderManager.LoaderCall
     public static final int COL_WEATHER_ID = 0;
     public static final int COL_WEATHER_DATE = 1;
     public static final int COL_WEATHER_DESC = 2;
-    public static final int COL_WEATHER_MAX_TEMP = 3;
-    public static final int COL_WEATHER_MIN_TEMP = 4;
+    public static final int COL_WEATHER_HIGH = 3;
+    public static final int COL_WEATHER_LOW = 4;
     public static final int COL_WEATHER_HUMIDITY = 5;
     public static final int COL_WEATHER_PRESSURE = 6;
-    public static final int COL_WEATHER_WIND_SPEED = 7;
-    public static final int COL_WEATHER_DEGREES = 8;
+    public static final int COL_WEATHER_WIND = 7;
+    public static final int COL_WEATHER_ART_RES = 8;
     public static final int COL_WEATHER_CONDITION_ID = 9;
+    public static final int COL_FULL_FRIENDLY_DATE = 11;
+    public static final int COL_A11Y_DESC = 12;
+    public static final int COL_A11Y_ICON = 13;
+    public static final int COL_A11Y_HIGH = 14;
+    public static final int COL_A11Y_LOW = 15;
+    public static final int COL_A11Y_HUMIDITY = 16;
+    public static final int COL_A11Y_WIND = 17;
+    public static final int COL_A11Y_PRESSURE = 18;
 
     private ImageView mIconView;
     private TextView mDateView;
@@ -173,9 +189,13 @@ public class DetailFragment extends Fragment implements LoaderManager.LoaderCall
         if ( null != mUri ) {
             // Now create and return a CursorLoader that will take care of
             // creating a Cursor for the data being displayed.
+            // The day is read from the display table, which has it formatted already
+            Uri displayUri = WeatherDisplayEntry.buildDisplayLocationWithDate(
+                    WeatherContract.WeatherEntry.getLocationSettingFromUri(mUri),
+                    WeatherContract.WeatherEntry.getDateFromUri(mUri));
             return new CursorLoader(
                     getActivity(),
-                    mUri,
+                    displayUri,
                     DETAIL_COLUMNS,
                     null,
                     null,
@@ -199,69 +219,57 @@ public class DetailFragment extends Fragment implements LoaderManager.LoaderCall
 
             // Read weather condition ID from cursor
             int weatherId = data.getInt(COL_WEATHER_CONDITION_ID);
+            int artResource = data.getInt(COL_WEATHER_ART_RES);
 
             if ( Utility.usingLocalGraphics(getActivity()) ) {
-                mIconView.setImageResource(Utility.getArtResourceForWeatherCondition(weatherId));
+                mIconView.setImageResource(artResource);
             } else {
                 // Use weather art image
                 Glide.with(this)
                         .load(Utility.getArtUrlForWeatherCondition(getActivity(), weatherId))
-                        .error(Utility.getArtResourceForWeatherCondition(weatherId))
+                        .error(artResource)
                         .crossFade()
                         .into(mIconView);
             }
 
-            // Read date from cursor and update views for day of week and date
-            long date = data.getLong(COL_WEATHER_DATE);
-            String dateText = Utility.getFullFriendlyDayString(getActivity(),date);
+            // The rest of the day comes formatted from the display table, in the units the
+            // user has picked
+            String dateText = data.getString(COL_FULL_FRIENDLY_DATE);
             mDateView.setText(dateText);
 
-            // Get description from weather condition ID
-            String description = Utility.getStringForWeatherCondition(getActivity(), weatherId);
+            String description = data.getString(COL_WEATHER_DESC);
             mDescriptionView.setText(description);
-            mDescriptionView.setContentDescription(getString(R.string.a11y_forecast, description));
+            mDescriptionView.setContentDescription(data.getString(COL_A11Y_DESC));
 
             // For accessibility, add a content description to the icon field. Because the ImageView
             // is independently focusable, it's better to have a description of the image. Using
             // null is appropriate when the image is purely decorative or when the image already
             // has text describing it in the same UI component.
-            mIconView.setContentDescription(getString(R.string.a11y_forecast_icon, description));
+            mIconView.setContentDescription(data.getString(COL_A11Y_ICON));
 
-            // Read high temperature from cursor and update view
-            boolean isMetric = Utility.isMetric(getActivity());
-
-            double high = data.getDouble(COL_WEATHER_MAX_TEMP);
-            String highString = Utility.formatTemperature(getActivity(), high);
+            String highString = data.getString(COL_WEATHER_HIGH);
             mHighTempView.setText(highString);
-            mHighTempView.setContentDescription(getString(R.string.a11y_high_temp, highString));
+            mHighTempView.setContentDescription(data.getString(COL_A11Y_HIGH));
 
-            // Read low temperature from cursor and update view
-            double low = data.getDouble(COL_WEATHER_MIN_TEMP);
-            String lowString = Utility.formatTemperature(getActivity(), low);
+            String lowString = data.getString(COL_WEATHER_LOW);
             mLowTempView.setText(lowString);
-            mLowTempView.setContentDescription(getString(R.string.a11y_low_temp, lowString));
+            mLowTempView.setContentDescription(data.getString(COL_A11Y_LOW));
 
-            // Read humidity from cursor and update view
-            float humidity = data.getFloat(COL_WEATHER_HUMIDITY);
-            mHumidityView.setText(getActivity().getString(R.string.format_humidity, humidity));
-            mHumidityView.setContentDescription(getString(R.string.a11y_humidity, mHumidityView.getText()));
+            mHumidityView.setText(data.getString(COL_WEATHER_HUMIDITY));
+            mHumidityView.setContentDescription(data.getString(COL_A11Y_HUMIDITY));
             mHumidityLabelView.setContentDescription(mHumidityView.getContentDescription());
 
-            // Read wind speed and direction from cursor and update view
-            float windSpeedStr = data.getFloat(COL_WEATHER_WIND_SPEED);
-            float windDirStr = data.getFloat(COL_WEATHER_DEGREES);
-            mWindView.setText(Utility.getFormattedWind(getActivity(), windSpeedStr, windDirStr));
-            mWindView.setContentDescription(getString(R.string.a11y_wind, mWindView.getText()));
+            mWindView.setText(data.getString(COL_WEATHER_WIND));
+            mWindView.setContentDescription(data.getString(COL_A11Y_WIND));
             mWindLabelView.setContentDescription(mWindView.getContentDescription());
 
-            // Read pressure from cursor and update view
-            float pressure = data.getFloat(COL_WEATHER_PRESSURE);
-            mPressureView.setText(getString(R.string.format_pressure, pressure));
-            mPressureView.setContentDescription(getString(R.string.a11y_pressure, mPressureView.getText()));
+            mPressureView.setText(data.getString(COL_WEATHER_PRESSURE));
+            mPressureView.setContentDescription(data.getString(COL_A11Y_PRESSURE));
             mPressureLabelView.setContentDescription(mPressureView.getContentDescription());
 
             // We still need this for the share intent
-            mForecast = String.format("%s - %s - %s/%s", dateText, description, high, low);
+            mForecast = String.format("%s - %s - %s/%s", dateText, description, highString,
+                    lowString);
 
         }
         AppCompatActivity activity = (AppCompatActivity)getActivity();
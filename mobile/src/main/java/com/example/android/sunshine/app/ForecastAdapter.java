@@ -127,16 +127,16 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
         mCursor.moveToPosition(position);
         int weatherId = mCursor.getInt(ForecastFragment.COL_WEATHER_CONDITION_ID);
         int defaultImage;
-        boolean useLongToday;
+        int dateColumn;
 
         switch (getItemViewType(position)) {
             case VIEW_TYPE_TODAY:
-                defaultImage = Utility.getArtResourceForWeatherCondition(weatherId);
-                useLongToday = true;
+                defaultImage = mCursor.getInt(ForecastFragment.COL_ART_RES);
+                dateColumn = ForecastFragment.COL_FRIENDLY_DATE_LONG;
                 break;
             default:
-                defaultImage = Utility.getIconResourceForWeatherCondition(weatherId);
-                useLongToday = false;
+                defaultImage = mCursor.getInt(ForecastFragment.COL_ICON_RES);
+                dateColumn = ForecastFragment.COL_FRIENDLY_DATE;
         }
 
         if ( Utility.usingLocalGraphics(mContext) ) {
@@ -153,34 +153,27 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
         // the animator can use this to re-find the original view
         ViewCompat.setTransitionName(forecastAdapterViewHolder.mIconView, "iconView" + position);
 
-        // Read date from cursor
-        long dateInMillis = mCursor.getLong(ForecastFragment.COL_WEATHER_DATE);
+        // The rest comes already formatted from the display table
+        forecastAdapterViewHolder.mDateView.setText(mCursor.getString(dateColumn));
 
-        // Find TextView and set formatted date on it
-        forecastAdapterViewHolder.mDateView.setText(Utility.getFriendlyDayString(mContext, dateInMillis, useLongToday));
-
-        // Read weather forecast from cursor
-        String description = Utility.getStringForWeatherCondition(mContext, weatherId);
-
-        // Find TextView and set weather forecast on it
-        forecastAdapterViewHolder.mDescriptionView.setText(description);
-        forecastAdapterViewHolder.mDescriptionView.setContentDescription(mContext.getString(R.string.a11y_forecast, description));
+        forecastAdapterViewHolder.mDescriptionView.setText(
+                mCursor.getString(ForecastFragment.COL_WEATHER_DESC));
+        forecastAdapterViewHolder.mDescriptionView.setContentDescription(
+                mCursor.getString(ForecastFragment.COL_A11Y_DESC));
 
         // For accessibility, we don't want a content description for the icon field
         // because the information is repeated in the description view and the icon
         // is not individually selectable
 
-        // Read high temperature from cursor
-        double high = mCursor.getDouble(ForecastFragment.COL_WEATHER_MAX_TEMP);
-        String highString = Utility.formatTemperature(mContext, high);
-        forecastAdapterViewHolder.mHighTempView.setText(highString);
-        forecastAdapterViewHolder.mHighTempView.setContentDescription(mContext.getString(R.string.a11y_high_temp, highString));
-
-        // Read low temperature from cursor
-        double low = mCursor.getDouble(ForecastFragment.COL_WEATHER_MIN_TEMP);
-        String lowString = Utility.formatTemperature(mContext, low);
-        forecastAdapterViewHolder.mLowTempView.setText(lowString);
-        forecastAdapterViewHolder.mLowTempView.setContentDescription(mContext.getString(R.string.a11y_low_temp, lowString));
+        forecastAdapterViewHolder.mHighTempView.setText(
+                mCursor.getString(ForecastFragment.COL_WEATHER_HIGH));
+        forecastAdapterViewHolder.mHighTempView.setContentDescription(
+                mCursor.getString(ForecastFragment.COL_A11Y_HIGH));
+
+        forecastAdapterViewHolder.mLowTempView.setText(
+                mCursor.getString(ForecastFragment.COL_WEATHER_LOW));
+        forecastAdapterViewHolder.mLowTempView.setContentDescription(
+                mCursor.getString(ForecastFragment.COL_A11Y_LOW));
 
         mICM.onBindViewHolder(forecastAdapterViewHolder, position);
     }
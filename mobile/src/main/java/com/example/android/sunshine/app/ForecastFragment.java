@@ -48,6 +48,8 @@ import android.widget.TextView;
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 
+import java.util.ArrayList;
+
 /**
  * Encapsulates fetching the forecast and displaying it as a {@link android.support.v7.widget.RecyclerView} layout.
  */
@@ -63,24 +65,42 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
     private static final String SELECTED_KEY = "selected_position";
 
     private static final int FORECAST_LOADER = 0;
+
+    // The forecast is loaded a page at a time as the list scrolls toward the end of the days
+    // it has.  Each page has a loader of its own, FORECAST_LOADER plus the page number, and each
+    // page after the first asks for the days after the last date of the page before.
+    private static final int PAGE_SIZE = 20;
+    // How close to the end of the loaded days the list gets before the next page is loaded
+    private static final int PAGE_PREFETCH = 5;
+    private static final String PAGE_AFTER_DATES_KEY = "page_after_dates";
+    private static final String ARG_AFTER_DATE = "after_date";
+
+    // The pages, in order, with null for a page that is still loading, and the date each one
+    // was asked for after (0 for the first)
+    private final ArrayList<Cursor> mPages = new ArrayList<Cursor>();
+    private final ArrayList<Long> mPageAfterDates = new ArrayList<Long>();
     // For the forecast view we're showing only a small subset of the stored data.
     // Specify the columns we need.
     private static final String[] FORECAST_COLUMNS = {
-            // In this case the id needs to be fully qualified with a table name, since
-            // the content provider joins the location & weather tables in the background
-            // (both have an _id column)
-            // On the one hand, that's annoying.  On the other, you can search the weather table
-            // using the location set by the user, which is only in the Location table.
-            // So the convenience is worth it.
-            WeatherContract.WeatherEntry.TABLE_NAME + "." + WeatherContract.WeatherEntry._ID,
-            WeatherContract.WeatherEntry.COLUMN_DATE,
-            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            // The list reads the display rows, which the provider has already formatted, so
+            // binding a row only has to set strings.  The provider joins in the location table
+            // in the background, and its projection sorts out which _id is meant.
+            WeatherContract.WeatherDisplayEntry._ID,
+            WeatherContract.WeatherDisplayEntry.COLUMN_DATE,
+            WeatherContract.WeatherDisplayEntry.COLUMN_DESCRIPTION,
+            WeatherContract.WeatherDisplayEntry.COLUMN_HIGH,
+            WeatherContract.WeatherDisplayEntry.COLUMN_LOW,
             WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherDisplayEntry.COLUMN_WEATHER_ID,
             WeatherContract.LocationEntry.COLUMN_COORD_LAT,
-            WeatherContract.LocationEntry.COLUMN_COORD_LONG
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+            WeatherContract.WeatherDisplayEntry.COLUMN_ICON_RES,
+            WeatherContract.WeatherDisplayEntry.COLUMN_ART_RES,
+            WeatherContract.WeatherDisplayEntry.COLUMN_FRIENDLY_DATE,
+            WeatherContract.WeatherDisplayEntry.COLUMN_FRIENDLY_DATE_LONG,
+            WeatherContract.WeatherDisplayEntry.COLUMN_A11Y_DESCRIPTION,
+            WeatherContract.WeatherDisplayEntry.COLUMN_A11Y_HIGH,
+            WeatherContract.WeatherDisplayEntry.COLUMN_A11Y_LOW
     };
 
     // These indices are tied to FORECAST_COLUMNS.  If FORECAST_COLUMNS changes, these
@@ -88,12 +108,19 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
     static final int COL_WEATHER_ID = 0;
     static final int COL_WEATHER_DATE = 1;
     static final int COL_WEATHER_DESC = 2;
-    static final int COL_WEATHER_MAX_TEMP = 3;
-    static final int COL_WEATHER_MIN_TEMP = 4;
+    static final int COL_WEATHER_HIGH = 3;
+    static final int COL_WEATHER_LOW = 4;
     static final int COL_LOCATION_SETTING = 5;
     static final int COL_WEATHER_CONDITION_ID = 6;
     static final int COL_COORD_LAT = 7;
     static final int COL_COORD_LONG = 8;
+    static final int COL_ICON_RES = 9;
+    static final int COL_ART_RES = 10;
+    static final int COL_FRIENDLY_DATE = 11;
+    static final int COL_FRIENDLY_DATE_LONG = 12;
+    static final int COL_A11Y_DESC = 13;
+    static final int COL_A11Y_HIGH = 14;
+    static final int COL_A11Y_LOW = 15;
 
     /**
      * A callback interface that all activities containing this fragment must
@@ -200,6 +227,13 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         // specify an adapter (see also next example)
         mRecyclerView.setAdapter(mForecastAdapter);
 
+        mRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                loadNextPageIfNeeded();
+            }
+        });
+
         final View parallaxView = rootView.findViewById(R.id.parallax_bar);
         if (null != parallaxView) {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
@@ -259,15 +293,100 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         if ( mHoldForTransition ) {
             getActivity().supportPostponeEnterTransition();
         }
-        getLoaderManager().initLoader(FORECAST_LOADER, null, this);
+        // Pick up the pages that were loaded before, so the list comes back as long as it was
+        long[] afterDates = null;
+        if (savedInstanceState != null) {
+            afterDates = savedInstanceState.getLongArray(PAGE_AFTER_DATES_KEY);
+        }
+        mPages.clear();
+        mPageAfterDates.clear();
+        loadPage(0, true);
+        for (int i = 1; afterDates != null && i < afterDates.length; i++) {
+            loadPage(afterDates[i], true);
+        }
         super.onActivityCreated(savedInstanceState);
     }
 
     // since we read the location when we create the loader, all we need to do is restart things
     void onLocationChanged() {
+        dropPagesAfter(0);
         getLoaderManager().restartLoader(FORECAST_LOADER, null, this);
     }
 
+    /*
+        Adds a page to the end of the list, for the days after the given date.  Reconnecting
+        to the page's loader keeps what it has loaded already; otherwise it's started afresh,
+        in case a dropped page left a loader with another date behind.
+     */
+    private void loadPage(long afterDate, boolean reconnect) {
+        int page = mPages.size();
+        mPages.add(null);
+        mPageAfterDates.add(afterDate);
+        Bundle args = new Bundle();
+        args.putLong(ARG_AFTER_DATE, afterDate);
+        if (reconnect) {
+            getLoaderManager().initLoader(FORECAST_LOADER + page, args, this);
+        } else {
+            getLoaderManager().restartLoader(FORECAST_LOADER + page, args, this);
+        }
+    }
+
+    /*
+        Loads the next page once the list has scrolled near the end of the days it has, unless
+        the last page is still loading, or came back short because there are no more days.
+     */
+    private void loadNextPageIfNeeded() {
+        if (!isAdded() || mPages.isEmpty()) {
+            return;
+        }
+        Cursor lastPage = mPages.get(mPages.size() - 1);
+        if (lastPage == null || lastPage.getCount() < PAGE_SIZE) {
+            return;
+        }
+        LinearLayoutManager layoutManager = (LinearLayoutManager) mRecyclerView.getLayoutManager();
+        if (layoutManager.findLastVisibleItemPosition()
+                < mForecastAdapter.getItemCount() - PAGE_PREFETCH) {
+            return;
+        }
+        lastPage.moveToLast();
+        loadPage(lastPage.getLong(COL_WEATHER_DATE), false);
+    }
+
+    /*
+        Forgets the pages after the given one.  The adapter lets go of them before their
+        loaders close them.
+     */
+    private void dropPagesAfter(int page) {
+        int count = mPages.size();
+        if (count <= page + 1) {
+            return;
+        }
+        mPages.subList(page + 1, count).clear();
+        mPageAfterDates.subList(page + 1, count).clear();
+        mForecastAdapter.swapCursor(mergePages());
+        for (int i = page + 1; i < count; i++) {
+            getLoaderManager().destroyLoader(FORECAST_LOADER + i);
+        }
+    }
+
+    // The pages up to the first one that is still loading, as one cursor for the adapter
+    private Cursor mergePages() {
+        ArrayList<Cursor> loaded = new ArrayList<Cursor>();
+        for (Cursor page : mPages) {
+            if (page == null) {
+                break;
+            }
+            loaded.add(page);
+        }
+        if (loaded.isEmpty()) {
+            return null;
+        }
+        if (loaded.size() == 1) {
+            return loaded.get(0);
+        }
+        return new PagedCursor(loaded);
+    }
+
     private void openPreferredLocationInMap() {
         // Using the URI scheme for showing a location found on a map.  This super-handy
         // intent can is detailed in the "Common Intents" page of Android's developer site:
@@ -297,24 +416,38 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
     public void onSaveInstanceState(Bundle outState) {
         // When tablets rotate, the currently selected list item needs to be saved.
         mForecastAdapter.onSaveInstanceState(outState);
+        long[] afterDates = new long[mPageAfterDates.size()];
+        for (int i = 0; i < afterDates.length; i++) {
+            afterDates[i] = mPageAfterDates.get(i);
+        }
+        outState.putLongArray(PAGE_AFTER_DATES_KEY, afterDates);
         super.onSaveInstanceState(outState);
     }
 
 
     @Override
     public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
-        // This is called when a new Loader needs to be created.  This
-        // fragment only uses one loader, so we don't care about checking the id.
+        // This is called when a new Loader needs to be created.  Every loader is for a page of
+        // the forecast, and the id tells which.
 
         // To only show current and future dates, filter the query to return weather only for
-        // dates after or including today.
+        // dates after or including today.  The pages after the first carry on from the date
+        // the page before ended on.
 
         // Sort order:  Ascending, by date.
-        String sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+        String sortOrder = WeatherContract.WeatherDisplayEntry.COLUMN_DATE + " ASC";
 
         String locationSetting = Utility.getPreferredLocation(getActivity());
-        Uri weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
-                locationSetting, System.currentTimeMillis());
+        Uri weatherForLocationUri;
+        if (i == FORECAST_LOADER) {
+            weatherForLocationUri = WeatherContract.WeatherDisplayEntry
+                    .buildDisplayLocationWithStartDate(locationSetting,
+                            System.currentTimeMillis(), PAGE_SIZE);
+        } else {
+            weatherForLocationUri = WeatherContract.WeatherDisplayEntry
+                    .buildDisplayLocationAfterDate(locationSetting,
+                            bundle.getLong(ARG_AFTER_DATE), PAGE_SIZE);
+        }
 
         return new CursorLoader(getActivity(),
                 weatherForLocationUri,
@@ -326,7 +459,29 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        mForecastAdapter.swapCursor(data);
+        int page = loader.getId() - FORECAST_LOADER;
+        if (page >= mPages.size()) {
+            return;
+        }
+        mPages.set(page, data);
+        // If the page no longer ends where the next one starts, say because the days moved
+        // on, the pages after it are dropped and loaded again from where it ends now
+        if (page + 1 < mPages.size()
+                && (data.getCount() < PAGE_SIZE || !data.moveToLast()
+                        || data.getLong(COL_WEATHER_DATE) != mPageAfterDates.get(page + 1))) {
+            dropPagesAfter(page);
+        }
+        mForecastAdapter.swapCursor(mergePages());
+        // Once the list has laid out the new days, it may already be near the end of them
+        mRecyclerView.post(new Runnable() {
+            @Override
+            public void run() {
+                loadNextPageIfNeeded();
+            }
+        });
+        if (page != 0) {
+            return;
+        }
         updateEmptyView();
         if ( data.getCount() == 0 ) {
             getActivity().supportStartPostponedEnterTransition();
@@ -384,7 +539,11 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
-        mForecastAdapter.swapCursor(null);
+        int page = loader.getId() - FORECAST_LOADER;
+        if (page < mPages.size()) {
+            mPages.set(page, null);
+        }
+        mForecastAdapter.swapCursor(mergePages());
     }
 
     public void setUseTodayLayout(boolean useTodayLayout) {
@@ -17,19 +17,45 @@ package com.example.android.sunshine.app;
 
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.content.AsyncQueryHandler;
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.database.Cursor;
 import android.os.Bundle;
 import android.preference.EditTextPreference;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.AttributeSet;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationSearchEntry;
 
 public class LocationEditTextPreference extends EditTextPreference {
     static final private int DEFAULT_MINIMUM_LOCATION_LENGTH = 2;
+    // How many of the places the search finds are offered under the text
+    static final private int SUGGESTION_COUNT = 5;
+
+    private static final String[] SEARCH_COLUMNS = {
+            LocationSearchEntry.COLUMN_CITY_NAME,
+            LocationSearchEntry.COLUMN_LOCATION_SETTING
+    };
+    // these indices must match the projection
+    private static final int INDEX_CITY_NAME = 0;
+    private static final int INDEX_LOCATION_SETTING = 1;
+
+    private static final int SEARCH_TOKEN = 0;
+
     private int mMinLength;
+    // Runs the searches off the main thread, a keystroke at a time
+    private AsyncQueryHandler mSearchHandler;
+    // The places offered under the text, while the dialog is showing
+    private LinearLayout mSuggestions;
 
     public LocationEditTextPreference(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -42,13 +68,15 @@ public class LocationEditTextPreference extends EditTextPreference {
         } finally {
             a.recycle();
         }
-    }
 
+        mSearchHandler = new AsyncQueryHandler(getContext().getContentResolver()) {
+            @Override
+            protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
+                showSuggestions((String) cookie, cursor);
+            }
+        };
 
-    @Override
-    protected void showDialog(Bundle state) {
-        super.showDialog(state);
-
+        // The EditText lives as long as the preference, so it only needs watching once
         EditText et = getEditText();
         et.addTextChangedListener(new TextWatcher() {
 
@@ -66,6 +94,10 @@ public class LocationEditTextPreference extends EditTextPreference {
             @Override
             public void afterTextChanged(Editable s) {
                 Dialog d = getDialog();
+                if (d == null) {
+                    // The text is being set up before the dialog shows, which searches anyway
+                    return;
+                }
                 if (d instanceof AlertDialog) {
                     AlertDialog dialog = (AlertDialog) d;
                     Button positiveButton = dialog.getButton(AlertDialog.BUTTON_POSITIVE);
@@ -78,7 +110,97 @@ public class LocationEditTextPreference extends EditTextPreference {
                         positiveButton.setEnabled(true);
                     }
                 }
+                search(s.toString());
             }
         });
     }
+
+
+    @Override
+    protected void onAddEditTextToDialogView(View dialogView, EditText editText) {
+        super.onAddEditTextToDialogView(dialogView, editText);
+        mSuggestions = new LinearLayout(getContext());
+        mSuggestions.setOrientation(LinearLayout.VERTICAL);
+        ((ViewGroup) editText.getParent()).addView(mSuggestions,
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT);
+    }
+
+    @Override
+    protected void showDialog(Bundle state) {
+        super.showDialog(state);
+        search(getEditText().getText().toString());
+    }
+
+    @Override
+    protected void onDialogClosed(boolean positiveResult) {
+        super.onDialogClosed(positiveResult);
+        mSearchHandler.cancelOperation(SEARCH_TOKEN);
+        mSuggestions = null;
+    }
+
+    // Looks the text up in the saved locations and the gazetteer, replacing any search still
+    // running for what was typed before
+    private void search(String text) {
+        mSearchHandler.cancelOperation(SEARCH_TOKEN);
+        mSearchHandler.startQuery(SEARCH_TOKEN, text, LocationSearchEntry.buildSearchUri(text,
+                SUGGESTION_COUNT), SEARCH_COLUMNS, null, null, null);
+    }
+
+    /*
+        Offers the places the search found, any of which can be tapped to fill the text in,
+        and warns about a name the search doesn't know, before a sync finds out the hard way.
+        Postal codes aren't in the gazetteer, so anything with a digit in it is left for the
+        sync to check.  The warning doesn't stop the location being saved; the gazetteer only
+        has the bigger cities.
+     */
+    private void showSuggestions(String text, Cursor cursor) {
+        EditText et = getEditText();
+        if (mSuggestions == null || !text.equals(et.getText().toString())) {
+            // The dialog has gone, or the text has changed since
+            if (cursor != null) {
+                cursor.close();
+            }
+            return;
+        }
+        mSuggestions.removeAllViews();
+        String typed = text.trim();
+        boolean known = false;
+        if (cursor != null) {
+            LayoutInflater inflater = LayoutInflater.from(getContext());
+            while (cursor.moveToNext()) {
+                String cityName = cursor.getString(INDEX_CITY_NAME);
+                final String locationSetting = cursor.getString(INDEX_LOCATION_SETTING);
+                known |= typed.equalsIgnoreCase(cityName)
+                        || typed.equalsIgnoreCase(locationSetting);
+
+                View row = inflater.inflate(android.R.layout.simple_list_item_2, mSuggestions,
+                        false);
+                ((TextView) row.findViewById(android.R.id.text1)).setText(cityName);
+                ((TextView) row.findViewById(android.R.id.text2)).setText(locationSetting);
+                row.setOnClickListener(new View.OnClickListener() {
+                    @Override
+                    public void onClick(View v) {
+                        EditText editText = getEditText();
+                        editText.setText(locationSetting);
+                        editText.setSelection(locationSetting.length());
+                    }
+                });
+                mSuggestions.addView(row);
+            }
+            cursor.close();
+        }
+
+        boolean unrecognized = !known && typed.length() >= mMinLength && !hasDigit(typed);
+        et.setError(unrecognized
+                ? getContext().getString(R.string.pref_location_unrecognized) : null);
+    }
+
+    private static boolean hasDigit(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (Character.isDigit(text.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import java.util.List;
+
+/**
+ * Reads the forecast pages one after another as a single cursor.
+ *
+ * Unlike {@link android.database.MergeCursor}, it never registers observers on the pages
+ * and never closes them, since their loaders own them.  A new one can be made on every
+ * load without leaving anything behind on the pages.  Others may move the pages too, so every
+ * read puts the page back on this cursor's row first.
+ */
+class PagedCursor extends AbstractCursor {
+
+    private final Cursor[] mPages;
+    private final int mCount;
+    private Cursor mCurrent;
+    private int mCurrentRow;
+
+    PagedCursor(List<Cursor> pages) {
+        mPages = pages.toArray(new Cursor[pages.size()]);
+        int count = 0;
+        for (Cursor page : mPages) {
+            count += page.getCount();
+        }
+        mCount = count;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        // Find the page holding the new row and move that page onto it
+        int start = 0;
+        for (Cursor page : mPages) {
+            int count = page.getCount();
+            if (newPosition < start + count) {
+                mCurrent = page;
+                mCurrentRow = newPosition - start;
+                return page.moveToPosition(mCurrentRow);
+            }
+            start += count;
+        }
+        mCurrent = null;
+        return false;
+    }
+
+    // The page holding the current row, moved back onto it.  A page that is already there
+    // doesn't move.
+    private Cursor current() {
+        mCurrent.moveToPosition(mCurrentRow);
+        return mCurrent;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mPages.length > 0 ? mPages[0].getColumnNames() : new String[0];
+    }
+
+    @Override
+    public String getString(int column) {
+        return current().getString(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return current().getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return current().getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return current().getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return current().getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return current().getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return current().getBlob(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return current().isNull(column);
+    }
+}
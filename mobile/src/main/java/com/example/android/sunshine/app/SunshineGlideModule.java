@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.GlideBuilder;
+import com.bumptech.glide.Priority;
+import com.bumptech.glide.load.data.DataFetcher;
+import com.bumptech.glide.load.engine.cache.InternalCacheDiskCacheFactory;
+import com.bumptech.glide.load.model.GenericLoaderFactory;
+import com.bumptech.glide.load.model.GlideUrl;
+import com.bumptech.glide.load.model.ModelLoader;
+import com.bumptech.glide.load.model.ModelLoaderFactory;
+import com.bumptech.glide.module.GlideModule;
+import com.example.android.sunshine.app.sync.CountingInputStream;
+import com.example.android.sunshine.app.sync.SyncMetrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Configures Glide, which downloads the weather art from the art pack URLs.
+ *
+ * Glide keeps downloaded art in its own disk cache rather than in the HTTP cache, so this is
+ * where that cache gets its (much smaller than default) bound.  Art downloads are also counted,
+ * on the wire and decompressed, the same way the forecast downloads are; those made during a
+ * sync go in its metrics and its sync history row.  Registered in the manifest.
+ */
+public class SunshineGlideModule implements GlideModule {
+    private static final String LOG_TAG = SunshineGlideModule.class.getSimpleName();
+
+    private static final String ART_CACHE_DIR = "art";
+    private static final int ART_CACHE_SIZE = 10 * 1024 * 1024; // 10 MiB
+
+    @Override
+    public void applyOptions(Context context, GlideBuilder builder) {
+        builder.setDiskCache(
+                new InternalCacheDiskCacheFactory(context, ART_CACHE_DIR, ART_CACHE_SIZE));
+    }
+
+    @Override
+    public void registerComponents(Context context, Glide glide) {
+        glide.register(GlideUrl.class, InputStream.class, new CountingUrlLoader.Factory());
+    }
+
+    /* Fetches URLs, counting the bytes of each download */
+    private static class CountingUrlLoader implements ModelLoader<GlideUrl, InputStream> {
+
+        static class Factory implements ModelLoaderFactory<GlideUrl, InputStream> {
+            @Override
+            public ModelLoader<GlideUrl, InputStream> build(Context context,
+                                                            GenericLoaderFactory factories) {
+                return new CountingUrlLoader();
+            }
+
+            @Override
+            public void teardown() {
+            }
+        }
+
+        @Override
+        public DataFetcher<InputStream> getResourceFetcher(GlideUrl model, int width, int height) {
+            return new CountingFetcher(model);
+        }
+    }
+
+    /*
+        Downloads one piece of art.  Glide's own fetcher lets HttpURLConnection decompress the
+        response out of sight, so this one asks for gzip itself, the same way ForecastFetcher
+        does, and counts the bytes both before and after decompressing them.
+     */
+    private static class CountingFetcher implements DataFetcher<InputStream> {
+        // The same timeouts Glide's own fetcher uses
+        private static final int TIMEOUT_MILLIS = 2500;
+
+        private final GlideUrl mUrl;
+        private HttpURLConnection mConnection;
+        private CountingInputStream mWireStream;
+        private CountingInputStream mBodyStream;
+        private volatile boolean mCancelled;
+
+        CountingFetcher(GlideUrl url) {
+            mUrl = url;
+        }
+
+        @Override
+        public InputStream loadData(Priority priority) throws Exception {
+            mConnection = (HttpURLConnection) mUrl.toURL().openConnection();
+            mConnection.setConnectTimeout(TIMEOUT_MILLIS);
+            mConnection.setReadTimeout(TIMEOUT_MILLIS);
+            // Glide keeps the art in its own disk cache
+            mConnection.setUseCaches(false);
+            // Setting this ourselves turns off transparent decompression
+            mConnection.setRequestProperty("Accept-Encoding", "gzip");
+            if (mCancelled) {
+                return null;
+            }
+            int responseCode = mConnection.getResponseCode();
+            if (responseCode / 100 != 2) {
+                throw new IOException("Request failed " + responseCode + ": "
+                        + mConnection.getResponseMessage());
+            }
+            mWireStream = new CountingInputStream(mConnection.getInputStream());
+            mBodyStream = mWireStream;
+            if ("gzip".equalsIgnoreCase(mConnection.getContentEncoding())) {
+                mBodyStream = new CountingInputStream(new GZIPInputStream(mWireStream));
+            }
+            return mBodyStream;
+        }
+
+        @Override
+        public void cleanup() {
+            if (mWireStream != null) {
+                Log.d(LOG_TAG, "Read " + mBodyStream.getCount() + " bytes, "
+                        + mWireStream.getCount() + " on the wire, from " + mUrl);
+                SyncMetrics.addArtBytes(mWireStream.getCount(), mBodyStream.getCount());
+            }
+            if (mConnection != null) {
+                // Disconnecting also closes the response stream
+                mConnection.disconnect();
+            }
+        }
+
+        @Override
+        public String getId() {
+            return mUrl.toString();
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+        }
+    }
+}
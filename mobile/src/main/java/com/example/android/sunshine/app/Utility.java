@@ -26,16 +26,42 @@ import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
 
 public class Utility {
+    // Separates the additional locations in their preference.  Not a comma, which location
+    // settings such as "London,UK" have in them.
+    public static final String LOCATION_SEPARATOR = ";";
+
     public static String getPreferredLocation(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         return prefs.getString(context.getString(R.string.pref_location_key),
                 context.getString(R.string.pref_location_default));
     }
 
+    /**
+     * Returns every location to sync: the preferred location first, then the additional
+     * locations the user has saved, without duplicates or empty entries.
+     */
+    public static List<String> getSyncLocations(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        LinkedHashSet<String> locations = new LinkedHashSet<String>();
+        locations.add(getPreferredLocation(context));
+        String extraLocations =
+                prefs.getString(context.getString(R.string.pref_extra_locations_key), "");
+        for (String location : extraLocations.split(LOCATION_SEPARATOR)) {
+            location = location.trim();
+            if (location.length() > 0) {
+                locations.add(location);
+            }
+        }
+        return new ArrayList<String>(locations);
+    }
+
     public static boolean isMetric(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         return prefs.getString(context.getString(R.string.pref_units_key),
@@ -44,10 +70,19 @@ public class Utility {
     }
 
     public static String formatTemperature(Context context, double temperature) {
+        return formatTemperature(context, temperature, isMetric(context));
+    }
+
+    /**
+     * Formats a temperature in the given units rather than the user's, for the display table,
+     * which keeps both.
+     */
+    public static String formatTemperature(Context context, double temperature,
+                                           boolean isMetric) {
         // Data stored in Celsius by default.  If user prefers to see in Fahrenheit, convert
         // the values here.
         String suffix = "\u00B0";
-        if (!isMetric(context)) {
+        if (!isMetric) {
             temperature = (temperature * 1.8) + 32;
         }
 
@@ -168,8 +203,14 @@ public class Utility {
     }
 
     public static String getFormattedWind(Context context, float windSpeed, float degrees) {
+        return getFormattedWind(context, windSpeed, degrees, isMetric(context));
+    }
+
+    // Like formatTemperature, in the given units
+    public static String getFormattedWind(Context context, float windSpeed, float degrees,
+                                          boolean isMetric) {
         int windFormat;
-        if (Utility.isMetric(context)) {
+        if (isMetric) {
             windFormat = R.string.format_wind_kmh;
         } else {
             windFormat = R.string.format_wind_mph;
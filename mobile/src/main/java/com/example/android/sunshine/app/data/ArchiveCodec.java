@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Packs a month of one location's weather into the blob the archive table keeps, and unpacks
+ * it again.  The blob is laid out a column at a time rather than a day at a time:
+ *
+ * <ul>
+ * <li>a format version, and the number of days;</li>
+ * <li>a dictionary of the month's weather: each weather id with its short description, once;</li>
+ * <li>each day's distance from the day before (from the first of the month, for the first);</li>
+ * <li>each day's place in the dictionary;</li>
+ * <li>then each of {@link #NUMERIC_COLUMNS} in turn, as hundredths, each day stored as its
+ * difference from the day before.</li>
+ * </ul>
+ *
+ * All of the numbers are variable length, so a month of small day to day changes comes to a
+ * byte or two a value instead of a REAL's eight.  Values come back rounded to two decimal
+ * places, which is more than the server sends.
+ */
+final class ArchiveCodec {
+
+    private static final int FORMAT_VERSION = 1;
+    private static final double SCALE = 100;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // The numbers a day keeps, in the order the blob has them
+    static final String[] NUMERIC_COLUMNS = {
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    /* One day of archived weather */
+    static final class Day {
+        final int julianDay;
+        final int weatherId;
+        final String shortDesc;
+        // In the order of NUMERIC_COLUMNS
+        final double[] values;
+
+        Day(int julianDay, int weatherId, String shortDesc, double[] values) {
+            this.julianDay = julianDay;
+            this.weatherId = weatherId;
+            this.shortDesc = shortDesc;
+            this.values = values;
+        }
+    }
+
+    private ArchiveCodec() {
+    }
+
+    /**
+     * Packs the days of one month, which must be sorted by day with no day twice.
+     *
+     * @param firstOfMonth the Julian day of the first of the month
+     */
+    static byte[] encode(List<Day> days, int firstOfMonth) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + days.size() * 12);
+        out.write(FORMAT_VERSION);
+        writeVarint(out, days.size());
+
+        // The dictionary, in the order each entry first turns up
+        HashMap<String, Integer> dictionary = new HashMap<String, Integer>();
+        int[] entries = new int[days.size()];
+        ByteArrayOutputStream dictionaryOut = new ByteArrayOutputStream();
+        for (int i = 0; i < days.size(); i++) {
+            Day day = days.get(i);
+            String key = day.weatherId + ":" + day.shortDesc;
+            Integer entry = dictionary.get(key);
+            if (entry == null) {
+                entry = dictionary.size();
+                dictionary.put(key, entry);
+                writeVarint(dictionaryOut, zigzag(day.weatherId));
+                byte[] shortDesc = day.shortDesc.getBytes(UTF_8);
+                writeVarint(dictionaryOut, shortDesc.length);
+                dictionaryOut.write(shortDesc, 0, shortDesc.length);
+            }
+            entries[i] = entry;
+        }
+        writeVarint(out, dictionary.size());
+        byte[] dictionaryBytes = dictionaryOut.toByteArray();
+        out.write(dictionaryBytes, 0, dictionaryBytes.length);
+
+        int previousDay = firstOfMonth;
+        for (Day day : days) {
+            if (day.julianDay < previousDay) {
+                throw new IllegalArgumentException("Days out of order at " + day.julianDay);
+            }
+            writeVarint(out, day.julianDay - previousDay);
+            previousDay = day.julianDay;
+        }
+        for (int entry : entries) {
+            writeVarint(out, entry);
+        }
+        for (int column = 0; column < NUMERIC_COLUMNS.length; column++) {
+            long previous = 0;
+            for (Day day : days) {
+                long scaled = Math.round(day.values[column] * SCALE);
+                writeVarint(out, zigzag(scaled - previous));
+                previous = scaled;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Unpacks what {@link #encode} packed, for the same first of the month.
+     */
+    static ArrayList<Day> decode(byte[] data, int firstOfMonth) {
+        Reader in = new Reader(data);
+        int version = in.readByte();
+        if (version != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unknown archive format " + version);
+        }
+        int count = (int) in.readVarint();
+
+        int dictionarySize = (int) in.readVarint();
+        int[] weatherIds = new int[dictionarySize];
+        String[] shortDescs = new String[dictionarySize];
+        for (int i = 0; i < dictionarySize; i++) {
+            weatherIds[i] = (int) unzigzag(in.readVarint());
+            int length = (int) in.readVarint();
+            shortDescs[i] = new String(data, in.skip(length), length, UTF_8);
+        }
+
+        int[] julianDays = new int[count];
+        int day = firstOfMonth;
+        for (int i = 0; i < count; i++) {
+            day += (int) in.readVarint();
+            julianDays[i] = day;
+        }
+        int[] entries = new int[count];
+        for (int i = 0; i < count; i++) {
+            entries[i] = (int) in.readVarint();
+        }
+        double[][] values = new double[count][NUMERIC_COLUMNS.length];
+        for (int column = 0; column < NUMERIC_COLUMNS.length; column++) {
+            long scaled = 0;
+            for (int i = 0; i < count; i++) {
+                scaled += unzigzag(in.readVarint());
+                values[i][column] = scaled / SCALE;
+            }
+        }
+
+        ArrayList<Day> days = new ArrayList<Day>(count);
+        for (int i = 0; i < count; i++) {
+            days.add(new Day(julianDays[i], weatherIds[entries[i]], shortDescs[entries[i]],
+                    values[i]));
+        }
+        return days;
+    }
+
+    /**
+     * The Julian day a date falls on, as {@link WeatherContract#normalizeDate} works it out.
+     * The Time is only there to be reused.
+     */
+    static int toJulianDay(long date, Time dayTime) {
+        dayTime.set(date);
+        return Time.getJulianDay(date, dayTime.gmtoff);
+    }
+
+    /**
+     * The Julian day of the first of the month the given Julian day falls in.
+     */
+    static int firstOfMonth(int julianDay, Time dayTime) {
+        dayTime.setJulianDay(julianDay);
+        return julianDay - dayTime.monthDay + 1;
+    }
+
+    /**
+     * The first of the month the date falls in, normalized like the weather table's dates.
+     */
+    static long monthStart(long date, Time dayTime) {
+        return dayTime.setJulianDay(firstOfMonth(toJulianDay(date, dayTime), dayTime));
+    }
+
+    // Small numbers of either sign become small unsigned ones: 0, -1, 1, -2... as 0, 1, 2, 3...
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // Seven bits a byte, lowest first, with the top bit set on all but the last
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /* Reads a blob front to back */
+    private static final class Reader {
+        private final byte[] mData;
+        private int mPosition;
+
+        Reader(byte[] data) {
+            mData = data;
+        }
+
+        int readByte() {
+            if (mPosition >= mData.length) {
+                throw new IllegalArgumentException("Archive data ends early");
+            }
+            return mData[mPosition++] & 0xFF;
+        }
+
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed number in archive data");
+        }
+
+        // Moves past the given number of bytes, and returns where they start
+        int skip(int length) {
+            if (length < 0 || length > mData.length - mPosition) {
+                throw new IllegalArgumentException("Archive data ends early");
+            }
+            int start = mPosition;
+            mPosition += length;
+            return start;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import java.util.TimeZone;
+
+/**
+ * Does what {@link WeatherContract#normalizeDate(long)} does, without allocating a
+ * {@link android.text.format.Time} for every date: it works the start of the day out from
+ * the time zone's offsets instead.  Meant for bulk writes, where one normalizer serves the
+ * whole batch.
+ */
+final class DateNormalizer {
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+
+    // TimeZone.getDefault() hands out a copy every time, so hold on to one
+    private final TimeZone mTimeZone;
+
+    DateNormalizer() {
+        mTimeZone = TimeZone.getDefault();
+    }
+
+    /**
+     * Returns the start of the local day the date falls on.
+     */
+    long normalize(long date) {
+        long localDate = date + mTimeZone.getOffset(date);
+        long localDayStart = localDate - floorMod(localDate, DAY_IN_MILLIS);
+        // The offset at midnight can differ from the one at the date, across a DST change.
+        // Take midnight's own offset, found from a first guess.
+        long guess = localDayStart - mTimeZone.getOffset(date);
+        return localDayStart - mTimeZone.getOffset(guess);
+    }
+
+    private static long floorMod(long value, long divisor) {
+        long mod = value % divisor;
+        return mod < 0 ? mod + divisor : mod;
+    }
+}
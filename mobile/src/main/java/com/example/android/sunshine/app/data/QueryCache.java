@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Build;
+import android.support.v4.util.LruCache;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * The results of the provider's hot queries, kept in memory so the widget, Muzei, the
+ * notification, the wearable and the two fragments don't each go to the database for the same
+ * rows.  Results are copied out of their cursors once and never change after that; each hit
+ * gets a {@link MatrixCursor} of its own over them.
+ *
+ * Every result belongs to a location setting, so a write can drop just the results for the
+ * locations it touched.  A write that can't say which locations it touched drops everything.
+ * Writes also bump a generation, so a query that read the database before a write can't put
+ * its now stale result in after the write dropped the old one.
+ *
+ * Copying a cursor needs {@link Cursor#getType(int)}, so before Honeycomb nothing is cached.
+ */
+final class QueryCache {
+
+    // The cache holds this many rows in all, and one result holds at most MAX_ROWS_PER_RESULT
+    private static final int MAX_ROWS = 256;
+    private static final int MAX_ROWS_PER_RESULT = 64;
+
+    /* A query's columns and rows, as it returned them */
+    private static final class Result {
+        final String locationSetting;
+        final String[] columns;
+        final Object[][] rows;
+
+        Result(String locationSetting, String[] columns, Object[][] rows) {
+            this.locationSetting = locationSetting;
+            this.columns = columns;
+            this.rows = rows;
+        }
+    }
+
+    private final LruCache<String, Result> mResults = new LruCache<String, Result>(MAX_ROWS) {
+        @Override
+        protected int sizeOf(String key, Result result) {
+            // Count an empty result too, or there'd be no end to them
+            return result.rows.length + 1;
+        }
+    };
+    private int mGeneration;
+    private long mHits;
+    private long mMisses;
+
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * Builds the key for a query.  The location and date are part of the uri.
+     */
+    static String buildKey(int match, String uri, String[] projection, String sortOrder) {
+        return match + "|" + uri + "|" + Arrays.toString(projection) + "|" + sortOrder;
+    }
+
+    /**
+     * Returns a cursor over the cached result, or null if there isn't one.
+     */
+    Cursor get(String key) {
+        Result result;
+        synchronized (this) {
+            result = mResults.get(key);
+            if (result == null) {
+                mMisses++;
+                return null;
+            }
+            mHits++;
+        }
+        MatrixCursor cursor = new MatrixCursor(result.columns, result.rows.length);
+        for (Object[] row : result.rows) {
+            cursor.addRow(copyRow(row));
+        }
+        return cursor;
+    }
+
+    /**
+     * The generation to pass to {@link #put}, taken before the query runs.
+     */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches what the cursor holds, unless there was a write since the generation was taken
+     * or the result is too big to keep.  Returns a cursor to hand back in place of the given
+     * one, which may have been closed.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    Cursor put(String key, int generation, String locationSetting, Cursor cursor) {
+        int count = cursor.getCount();
+        if (count > MAX_ROWS_PER_RESULT) {
+            return cursor;
+        }
+        String[] columns = cursor.getColumnNames();
+        Object[][] rows = new Object[count][];
+        try {
+            for (int i = 0; cursor.moveToNext(); i++) {
+                Object[] row = new Object[columns.length];
+                for (int column = 0; column < columns.length; column++) {
+                    switch (cursor.getType(column)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row[column] = cursor.getLong(column);
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            row[column] = cursor.getDouble(column);
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            row[column] = cursor.getString(column);
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            row[column] = cursor.getBlob(column);
+                            break;
+                        default:
+                            row[column] = null;
+                    }
+                }
+                rows[i] = row;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Result result = new Result(locationSetting, columns, rows);
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mResults.put(key, result);
+            }
+        }
+        MatrixCursor copy = new MatrixCursor(columns, count);
+        for (Object[] row : rows) {
+            copy.addRow(copyRow(row));
+        }
+        return copy;
+    }
+
+    /**
+     * Drops the results for these locations.
+     */
+    synchronized void invalidate(Collection<String> locationSettings) {
+        mGeneration++;
+        for (Map.Entry<String, Result> entry : mResults.snapshot().entrySet()) {
+            if (locationSettings.contains(entry.getValue().locationSetting)) {
+                mResults.remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Drops every result.
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mResults.evictAll();
+    }
+
+    synchronized long getHits() {
+        return mHits;
+    }
+
+    synchronized long getMisses() {
+        return mMisses;
+    }
+
+    // MatrixCursor keeps the values it's given, so hand it blobs of its own to keep ours as
+    // they are
+    private static Object[] copyRow(Object[] row) {
+        Object[] copy = row;
+        for (int i = 0; i < row.length; i++) {
+            if (row[i] instanceof byte[]) {
+                if (copy == row) {
+                    copy = row.clone();
+                }
+                copy[i] = ((byte[]) row[i]).clone();
+            }
+        }
+        return copy;
+    }
+}
@@ -43,6 +43,65 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_SYNC_HISTORY = "sync_history";
+    public static final String PATH_WEATHER_ARCHIVE = "weather_archive";
+    public static final String PATH_WEATHER_DISPLAY = "weather_display";
+    // Appended to a weather by location uri, in place of the date
+    public static final String PATH_SUMMARY = "summary";
+    // Appended to the location uri
+    public static final String PATH_SEARCH = "search";
+
+    // Methods that can be passed to ContentResolver.call() on the provider.
+    // Writes weather rows like a delta upsert (see WeatherEntry.buildWeatherDeltaUpsertUri),
+    // but also reports which rows changed.  The rows go in the KEY_VALUES extra.
+    public static final String METHOD_UPSERT_WEATHER = "upsert_weather";
+    // Writes everything a sync fetched in one transaction: the locations (KEY_LOCATIONS), their
+    // weather rows (KEY_VALUES, upserted like METHOD_UPSERT_WEATHER) and the removal of old
+    // weather, as the retention extras below ask.  The weather rows name their location by
+    // LocationEntry.COLUMN_LOCATION_SETTING instead of its id.
+    public static final String METHOD_INGEST = "ingest";
+    // Removes old weather as the retention extras ask, then gives the space the database no
+    // longer uses back to the file system (KEY_FREED_BYTES).  Meant for when the device is idle.
+    public static final String METHOD_RUN_MAINTENANCE = "run_maintenance";
+    // Reports how often queries were answered from the provider's in-memory cache
+    // (KEY_CACHE_HITS) and how often they had to go to the database (KEY_CACHE_MISSES).
+    public static final String METHOD_GET_CACHE_STATS = "get_cache_stats";
+    // Reads the forecast of one or more locations (KEY_LOCATION_SETTINGS) in one call, without
+    // a cursor.  Each location's display rows come back as arrays in a Bundle of their own,
+    // under its setting: KEY_DAY_COUNT days (all of them, if it's 0 or missing) from
+    // KEY_START_DATE on (today, if it's missing).  WeatherSnapshot reads them.
+    public static final String METHOD_GET_FORECAST_SNAPSHOT = "get_forecast_snapshot";
+
+    // Keys used in the Bundles passed to and returned from call()
+    public static final String KEY_VALUES = "values";
+    public static final String KEY_CHANGED_COUNT = "changed_count";
+    // The location id and date of each changed row, as two long arrays of the same length
+    public static final String KEY_CHANGED_LOCATION_IDS = "changed_location_ids";
+    public static final String KEY_CHANGED_DATES = "changed_dates";
+    public static final String KEY_LOCATIONS = "locations";
+    // The retention extras; see WeatherRetentionPolicy.  Weather up to and including
+    // KEY_RETENTION_DATE is removed.  Past that, a location keeps at most
+    // KEY_MAX_ROWS_PER_LOCATION rows and the database at most KEY_MAX_DATABASE_BYTES, with the
+    // oldest days going first; but those two limits only remove days before KEY_TODAY_DATE, so
+    // the forecast itself is never cut.  With KEY_ARCHIVE_START_DATE, the days the first two
+    // remove from that date on are packed into the archive (see WeatherArchiveEntry) instead
+    // of lost, and archived months from before it are dropped.  KEY_ARCHIVED_COUNT reports
+    // how many days were packed.
+    public static final String KEY_RETENTION_DATE = "retention_date";
+    public static final String KEY_TODAY_DATE = "today_date";
+    public static final String KEY_MAX_ROWS_PER_LOCATION = "max_rows_per_location";
+    public static final String KEY_MAX_DATABASE_BYTES = "max_database_bytes";
+    public static final String KEY_ARCHIVE_START_DATE = "archive_start_date";
+    public static final String KEY_ARCHIVED_COUNT = "archived_count";
+    public static final String KEY_FREED_BYTES = "freed_bytes";
+    // The id of each location in KEY_LOCATIONS, in the same order
+    public static final String KEY_LOCATION_IDS = "location_ids";
+    public static final String KEY_DELETED_COUNT = "deleted_count";
+    public static final String KEY_CACHE_HITS = "cache_hits";
+    public static final String KEY_CACHE_MISSES = "cache_misses";
+    public static final String KEY_LOCATION_SETTINGS = "location_settings";
+    public static final String KEY_START_DATE = "start_date";
+    public static final String KEY_DAY_COUNT = "day_count";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
@@ -126,6 +185,21 @@ public class WeatherContract {
         // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
         public static final String COLUMN_DEGREES = "degrees";
 
+        // Query parameter for bulkInsert.  With "delta", rows that match what is stored are
+        // skipped and rows that differ are updated in place, keeping their _id.
+        public static final String QUERY_PARAM_UPSERT = "upsert";
+        public static final String UPSERT_DELTA = "delta";
+
+        // Query parameters for the weather by location queries.  "limit" caps the number of
+        // rows, and "end_date" is the last date to return, like COLUMN_DATE is the first.
+        public static final String QUERY_PARAM_LIMIT = "limit";
+        public static final String QUERY_PARAM_END_DATE = "end_date";
+        // Query parameter for paging through the weather by location queries: only the dates
+        // after this one are returned.  Ask for the next page with the last date of the page
+        // before and a limit, sorted by date.  Unlike an OFFSET, the page is found straight
+        // from the index however far into the history it is.
+        public static final String QUERY_PARAM_AFTER = "after";
+
         public static Uri buildWeatherUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -144,11 +218,51 @@ public class WeatherContract {
                     .appendQueryParameter(COLUMN_DATE, Long.toString(normalizedDate)).build();
         }
 
+        /*
+            For readers that only want the first few days from the start date, such as the
+            widget and Muzei, which only show today.
+         */
+        public static Uri buildWeatherLocationWithStartDate(
+                String locationSetting, long startDate, int limit) {
+            return buildWeatherLocationWithStartDate(locationSetting, startDate).buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_LIMIT, Integer.toString(limit)).build();
+        }
+
+        /*
+            The days from the start date to the end date, both included.
+         */
+        public static Uri buildWeatherLocationWithDateRange(
+                String locationSetting, long startDate, long endDate) {
+            return buildWeatherLocationWithStartDate(locationSetting, startDate).buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_END_DATE,
+                            Long.toString(normalizeDate(endDate))).build();
+        }
+
+        /*
+            The page of days after the last date of the page before.
+         */
+        public static Uri buildWeatherLocationAfterDate(
+                String locationSetting, long afterDate, int limit) {
+            return buildWeatherLocation(locationSetting).buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_AFTER,
+                            Long.toString(normalizeDate(afterDate)))
+                    .appendQueryParameter(QUERY_PARAM_LIMIT, Integer.toString(limit)).build();
+        }
+
         public static Uri buildWeatherLocationWithDate(String locationSetting, long date) {
             return CONTENT_URI.buildUpon().appendPath(locationSetting)
                     .appendPath(Long.toString(normalizeDate(date))).build();
         }
 
+        public static Uri buildWeatherDeltaUpsertUri() {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_UPSERT, UPSERT_DELTA).build();
+        }
+
+        public static boolean isDeltaUpsert(Uri uri) {
+            return UPSERT_DELTA.equals(uri.getQueryParameter(QUERY_PARAM_UPSERT));
+        }
+
         public static String getLocationSettingFromUri(Uri uri) {
             return uri.getPathSegments().get(1);
         }
@@ -164,5 +278,352 @@ public class WeatherContract {
             else
                 return 0;
         }
+
+        // 0 if the uri has no end date
+        public static long getEndDateFromUri(Uri uri) {
+            String dateString = uri.getQueryParameter(QUERY_PARAM_END_DATE);
+            if (null != dateString && dateString.length() > 0)
+                return Long.parseLong(dateString);
+            else
+                return 0;
+        }
+
+        // 0 if the uri isn't for a page after a date
+        public static long getAfterDateFromUri(Uri uri) {
+            String dateString = uri.getQueryParameter(QUERY_PARAM_AFTER);
+            if (null != dateString && dateString.length() > 0)
+                return Long.parseLong(dateString);
+            else
+                return 0;
+        }
+
+        // 0 if the uri has no limit
+        public static int getLimitFromUri(Uri uri) {
+            String limitString = uri.getQueryParameter(QUERY_PARAM_LIMIT);
+            if (null != limitString && limitString.length() > 0)
+                return Integer.parseInt(limitString);
+            else
+                return 0;
+        }
+    }
+
+    /*
+        Inner class that defines the table contents of the sync history table.  There is one row
+        for every sync attempt, and only the most recent attempts are kept.  Rows come back
+        newest first unless asked otherwise.
+     */
+    public static final class SyncHistoryEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_HISTORY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_HISTORY;
+
+        public static final String TABLE_NAME = "sync_history";
+
+        // How many attempts the table keeps; older ones are dropped as new ones come in
+        public static final int CAPACITY = 100;
+
+        // When the sync started, in milliseconds since the epoch
+        public static final String COLUMN_START_TIME = "start_time";
+        // How long the sync took, in milliseconds
+        public static final String COLUMN_DURATION = "duration";
+        // Bytes received from the server, as they came over the network and once decompressed
+        public static final String COLUMN_WIRE_BYTES = "wire_bytes";
+        public static final String COLUMN_BODY_BYTES = "body_bytes";
+        // The HTTP status of the preferred location's response, or 0 if there was none
+        public static final String COLUMN_HTTP_STATUS = "http_status";
+        // The number of weather rows the sync wrote
+        public static final String COLUMN_ROWS_CHANGED = "rows_changed";
+        // The location status the sync ended with, one of SunshineSyncAdapter.LOCATION_STATUS_*
+        public static final String COLUMN_OUTCOME = "outcome";
+        // Bytes of weather art the sync downloaded, as they came over the network and once
+        // decompressed.  Art the app's own screens download isn't part of any sync.
+        public static final String COLUMN_ART_WIRE_BYTES = "art_wire_bytes";
+        public static final String COLUMN_ART_BODY_BYTES = "art_body_bytes";
+    }
+
+    /*
+        Inner class that defines the table contents of the weather archive.  Past weather the
+        retention policy takes out of the weather table is packed in here, one row for each
+        month of each location, in far less space than a row a day takes.  Read it through
+        buildArchiveLocation and buildArchiveLocationWithDateRange, which unpack the months into
+        a row a day with the weather table's columns, sorted by date.
+     */
+    public static final class WeatherArchiveEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_WEATHER_ARCHIVE).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_WEATHER_ARCHIVE;
+
+        public static final String TABLE_NAME = "weather_archive";
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // The first of the month, normalized like WeatherEntry.COLUMN_DATE
+        public static final String COLUMN_MONTH = "month";
+        // How many days of the month are archived
+        public static final String COLUMN_DAY_COUNT = "day_count";
+        // The days themselves, packed
+        public static final String COLUMN_DATA = "data";
+
+        // The columns of the unpacked days, and what a null projection gets.  A day's _id is
+        // its date, which is unique within a location.
+        public static final String[] DAY_COLUMNS = {
+                _ID,
+                WeatherEntry.COLUMN_LOC_KEY,
+                WeatherEntry.COLUMN_DATE,
+                WeatherEntry.COLUMN_WEATHER_ID,
+                WeatherEntry.COLUMN_SHORT_DESC,
+                WeatherEntry.COLUMN_MIN_TEMP,
+                WeatherEntry.COLUMN_MAX_TEMP,
+                WeatherEntry.COLUMN_HUMIDITY,
+                WeatherEntry.COLUMN_PRESSURE,
+                WeatherEntry.COLUMN_WIND_SPEED,
+                WeatherEntry.COLUMN_DEGREES
+        };
+
+        public static Uri buildArchiveLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        /*
+            The archived days from the start date to the end date, both included.  The dates
+            go in the same query parameters as the weather queries use.
+         */
+        public static Uri buildArchiveLocationWithDateRange(
+                String locationSetting, long startDate, long endDate) {
+            return buildArchiveLocation(locationSetting).buildUpon()
+                    .appendQueryParameter(WeatherEntry.COLUMN_DATE,
+                            Long.toString(normalizeDate(startDate)))
+                    .appendQueryParameter(WeatherEntry.QUERY_PARAM_END_DATE,
+                            Long.toString(normalizeDate(endDate))).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+    }
+
+    /*
+        Inner class that defines the table contents of the display table.  It holds every
+        weather row already formatted the way the app shows it: the dates, the description,
+        the numbers in both metric and imperial units, the icon and art to draw, and the
+        accessibility descriptions, so the list, the detail view, the widgets and the
+        notification only have to read strings.  The provider keeps it in step with the weather
+        table, in the same transaction as every write, and formats it again when the locale or
+        the app changes, or a day goes by and "Today" moves on.
+
+        Read it through buildDisplayLocation and friends, which join in the location like the
+        weather queries do and hand back COLUMN_HIGH, COLUMN_LOW and the rest in the units the
+        user has chosen.  Changes are notified on the matching weather uris.
+     */
+    public static final class WeatherDisplayEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_WEATHER_DISPLAY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_WEATHER_DISPLAY;
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_WEATHER_DISPLAY;
+
+        public static final String TABLE_NAME = "weather_display";
+
+        // The weather row's location, date and weather id, as the weather table has them
+        public static final String COLUMN_LOC_KEY = "location_id";
+        public static final String COLUMN_DATE = "date";
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+
+        // Resource ids of the bundled icon and art for the weather
+        public static final String COLUMN_ICON_RES = "icon_res";
+        public static final String COLUMN_ART_RES = "art_res";
+
+        // The date as the list and the widget show it ("Wednesday"), as the list shows it for
+        // today ("Today, June 24") and as the detail view shows it ("Wednesday, June 26")
+        public static final String COLUMN_FRIENDLY_DATE = "friendly_date";
+        public static final String COLUMN_FRIENDLY_DATE_LONG = "friendly_date_long";
+        public static final String COLUMN_FULL_FRIENDLY_DATE = "full_friendly_date";
+
+        // The weather, in the user's language, e.g "Clear"
+        public static final String COLUMN_DESCRIPTION = "description";
+
+        // Formatted for the user's units
+        public static final String COLUMN_HIGH = "high";
+        public static final String COLUMN_LOW = "low";
+        public static final String COLUMN_WIND = "wind";
+        // The same in either units
+        public static final String COLUMN_HUMIDITY = "humidity";
+        public static final String COLUMN_PRESSURE = "pressure";
+
+        // Content descriptions for accessibility, e.g "Humidity: 84 %"
+        public static final String COLUMN_A11Y_DESCRIPTION = "a11y_description";
+        public static final String COLUMN_A11Y_ICON = "a11y_icon";
+        public static final String COLUMN_A11Y_HIGH = "a11y_high";
+        public static final String COLUMN_A11Y_LOW = "a11y_low";
+        public static final String COLUMN_A11Y_WIND = "a11y_wind";
+        public static final String COLUMN_A11Y_HUMIDITY = "a11y_humidity";
+        public static final String COLUMN_A11Y_PRESSURE = "a11y_pressure";
+
+        // The columns that depend on the units.  The table stores each one twice, with one of
+        // these suffixes, and the queries pick the user's.
+        public static final String[] UNIT_COLUMNS = {
+                COLUMN_HIGH,
+                COLUMN_LOW,
+                COLUMN_WIND,
+                COLUMN_A11Y_HIGH,
+                COLUMN_A11Y_LOW,
+                COLUMN_A11Y_WIND
+        };
+        public static final String SUFFIX_METRIC = "_metric";
+        public static final String SUFFIX_IMPERIAL = "_imperial";
+
+        public static Uri buildDisplayLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        /*
+            The days from the start date on, in the same query parameter as the weather
+            queries use.
+         */
+        public static Uri buildDisplayLocationWithStartDate(
+                String locationSetting, long startDate) {
+            return buildDisplayLocation(locationSetting).buildUpon()
+                    .appendQueryParameter(WeatherEntry.COLUMN_DATE,
+                            Long.toString(normalizeDate(startDate))).build();
+        }
+
+        // Only the first few days from the start date
+        public static Uri buildDisplayLocationWithStartDate(
+                String locationSetting, long startDate, int limit) {
+            return buildDisplayLocationWithStartDate(locationSetting, startDate).buildUpon()
+                    .appendQueryParameter(WeatherEntry.QUERY_PARAM_LIMIT,
+                            Integer.toString(limit)).build();
+        }
+
+        // The page of days after the last date of the page before, like the weather queries
+        public static Uri buildDisplayLocationAfterDate(
+                String locationSetting, long afterDate, int limit) {
+            return buildDisplayLocation(locationSetting).buildUpon()
+                    .appendQueryParameter(WeatherEntry.QUERY_PARAM_AFTER,
+                            Long.toString(normalizeDate(afterDate)))
+                    .appendQueryParameter(WeatherEntry.QUERY_PARAM_LIMIT,
+                            Integer.toString(limit)).build();
+        }
+
+        public static Uri buildDisplayLocationWithDate(String locationSetting, long date) {
+            return buildDisplayLocation(locationSetting).buildUpon()
+                    .appendPath(Long.toString(normalizeDate(date))).build();
+        }
+    }
+
+    /*
+        Inner class that defines the columns of a weather summary: one row that sums up a
+        location's days, worked out by SQLite from the weather table, so a reader that only
+        wants the week's high or the number of rainy days doesn't have to fetch every day.
+        Read it through buildSummaryLocation and buildSummaryLocationWithDateRange.  With no
+        days to sum up, COLUMN_DAY_COUNT and the day counts are 0 and the rest are null.  Days
+        that have been moved to the archive aren't counted.  Changes are notified on the
+        location's weather uri.
+     */
+    public static final class WeatherSummaryEntry {
+
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_WEATHER + "_" + PATH_SUMMARY;
+
+        // How many days were summed up, and the first and last of them
+        public static final String COLUMN_DAY_COUNT = "day_count";
+        public static final String COLUMN_FIRST_DATE = "first_date";
+        public static final String COLUMN_LAST_DATE = "last_date";
+
+        // The lowest low and the highest high, and the average of each, in the weather
+        // table's units
+        public static final String COLUMN_LOW = "low";
+        public static final String COLUMN_HIGH = "high";
+        public static final String COLUMN_MEAN_LOW = "mean_low";
+        public static final String COLUMN_MEAN_HIGH = "mean_high";
+
+        // Averages of the rest of the numbers
+        public static final String COLUMN_MEAN_HUMIDITY = "mean_humidity";
+        public static final String COLUMN_MEAN_PRESSURE = "mean_pressure";
+        public static final String COLUMN_MEAN_WIND = "mean_wind";
+
+        // How many of the days fall in each of the API's groups of weather ids: 2xx for
+        // thunderstorms, 3xx and 5xx for drizzle and rain, 6xx for snow, 7xx for fog, mist and
+        // the like, 800 for a clear sky and 80x for clouds
+        public static final String COLUMN_STORM_DAYS = "storm_days";
+        public static final String COLUMN_RAIN_DAYS = "rain_days";
+        public static final String COLUMN_SNOW_DAYS = "snow_days";
+        public static final String COLUMN_FOG_DAYS = "fog_days";
+        public static final String COLUMN_CLEAR_DAYS = "clear_days";
+        public static final String COLUMN_CLOUDY_DAYS = "cloudy_days";
+
+        // Every day the weather table has for the location
+        public static Uri buildSummaryLocation(String locationSetting) {
+            return WeatherEntry.buildWeatherLocation(locationSetting).buildUpon()
+                    .appendPath(PATH_SUMMARY).build();
+        }
+
+        /*
+            The days from the start date to the end date, both included.  The dates go in the
+            same query parameters as the weather queries use.
+         */
+        public static Uri buildSummaryLocationWithDateRange(
+                String locationSetting, long startDate, long endDate) {
+            return buildSummaryLocation(locationSetting).buildUpon()
+                    .appendQueryParameter(WeatherEntry.COLUMN_DATE,
+                            Long.toString(normalizeDate(startDate)))
+                    .appendQueryParameter(WeatherEntry.QUERY_PARAM_END_DATE,
+                            Long.toString(normalizeDate(endDate))).build();
+        }
+    }
+
+    /*
+        The full text index of the places the user can pick: the saved locations, kept in step
+        with the location table by triggers, and the cities of a gazetteer bundled with the
+        app.  Searched by the words the user has typed so far, as prefixes.
+     */
+    public static final class LocationSearchEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                LocationEntry.CONTENT_URI.buildUpon().appendPath(PATH_SEARCH).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_LOCATION + "_" + PATH_SEARCH;
+
+        // An FTS3 table, so the columns are all text
+        public static final String TABLE_NAME = "location_search";
+
+        // The name to show, and the location setting to store if it's picked
+        public static final String COLUMN_CITY_NAME = LocationEntry.COLUMN_CITY_NAME;
+        public static final String COLUMN_LOCATION_SETTING = LocationEntry.COLUMN_LOCATION_SETTING;
+        // The ISO 3166 code of the country, for the gazetteer's cities; empty for saved
+        // locations, whose country the API doesn't tell us
+        public static final String COLUMN_COUNTRY = "country";
+
+        // Not stored: 1 for a saved location, 0 for one of the gazetteer's.  Saved locations
+        // come first.
+        public static final String COLUMN_SAVED = "saved";
+
+        // What the user has typed
+        public static final String QUERY_PARAM_QUERY = "q";
+
+        public static Uri buildSearchUri(String query) {
+            return CONTENT_URI.buildUpon().appendQueryParameter(QUERY_PARAM_QUERY, query).build();
+        }
+
+        public static Uri buildSearchUri(String query, int limit) {
+            return buildSearchUri(query).buildUpon()
+                    .appendQueryParameter(WeatherEntry.QUERY_PARAM_LIMIT, Integer.toString(limit))
+                    .build();
+        }
+
+        public static String getQueryFromUri(Uri uri) {
+            String query = uri.getQueryParameter(QUERY_PARAM_QUERY);
+            return query == null ? "" : query;
+        }
     }
 }
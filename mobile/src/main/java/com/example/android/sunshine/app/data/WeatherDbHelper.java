@@ -15,84 +15,484 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.util.Log;
 
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationSearchEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncHistoryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherArchiveEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherDisplayEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
 /**
  * Manages a local database for weather data.
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
+    private static final String LOG_TAG = WeatherDbHelper.class.getSimpleName();
+
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    static final int DATABASE_VERSION = 8;
 
     static final String DATABASE_NAME = "weather.db";
 
+    // Android checkpoints the write-ahead log every 100 pages, which comes to about once a
+    // sync.  Let it grow to SQLite's own default of 1000 pages (about 4MB) instead, so the
+    // checkpoints come rarely and the syncs commit quickly.
+    static final int WAL_AUTOCHECKPOINT_PAGES = 1000;
+    // After a checkpoint, shrink the log back down to this if a big write grew it
+    static final long WAL_SIZE_LIMIT_BYTES = 512 * 1024;
+
+    // PRAGMA auto_vacuum's value for incremental vacuuming
+    static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    static final String WEATHER_LOCATION_DATE_INDEX = "weather_location_date";
+
+    // The forecast queries find the location by its setting, then take its weather rows from
+    // a date on, sorted by date.  The UNIQUE constraint's index leads with the date, which is
+    // right for the retention delete but no use here, so the location and date get an index
+    // of their own.  It carries the forecast list's columns too, so the list is read from the
+    // index alone without touching the table.
+    static final String SQL_CREATE_WEATHER_LOCATION_DATE_INDEX = "CREATE INDEX " +
+            WEATHER_LOCATION_DATE_INDEX + " ON " + WeatherEntry.TABLE_NAME + " (" +
+            WeatherEntry.COLUMN_LOC_KEY + ", " +
+            WeatherEntry.COLUMN_DATE + ", " +
+            WeatherEntry.COLUMN_WEATHER_ID + ", " +
+            WeatherEntry.COLUMN_SHORT_DESC + ", " +
+            WeatherEntry.COLUMN_MAX_TEMP + ", " +
+            WeatherEntry.COLUMN_MIN_TEMP + ");";
+
+    // The search index keeps a saved location under its own id, and the gazetteer's cities
+    // from here up, so the two never collide and the ids tell them apart
+    static final long GAZETTEER_DOCID_BASE = 1L << 32;
+
+    private final Context mContext;
+
     public WeatherDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    // Lets the migration tests upgrade databases of their own, without touching weather.db
+    WeatherDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        mContext = context;
     }
 
+    /*
+        With write-ahead logging the syncs write to the log while the loaders and the widget
+        go on reading the database, instead of waiting for the sync's transaction to finish.
+        From Jelly Bean on it is turned on here, before the database is opened, so every
+        connection in the pool gets it.
+     */
     @Override
-    public void onCreate(SQLiteDatabase sqLiteDatabase) {
-        // Create a table to hold locations.  A location consists of the string supplied in the
-        // location setting, the city name, and the latitude and longitude
-        final String SQL_CREATE_LOCATION_TABLE = "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
-                LocationEntry._ID + " INTEGER PRIMARY KEY," +
-                LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
-                LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
-                " );";
-
-        final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
-                // Why AutoIncrement here, and not above?
-                // Unique keys will be auto-generated in either case.  But for weather
-                // forecasting, it's reasonable to assume the user will want information
-                // for a certain date and all dates *following*, so the forecast data
-                // should be sorted accordingly.
-                WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
-
-                // the ID of the location entry associated with this weather data
-                WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
-                WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
-                WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
-                WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
-
-                WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
-
-                WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
-
-                // Set up the location column as a foreign key to location table.
-                " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
-                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
-
-                // To assure the application have just one weather entry per day
-                // per location, it's created a UNIQUE constraint with REPLACE strategy
-                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
-                WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        db.setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (db.isReadOnly() || Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            enableWriteAheadLogging(db);
+        }
+        // Checkpoints are run by the connection that writes, so that's the one the pragmas
+        // belong on; inside a transaction they go to it rather than to one of the pool's
+        // readers.  Both answer with a row, so they can't go through execSQL.
+        db.beginTransaction();
+        try {
+            DatabaseUtils.longForQuery(db,
+                    "PRAGMA wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES, null);
+            DatabaseUtils.longForQuery(db,
+                    "PRAGMA journal_size_limit=" + WAL_SIZE_LIMIT_BYTES, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void enableWriteAheadLogging(SQLiteDatabase db) {
+        db.enableWriteAheadLogging();
+    }
+
+    /*
+        Gives the pages the database no longer uses back to the file system, and returns how
+        many bytes smaller the database got.  Deleted rows only put their pages on a free
+        list, so without this the file never shrinks.  With auto_vacuum=INCREMENTAL, SQLite
+        can move the free pages to the end and cut them off without rewriting the rest of
+        the file; but a database only gets that mode from a full VACUUM, so the first call
+        does one.  Neither may run inside a transaction.
+     */
+    static long reclaimSpace(SQLiteDatabase db) {
+        long before = getDatabaseBytes(db);
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                != AUTO_VACUUM_INCREMENTAL) {
+            // Both change the database, so both go to the connection that writes
+            db.execSQL("PRAGMA auto_vacuum=" + AUTO_VACUUM_INCREMENTAL);
+            db.execSQL("VACUUM");
+        } else {
+            db.execSQL("PRAGMA incremental_vacuum");
+        }
+        return before - getDatabaseBytes(db);
+    }
+
+    /* The size of the database, including the pages on the free list */
+    static long getDatabaseBytes(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    }
+
+    /* The size of the pages that hold something */
+    static long getUsedBytes(SQLiteDatabase db) {
+        return (DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                - DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null))
+                * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    }
+
+    // Create a table to hold locations.  A location consists of the string supplied in the
+    // location setting, the city name, and the latitude and longitude
+    private static final String SQL_CREATE_LOCATION_TABLE =
+            "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
+            LocationEntry._ID + " INTEGER PRIMARY KEY," +
+            LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
+            LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
+            LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
+            LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+            " );";
+
+    private static final String SQL_CREATE_WEATHER_TABLE =
+            "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
+            // Why AutoIncrement here, and not above?
+            // Unique keys will be auto-generated in either case.  But for weather
+            // forecasting, it's reasonable to assume the user will want information
+            // for a certain date and all dates *following*, so the forecast data
+            // should be sorted accordingly.
+            WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+
+            // the ID of the location entry associated with this weather data
+            WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+            WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
 
+            WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+
+            WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+
+            // Set up the location column as a foreign key to location table.
+            " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+            LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+
+            // To assure the application have just one weather entry per day
+            // per location, it's created a UNIQUE constraint with REPLACE strategy
+            " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
+            WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
+
+    // Added in version 8, so the upgrade adds them with the same definitions
+    private static final String SQL_ART_WIRE_BYTES_COLUMN =
+            SyncHistoryEntry.COLUMN_ART_WIRE_BYTES + " INTEGER NOT NULL DEFAULT 0";
+    private static final String SQL_ART_BODY_BYTES_COLUMN =
+            SyncHistoryEntry.COLUMN_ART_BODY_BYTES + " INTEGER NOT NULL DEFAULT 0";
+
+    // One row per sync attempt.  AUTOINCREMENT keeps the ids in the order the rows went
+    // in, even after the oldest ones are gone.
+    private static final String SQL_CREATE_SYNC_HISTORY_TABLE =
+            "CREATE TABLE " + SyncHistoryEntry.TABLE_NAME + " (" +
+            SyncHistoryEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+            SyncHistoryEntry.COLUMN_START_TIME + " INTEGER NOT NULL, " +
+            SyncHistoryEntry.COLUMN_DURATION + " INTEGER NOT NULL, " +
+            SyncHistoryEntry.COLUMN_WIRE_BYTES + " INTEGER NOT NULL, " +
+            SyncHistoryEntry.COLUMN_BODY_BYTES + " INTEGER NOT NULL, " +
+            SyncHistoryEntry.COLUMN_HTTP_STATUS + " INTEGER NOT NULL, " +
+            SyncHistoryEntry.COLUMN_ROWS_CHANGED + " INTEGER NOT NULL, " +
+            SyncHistoryEntry.COLUMN_OUTCOME + " INTEGER NOT NULL, " +
+            SQL_ART_WIRE_BYTES_COLUMN + ", " +
+            SQL_ART_BODY_BYTES_COLUMN + ");";
+
+    // Makes the table a ring buffer: every insert drops whatever has fallen out of the
+    // last CAPACITY attempts, so nothing else has to remember to trim it
+    private static final String SQL_CREATE_SYNC_HISTORY_TRIGGER = "CREATE TRIGGER " +
+            SyncHistoryEntry.TABLE_NAME + "_ring AFTER INSERT ON " +
+            SyncHistoryEntry.TABLE_NAME + " BEGIN " +
+            "DELETE FROM " + SyncHistoryEntry.TABLE_NAME + " WHERE " +
+            SyncHistoryEntry._ID + " <= NEW." + SyncHistoryEntry._ID + " - " +
+            SyncHistoryEntry.CAPACITY + "; END;";
+
+    // One row per month of a location's archived weather, packed by ArchiveCodec.  The UNIQUE
+    // constraint's index is what both the archiving and the reads find a month by.
+    private static final String SQL_CREATE_WEATHER_ARCHIVE_TABLE =
+            "CREATE TABLE " + WeatherArchiveEntry.TABLE_NAME + " (" +
+            WeatherArchiveEntry._ID + " INTEGER PRIMARY KEY," +
+            WeatherArchiveEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+            WeatherArchiveEntry.COLUMN_MONTH + " INTEGER NOT NULL, " +
+            WeatherArchiveEntry.COLUMN_DAY_COUNT + " INTEGER NOT NULL, " +
+            WeatherArchiveEntry.COLUMN_DATA + " BLOB NOT NULL, " +
+            " FOREIGN KEY (" + WeatherArchiveEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+            LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+            " UNIQUE (" + WeatherArchiveEntry.COLUMN_LOC_KEY + ", " +
+            WeatherArchiveEntry.COLUMN_MONTH + ") ON CONFLICT REPLACE);";
+
+    // One row per weather row, formatted for display by WeatherDisplayBuilder.  The UNIQUE
+    // constraint's index finds a location's days for both the queries and the provider's
+    // refreshes.
+    private static final String SQL_CREATE_WEATHER_DISPLAY_TABLE =
+            "CREATE TABLE " + WeatherDisplayEntry.TABLE_NAME + " (" +
+            WeatherDisplayEntry._ID + " INTEGER PRIMARY KEY," +
+            WeatherDisplayEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+            WeatherDisplayEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+            WeatherDisplayEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+            WeatherDisplayEntry.COLUMN_ICON_RES + " INTEGER NOT NULL, " +
+            WeatherDisplayEntry.COLUMN_ART_RES + " INTEGER NOT NULL, " +
+            WeatherDisplayEntry.COLUMN_FRIENDLY_DATE + " TEXT NOT NULL, " +
+            WeatherDisplayEntry.COLUMN_FRIENDLY_DATE_LONG + " TEXT NOT NULL, " +
+            WeatherDisplayEntry.COLUMN_FULL_FRIENDLY_DATE + " TEXT NOT NULL, " +
+            WeatherDisplayEntry.COLUMN_DESCRIPTION + " TEXT NOT NULL, " +
+            WeatherDisplayEntry.COLUMN_HUMIDITY + " TEXT NOT NULL, " +
+            WeatherDisplayEntry.COLUMN_PRESSURE + " TEXT NOT NULL, " +
+            WeatherDisplayEntry.COLUMN_A11Y_DESCRIPTION + " TEXT NOT NULL, " +
+            WeatherDisplayEntry.COLUMN_A11Y_ICON + " TEXT NOT NULL, " +
+            WeatherDisplayEntry.COLUMN_A11Y_HUMIDITY + " TEXT NOT NULL, " +
+            WeatherDisplayEntry.COLUMN_A11Y_PRESSURE + " TEXT NOT NULL, " +
+            buildUnitColumns(WeatherDisplayEntry.SUFFIX_METRIC) +
+            buildUnitColumns(WeatherDisplayEntry.SUFFIX_IMPERIAL) +
+            " FOREIGN KEY (" + WeatherDisplayEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+            LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+            " UNIQUE (" + WeatherDisplayEntry.COLUMN_LOC_KEY + ", " +
+            WeatherDisplayEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+
+    // FTS3 rather than FTS4, which needs Honeycomb.  The default tokenizer splits on anything
+    // that isn't a letter or a digit and folds ASCII to lower case, which is all a prefix
+    // search of place names needs.
+    private static final String SQL_CREATE_LOCATION_SEARCH_TABLE =
+            "CREATE VIRTUAL TABLE " + LocationSearchEntry.TABLE_NAME + " USING fts3(" +
+            LocationSearchEntry.COLUMN_CITY_NAME + ", " +
+            LocationSearchEntry.COLUMN_LOCATION_SETTING + ", " +
+            LocationSearchEntry.COLUMN_COUNTRY + ");";
+
+    // Puts a location's row in the index under the location's id.  Used by the insert and
+    // update triggers, and to index the locations already saved when the table is created.
+    private static final String SQL_INDEX_LOCATION = "INSERT INTO " +
+            LocationSearchEntry.TABLE_NAME + " (docid, " +
+            LocationSearchEntry.COLUMN_CITY_NAME + ", " +
+            LocationSearchEntry.COLUMN_LOCATION_SETTING + ", " +
+            LocationSearchEntry.COLUMN_COUNTRY + ") ";
+
+    // The triggers keep the saved locations in the index whatever writes the location table
+    private static final String SQL_CREATE_LOCATION_INSERT_TRIGGER = "CREATE TRIGGER " +
+            LocationEntry.TABLE_NAME + "_search_insert AFTER INSERT ON " +
+            LocationEntry.TABLE_NAME + " BEGIN " + SQL_INDEX_LOCATION + "VALUES (NEW." +
+            LocationEntry._ID + ", NEW." + LocationEntry.COLUMN_CITY_NAME + ", NEW." +
+            LocationEntry.COLUMN_LOCATION_SETTING + ", ''); END;";
+
+    private static final String SQL_CREATE_LOCATION_UPDATE_TRIGGER = "CREATE TRIGGER " +
+            LocationEntry.TABLE_NAME + "_search_update AFTER UPDATE ON " +
+            LocationEntry.TABLE_NAME + " BEGIN DELETE FROM " + LocationSearchEntry.TABLE_NAME +
+            " WHERE docid = OLD." + LocationEntry._ID + "; " + SQL_INDEX_LOCATION +
+            "VALUES (NEW." + LocationEntry._ID + ", NEW." + LocationEntry.COLUMN_CITY_NAME +
+            ", NEW." + LocationEntry.COLUMN_LOCATION_SETTING + ", ''); END;";
+
+    private static final String SQL_CREATE_LOCATION_DELETE_TRIGGER = "CREATE TRIGGER " +
+            LocationEntry.TABLE_NAME + "_search_delete AFTER DELETE ON " +
+            LocationEntry.TABLE_NAME + " BEGIN DELETE FROM " + LocationSearchEntry.TABLE_NAME +
+            " WHERE docid = OLD." + LocationEntry._ID + "; END;";
+
+    private static String buildUnitColumns(String suffix) {
+        StringBuilder columns = new StringBuilder();
+        for (String column : WeatherDisplayEntry.UNIT_COLUMNS) {
+            columns.append(column).append(suffix).append(" TEXT NOT NULL, ");
+        }
+        return columns.toString();
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase sqLiteDatabase) {
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_HISTORY_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_HISTORY_TRIGGER);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_ARCHIVE_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_DISPLAY_TABLE);
+        WeatherDisplayBuilder.invalidate(mContext);
+        createLocationSearch(sqLiteDatabase);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
         // Note that this only fires if you change the version number for your database.
         // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
-        onCreate(sqLiteDatabase);
+        // Upgrades keep the locations and forecasts, so the list, the widget and the watch face
+        // have something to show straight away instead of waiting for the next sync.  Each
+        // step takes the schema one version further, and they run in order from the old
+        // version; the helper runs them all in one transaction, so a failed upgrade leaves the
+        // old database as it was.
+        for (int version = oldVersion; version < newVersion; version++) {
+            switch (version) {
+                case 1:
+                    upgradeDatesToMillis(sqLiteDatabase);
+                    break;
+                case 2:
+                    sqLiteDatabase.execSQL(SQL_CREATE_SYNC_HISTORY_TABLE);
+                    sqLiteDatabase.execSQL(SQL_CREATE_SYNC_HISTORY_TRIGGER);
+                    break;
+                case 3:
+                    sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+                    break;
+                case 4:
+                    sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_ARCHIVE_TABLE);
+                    break;
+                case 5:
+                    // The next sync formats the rows, or a read its own location's first
+                    sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_DISPLAY_TABLE);
+                    WeatherDisplayBuilder.invalidate(mContext);
+                    break;
+                case 6:
+                    createLocationSearch(sqLiteDatabase);
+                    break;
+                case 7:
+                    // A sync history this upgrade created already has them
+                    if (oldVersion > 2) {
+                        sqLiteDatabase.execSQL("ALTER TABLE " + SyncHistoryEntry.TABLE_NAME +
+                                " ADD COLUMN " + SQL_ART_WIRE_BYTES_COLUMN);
+                        sqLiteDatabase.execSQL("ALTER TABLE " + SyncHistoryEntry.TABLE_NAME +
+                                " ADD COLUMN " + SQL_ART_BODY_BYTES_COLUMN);
+                    }
+                    break;
+                default:
+                    // A version we don't know how to upgrade from.  This database is only a
+                    // cache for online data, so discard it and start over.
+                    Log.w(LOG_TAG, "Can't upgrade weather.db from version " + oldVersion
+                            + ", recreating it");
+                    dropAll(sqLiteDatabase);
+                    onCreate(sqLiteDatabase);
+                    return;
+            }
+        }
+    }
+
+    /*
+        Version 1 stored the weather dates as Utility.DATE_FORMAT strings, such as "20141220".
+        Version 2 stores the start of the day in milliseconds.  SQLite can't change a column's
+        type in place, so the old table moves aside, the rows are copied into a new one with
+        their dates converted, and the old table goes.  A date that doesn't parse drops its row;
+        the next sync fills the day in again.
+     */
+    private static void upgradeDatesToMillis(SQLiteDatabase db) {
+        final String oldTable = WeatherEntry.TABLE_NAME + "_v1";
+        db.execSQL("ALTER TABLE " + WeatherEntry.TABLE_NAME + " RENAME TO " + oldTable);
+        db.execSQL(SQL_CREATE_WEATHER_TABLE);
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat(Utility.DATE_FORMAT, Locale.US);
+        dateFormat.setLenient(false);
+        Cursor cursor = db.query(oldTable, null, null, null, null, null, null);
+        ContentValues values = new ContentValues();
+        try {
+            int dateIndex = cursor.getColumnIndexOrThrow(WeatherEntry.COLUMN_DATE);
+            while (cursor.moveToNext()) {
+                String dateText = cursor.getString(dateIndex);
+                Date date = dateText == null
+                        ? null : dateFormat.parse(dateText, new ParsePosition(0));
+                if (date == null) {
+                    Log.w(LOG_TAG, "Dropping a forecast with the date " + dateText);
+                    continue;
+                }
+                values.clear();
+                DatabaseUtils.cursorRowToContentValues(cursor, values);
+                values.put(WeatherEntry.COLUMN_DATE,
+                        WeatherContract.normalizeDate(date.getTime()));
+                db.insert(WeatherEntry.TABLE_NAME, null, values);
+            }
+        } finally {
+            cursor.close();
+        }
+        db.execSQL("DROP TABLE " + oldTable);
+    }
+
+    /*
+        Creates the location search index, with the triggers that keep it in step with the
+        location table, and fills it with the locations already saved and the bundled
+        gazetteer.  Each of the gazetteer's lines is a city and its country code, separated by
+        a tab; the location setting is the two joined by a comma, as the API takes them.  If
+        the gazetteer can't be read, the search still finds the saved locations.
+     */
+    private void createLocationSearch(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_LOCATION_SEARCH_TABLE);
+        db.execSQL(SQL_CREATE_LOCATION_INSERT_TRIGGER);
+        db.execSQL(SQL_CREATE_LOCATION_UPDATE_TRIGGER);
+        db.execSQL(SQL_CREATE_LOCATION_DELETE_TRIGGER);
+        db.execSQL(SQL_INDEX_LOCATION + "SELECT " + LocationEntry._ID + ", " +
+                LocationEntry.COLUMN_CITY_NAME + ", " + LocationEntry.COLUMN_LOCATION_SETTING +
+                ", '' FROM " + LocationEntry.TABLE_NAME);
+
+        SQLiteStatement insert = db.compileStatement(SQL_INDEX_LOCATION + "VALUES (?, ?, ?, ?)");
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    mContext.getResources().openRawResource(R.raw.gazetteer), "UTF-8"));
+            long docid = GAZETTEER_DOCID_BASE;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab <= 0) {
+                    continue;
+                }
+                String city = line.substring(0, tab);
+                String country = line.substring(tab + 1);
+                insert.bindLong(1, docid++);
+                insert.bindString(2, city);
+                insert.bindString(3, city + "," + country);
+                insert.bindString(4, country);
+                insert.executeInsert();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error reading the gazetteer", e);
+        } finally {
+            insert.close();
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error closing the gazetteer", e);
+                }
+            }
+        }
+    }
+
+    private static void dropAll(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        // Dropping a table drops its indexes and triggers too
+        db.execSQL("DROP TABLE IF EXISTS " + SyncHistoryEntry.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + WeatherArchiveEntry.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + WeatherDisplayEntry.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + LocationSearchEntry.TABLE_NAME);
     }
 }
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+
+import com.example.android.sunshine.app.BuildConfig;
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherDisplayEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Locale;
+
+/**
+ * Formats weather rows into rows of the display table (see {@link WeatherDisplayEntry}), and
+ * remembers what the stored rows were formatted for, so the provider can tell when they need
+ * formatting again.
+ */
+final class WeatherDisplayBuilder {
+
+    // What a display row is formatted from, in this order
+    static final String[] SOURCE_COLUMNS = {
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+    private static final int COL_LOC_KEY = 0;
+    private static final int COL_DATE = 1;
+    private static final int COL_WEATHER_ID = 2;
+    private static final int COL_MAX_TEMP = 3;
+    private static final int COL_MIN_TEMP = 4;
+    private static final int COL_HUMIDITY = 5;
+    private static final int COL_PRESSURE = 6;
+    private static final int COL_WIND_SPEED = 7;
+    private static final int COL_DEGREES = 8;
+
+    // The display columns that read the same in either units, other than _id, the location
+    // and the date
+    static final String[] SHARED_COLUMNS = {
+            WeatherDisplayEntry.COLUMN_WEATHER_ID,
+            WeatherDisplayEntry.COLUMN_ICON_RES,
+            WeatherDisplayEntry.COLUMN_ART_RES,
+            WeatherDisplayEntry.COLUMN_FRIENDLY_DATE,
+            WeatherDisplayEntry.COLUMN_FRIENDLY_DATE_LONG,
+            WeatherDisplayEntry.COLUMN_FULL_FRIENDLY_DATE,
+            WeatherDisplayEntry.COLUMN_DESCRIPTION,
+            WeatherDisplayEntry.COLUMN_HUMIDITY,
+            WeatherDisplayEntry.COLUMN_PRESSURE,
+            WeatherDisplayEntry.COLUMN_A11Y_DESCRIPTION,
+            WeatherDisplayEntry.COLUMN_A11Y_ICON,
+            WeatherDisplayEntry.COLUMN_A11Y_HUMIDITY,
+            WeatherDisplayEntry.COLUMN_A11Y_PRESSURE
+    };
+
+    // Where the day the rows were formatted on, and what for, are kept.  They live outside
+    // the database so that reading them doesn't need a query.
+    private static final String PREFS_NAME = "weather_display";
+    private static final String PREF_FORMAT = "format";
+    private static final String PREF_DAY = "day";
+    // Followed by a location setting: what that location's rows were formatted for on their
+    // own, while the rest were stale
+    private static final String PREF_LOCATION_PREFIX = "location/";
+
+    private final Context mContext;
+
+    WeatherDisplayBuilder(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Formats the weather row the cursor is on, which must have {@link #SOURCE_COLUMNS}.
+     */
+    ContentValues build(Cursor weather) {
+        int weatherId = weather.getInt(COL_WEATHER_ID);
+        long date = weather.getLong(COL_DATE);
+        String description = Utility.getStringForWeatherCondition(mContext, weatherId);
+
+        ContentValues values = new ContentValues();
+        values.put(WeatherDisplayEntry.COLUMN_LOC_KEY, weather.getLong(COL_LOC_KEY));
+        values.put(WeatherDisplayEntry.COLUMN_DATE, date);
+        values.put(WeatherDisplayEntry.COLUMN_WEATHER_ID, weatherId);
+        values.put(WeatherDisplayEntry.COLUMN_ICON_RES,
+                Utility.getIconResourceForWeatherCondition(weatherId));
+        values.put(WeatherDisplayEntry.COLUMN_ART_RES,
+                Utility.getArtResourceForWeatherCondition(weatherId));
+        values.put(WeatherDisplayEntry.COLUMN_FRIENDLY_DATE,
+                Utility.getFriendlyDayString(mContext, date, false));
+        values.put(WeatherDisplayEntry.COLUMN_FRIENDLY_DATE_LONG,
+                Utility.getFriendlyDayString(mContext, date, true));
+        values.put(WeatherDisplayEntry.COLUMN_FULL_FRIENDLY_DATE,
+                Utility.getFullFriendlyDayString(mContext, date));
+        values.put(WeatherDisplayEntry.COLUMN_DESCRIPTION, description);
+        values.put(WeatherDisplayEntry.COLUMN_A11Y_DESCRIPTION,
+                mContext.getString(R.string.a11y_forecast, description));
+        values.put(WeatherDisplayEntry.COLUMN_A11Y_ICON,
+                mContext.getString(R.string.a11y_forecast_icon, description));
+
+        String humidity = mContext.getString(R.string.format_humidity,
+                weather.getFloat(COL_HUMIDITY));
+        values.put(WeatherDisplayEntry.COLUMN_HUMIDITY, humidity);
+        values.put(WeatherDisplayEntry.COLUMN_A11Y_HUMIDITY,
+                mContext.getString(R.string.a11y_humidity, humidity));
+        String pressure = mContext.getString(R.string.format_pressure,
+                weather.getFloat(COL_PRESSURE));
+        values.put(WeatherDisplayEntry.COLUMN_PRESSURE, pressure);
+        values.put(WeatherDisplayEntry.COLUMN_A11Y_PRESSURE,
+                mContext.getString(R.string.a11y_pressure, pressure));
+
+        putUnitValues(values, weather, true, WeatherDisplayEntry.SUFFIX_METRIC);
+        putUnitValues(values, weather, false, WeatherDisplayEntry.SUFFIX_IMPERIAL);
+        return values;
+    }
+
+    private void putUnitValues(ContentValues values, Cursor weather, boolean isMetric,
+                               String suffix) {
+        String high = Utility.formatTemperature(mContext, weather.getDouble(COL_MAX_TEMP),
+                isMetric);
+        String low = Utility.formatTemperature(mContext, weather.getDouble(COL_MIN_TEMP),
+                isMetric);
+        String wind = Utility.getFormattedWind(mContext, weather.getFloat(COL_WIND_SPEED),
+                weather.getFloat(COL_DEGREES), isMetric);
+        values.put(WeatherDisplayEntry.COLUMN_HIGH + suffix, high);
+        values.put(WeatherDisplayEntry.COLUMN_LOW + suffix, low);
+        values.put(WeatherDisplayEntry.COLUMN_WIND + suffix, wind);
+        values.put(WeatherDisplayEntry.COLUMN_A11Y_HIGH + suffix,
+                mContext.getString(R.string.a11y_high_temp, high));
+        values.put(WeatherDisplayEntry.COLUMN_A11Y_LOW + suffix,
+                mContext.getString(R.string.a11y_low_temp, low));
+        values.put(WeatherDisplayEntry.COLUMN_A11Y_WIND + suffix,
+                mContext.getString(R.string.a11y_wind, wind));
+    }
+
+    /**
+     * Returns the Julian day the display rows were last brought up to date on, or 0 if they
+     * were formatted for another locale or another build of the app, or never at all.  A new
+     * build may have new strings, and new resource ids for the icons.
+     */
+    static int getFormattedDay(Context context) {
+        SharedPreferences prefs = getPreferences(context);
+        if (!getFormat().equals(prefs.getString(PREF_FORMAT, null))) {
+            return 0;
+        }
+        return prefs.getInt(PREF_DAY, 0);
+    }
+
+    static void setFormattedDay(Context context, int julianDay) {
+        // Every location is up to date with the rest now, so what was kept for each goes
+        getPreferences(context).edit()
+                .clear()
+                .putString(PREF_FORMAT, getFormat())
+                .putInt(PREF_DAY, julianDay)
+                .apply();
+    }
+
+    /**
+     * Returns true if {@link #setLocationFormatted} has been called for the location since
+     * the rows were last all brought up to date, with the same format, formatted day and
+     * today.
+     */
+    static boolean isLocationFormatted(Context context, String locationSetting, int today) {
+        return getLocationFormat(context, today).equals(getPreferences(context)
+                .getString(PREF_LOCATION_PREFIX + locationSetting, null));
+    }
+
+    /**
+     * Records that one location's rows were brought up to date on their own, today.
+     */
+    static void setLocationFormatted(Context context, String locationSetting, int today) {
+        getPreferences(context).edit()
+                .putString(PREF_LOCATION_PREFIX + locationSetting,
+                        getLocationFormat(context, today))
+                .apply();
+    }
+
+    // What a location's rows are up to date for: the format, and the day the rest of the
+    // rows were formatted on, which says which of its rows were stale, and today
+    private static String getLocationFormat(Context context, int today) {
+        return getFormat() + "/" + getFormattedDay(context) + "/" + today;
+    }
+
+    /**
+     * Forgets what the rows were formatted for, so they're all formatted again before they're
+     * next read.  For when the table is created.
+     */
+    static void invalidate(Context context) {
+        getPreferences(context).edit().clear().apply();
+    }
+
+    private static String getFormat() {
+        return Locale.getDefault() + "/" + BuildConfig.VERSION_CODE;
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -17,25 +17,138 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.Utility;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class WeatherProvider extends ContentProvider {
+    private static final String LOG_TAG = WeatherProvider.class.getSimpleName();
 
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
 
+    /* A location row as the last ingest wrote or found it */
+    private static final class CachedLocation {
+        final long id;
+        final ContentValues values;
+        // Set when the stored row doesn't match the values yet, so the ingest has to update it
+        final boolean needsUpdate;
+
+        CachedLocation(long id, ContentValues values) {
+            this(id, values, false);
+        }
+
+        CachedLocation(long id, ContentValues values, boolean needsUpdate) {
+            this.id = id;
+            this.values = values;
+            this.needsUpdate = needsUpdate;
+        }
+    }
+
+    // Locations by location setting, so an ingest doesn't have to look them up every sync.
+    // Any other write to the location table clears it, and bumps the generation so an ingest
+    // that was running at the time doesn't put back what it saw.
+    private final HashMap<String, CachedLocation> mLocationCache =
+            new HashMap<String, CachedLocation>();
+    private int mLocationCacheGeneration;
+
+    // A write that changes more days than this notifies each location once, rather than each
+    // day, so a big bulk insert doesn't turn into thousands of notifications
+    private static final int MAX_DAY_NOTIFICATIONS = 64;
+
+    /* The weather rows a write changed: the days of each location, by location id */
+    private static final class WeatherChanges {
+        final LinkedHashMap<Long, LinkedHashSet<Long>> days =
+                new LinkedHashMap<Long, LinkedHashSet<Long>>();
+        // Set when a row's location or date isn't known, so only the whole table will do
+        boolean unknown;
+        int count;
+        // Days packed into the archive, and whether it changed at all
+        int archived;
+        boolean archiveChanged;
+        private final DateNormalizer mDateNormalizer = new DateNormalizer();
+
+        void add(Long locationId, Long date) {
+            if (locationId == null || date == null) {
+                unknown = true;
+                return;
+            }
+            LinkedHashSet<Long> dates = days.get(locationId);
+            if (dates == null) {
+                dates = new LinkedHashSet<Long>();
+                days.put(locationId, dates);
+            }
+            if (dates.add(mDateNormalizer.normalize(date))) {
+                count++;
+            }
+        }
+
+        void add(ContentValues[] values) {
+            for (ContentValues value : values) {
+                add(value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY),
+                        value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+            }
+        }
+
+        void add(long[] locationIds, long[] dates, int count) {
+            for (int i = 0; i < count; i++) {
+                add(locationIds[i], dates[i]);
+            }
+        }
+    }
+
+    // Results of the weather by location queries.  Every write to the weather or location
+    // tables drops what it made stale, once it has committed.
+    private final QueryCache mQueryCache = new QueryCache();
+
+    // Formats the display table's rows.  Every write to the weather table formats the days
+    // it changed in the same transaction.  Rows that have gone stale are all formatted again
+    // by the sync and the maintenance job; until then a read formats just the location it
+    // asks for, once.  mDisplayLock keeps two of them from doing the same work.
+    private WeatherDisplayBuilder mDisplayBuilder;
+    private final Object mDisplayLock = new Object();
+
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
     static final int LOCATION = 300;
+    static final int LOCATION_SEARCH = 301;
+    static final int SYNC_HISTORY = 400;
+    static final int WEATHER_ARCHIVE = 500;
+    static final int WEATHER_ARCHIVE_WITH_LOCATION = 501;
+    static final int WEATHER_DISPLAY_WITH_LOCATION = 600;
+    static final int WEATHER_DISPLAY_WITH_LOCATION_AND_DATE = 601;
+    static final int WEATHER_SUMMARY_WITH_LOCATION = 700;
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    // The forecast queries.  Not private, so TestQueryPlans can check how SQLite runs them.
+    static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
 
     static{
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
@@ -52,30 +165,368 @@ public class WeatherProvider extends ContentProvider {
     }
 
     //location.location_setting = ?
-    private static final String sLocationSettingSelection =
+    static final String sLocationSettingSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
 
     //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
+    static final String sLocationSettingWithStartDateSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 
+    //location.location_setting = ? AND date >= ? AND date <= ?
+    static final String sLocationSettingWithDateRangeSelection =
+            WeatherContract.LocationEntry.TABLE_NAME+
+                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " <= ? ";
+
+    //location.location_setting = ? AND date > ?
+    static final String sLocationSettingAfterDateSelection =
+            WeatherContract.LocationEntry.TABLE_NAME+
+                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " > ? ";
+
+    //date <= ?, to narrow a page down to an end date
+    private static final String sToDateSelection =
+            "AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " <= ? ";
+
     //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
+    static final String sLocationSettingAndDaySelection =
+            WeatherContract.LocationEntry.TABLE_NAME +
+                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+
+    //weather_archive INNER JOIN location ON weather_archive.location_id = location._id
+    private static final SQLiteQueryBuilder sArchiveByLocationSettingQueryBuilder;
+
+    static {
+        sArchiveByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
+        sArchiveByLocationSettingQueryBuilder.setTables(
+                WeatherContract.WeatherArchiveEntry.TABLE_NAME + " INNER JOIN " +
+                        WeatherContract.LocationEntry.TABLE_NAME +
+                        " ON " + WeatherContract.WeatherArchiveEntry.TABLE_NAME +
+                        "." + WeatherContract.WeatherArchiveEntry.COLUMN_LOC_KEY +
+                        " = " + WeatherContract.LocationEntry.TABLE_NAME +
+                        "." + WeatherContract.LocationEntry._ID);
+    }
+
+    // The display queries, one for each kind of units.  The projection maps hand back the
+    // columns of the units the builder is for under their plain names, so a reader asks for
+    // COLUMN_HIGH and gets high_metric or high_imperial.  Not private, so TestQueryPlans can
+    // check how SQLite runs them.
+    static final SQLiteQueryBuilder sMetricDisplayQueryBuilder =
+            buildDisplayQueryBuilder(WeatherContract.WeatherDisplayEntry.SUFFIX_METRIC);
+    static final SQLiteQueryBuilder sImperialDisplayQueryBuilder =
+            buildDisplayQueryBuilder(WeatherContract.WeatherDisplayEntry.SUFFIX_IMPERIAL);
+
+    //weather_display INNER JOIN location ON weather_display.location_id = location._id
+    private static SQLiteQueryBuilder buildDisplayQueryBuilder(String suffix) {
+        final String table = WeatherContract.WeatherDisplayEntry.TABLE_NAME;
+        HashMap<String, String> projectionMap = new HashMap<String, String>();
+        projectionMap.put(WeatherContract.WeatherDisplayEntry._ID,
+                table + "." + WeatherContract.WeatherDisplayEntry._ID + " AS " +
+                        WeatherContract.WeatherDisplayEntry._ID);
+        projectionMap.put(WeatherContract.WeatherDisplayEntry.COLUMN_LOC_KEY,
+                WeatherContract.WeatherDisplayEntry.COLUMN_LOC_KEY);
+        projectionMap.put(WeatherContract.WeatherDisplayEntry.COLUMN_DATE,
+                WeatherContract.WeatherDisplayEntry.COLUMN_DATE);
+        for (String column : WeatherDisplayBuilder.SHARED_COLUMNS) {
+            projectionMap.put(column, column);
+        }
+        for (String column : WeatherContract.WeatherDisplayEntry.UNIT_COLUMNS) {
+            projectionMap.put(column, column + suffix + " AS " + column);
+        }
+        for (String column : new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+                WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+                WeatherContract.LocationEntry.COLUMN_COORD_LONG}) {
+            projectionMap.put(column, column);
+        }
+
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(table + " INNER JOIN " + WeatherContract.LocationEntry.TABLE_NAME +
+                " ON " + table + "." + WeatherContract.WeatherDisplayEntry.COLUMN_LOC_KEY +
+                " = " + WeatherContract.LocationEntry.TABLE_NAME +
+                "." + WeatherContract.LocationEntry._ID);
+        builder.setProjectionMap(projectionMap);
+        return builder;
+    }
+
+    // The weather summary.  Each column of it is an aggregate over the weather rows the
+    // selection picks, and the projection map hands it back under the column's name.  There's
+    // no GROUP BY, so the query always comes back with the one row.
+    static final SQLiteQueryBuilder sWeatherSummaryQueryBuilder = buildSummaryQueryBuilder();
+
+    //weather INNER JOIN location ON weather.location_id = location._id
+    private static SQLiteQueryBuilder buildSummaryQueryBuilder() {
+        HashMap<String, String> projectionMap = new HashMap<String, String>();
+        putAggregate(projectionMap, WeatherContract.WeatherSummaryEntry.COLUMN_DAY_COUNT,
+                "COUNT(*)");
+        putAggregate(projectionMap, WeatherContract.WeatherSummaryEntry.COLUMN_FIRST_DATE,
+                "MIN(" + WeatherContract.WeatherEntry.COLUMN_DATE + ")");
+        putAggregate(projectionMap, WeatherContract.WeatherSummaryEntry.COLUMN_LAST_DATE,
+                "MAX(" + WeatherContract.WeatherEntry.COLUMN_DATE + ")");
+        putAggregate(projectionMap, WeatherContract.WeatherSummaryEntry.COLUMN_LOW,
+                "MIN(" + WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ")");
+        putAggregate(projectionMap, WeatherContract.WeatherSummaryEntry.COLUMN_HIGH,
+                "MAX(" + WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ")");
+        putAggregate(projectionMap, WeatherContract.WeatherSummaryEntry.COLUMN_MEAN_LOW,
+                "AVG(" + WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ")");
+        putAggregate(projectionMap, WeatherContract.WeatherSummaryEntry.COLUMN_MEAN_HIGH,
+                "AVG(" + WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ")");
+        putAggregate(projectionMap, WeatherContract.WeatherSummaryEntry.COLUMN_MEAN_HUMIDITY,
+                "AVG(" + WeatherContract.WeatherEntry.COLUMN_HUMIDITY + ")");
+        putAggregate(projectionMap, WeatherContract.WeatherSummaryEntry.COLUMN_MEAN_PRESSURE,
+                "AVG(" + WeatherContract.WeatherEntry.COLUMN_PRESSURE + ")");
+        putAggregate(projectionMap, WeatherContract.WeatherSummaryEntry.COLUMN_MEAN_WIND,
+                "AVG(" + WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + ")");
+        putAggregate(projectionMap, WeatherContract.WeatherSummaryEntry.COLUMN_STORM_DAYS,
+                countDays(weatherIdBetween(200, 299)));
+        putAggregate(projectionMap, WeatherContract.WeatherSummaryEntry.COLUMN_RAIN_DAYS,
+                countDays(weatherIdBetween(300, 399) + " OR " + weatherIdBetween(500, 599)));
+        putAggregate(projectionMap, WeatherContract.WeatherSummaryEntry.COLUMN_SNOW_DAYS,
+                countDays(weatherIdBetween(600, 699)));
+        putAggregate(projectionMap, WeatherContract.WeatherSummaryEntry.COLUMN_FOG_DAYS,
+                countDays(weatherIdBetween(700, 799)));
+        putAggregate(projectionMap, WeatherContract.WeatherSummaryEntry.COLUMN_CLEAR_DAYS,
+                countDays(weatherIdBetween(800, 800)));
+        putAggregate(projectionMap, WeatherContract.WeatherSummaryEntry.COLUMN_CLOUDY_DAYS,
+                countDays(weatherIdBetween(801, 899)));
+
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(sWeatherByLocationSettingQueryBuilder.getTables());
+        builder.setProjectionMap(projectionMap);
+        return builder;
+    }
+
+    private static void putAggregate(Map<String, String> projectionMap, String column,
+                                     String aggregate) {
+        projectionMap.put(column, aggregate + " AS " + column);
+    }
+
+    // COUNT skips the nulls a CASE without an ELSE gives, so this counts the matching rows
+    private static String countDays(String condition) {
+        return "COUNT(CASE WHEN " + condition + " THEN 1 END)";
+    }
+
+    private static String weatherIdBetween(int first, int last) {
+        return WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + " BETWEEN " + first + " AND " +
+                last;
+    }
+
+    // The location search.  Saved locations come before the gazetteer's cities, then the
+    // names sort alphabetically, so a name comes before the longer ones it's the start of.
+    static final SQLiteQueryBuilder sLocationSearchQueryBuilder;
+
+    static {
+        sLocationSearchQueryBuilder = new SQLiteQueryBuilder();
+        sLocationSearchQueryBuilder.setTables(WeatherContract.LocationSearchEntry.TABLE_NAME);
+        Map<String, String> projectionMap = new HashMap<String, String>();
+        projectionMap.put(WeatherContract.LocationSearchEntry._ID,
+                "docid AS " + WeatherContract.LocationSearchEntry._ID);
+        for (String column : new String[]{
+                WeatherContract.LocationSearchEntry.COLUMN_CITY_NAME,
+                WeatherContract.LocationSearchEntry.COLUMN_LOCATION_SETTING,
+                WeatherContract.LocationSearchEntry.COLUMN_COUNTRY}) {
+            projectionMap.put(column, column);
+        }
+        projectionMap.put(WeatherContract.LocationSearchEntry.COLUMN_SAVED,
+                "docid < " + WeatherDbHelper.GAZETTEER_DOCID_BASE + " AS " +
+                        WeatherContract.LocationSearchEntry.COLUMN_SAVED);
+        sLocationSearchQueryBuilder.setProjectionMap(projectionMap);
+    }
+
+    //location_search MATCH ?
+    static final String sLocationSearchSelection =
+            WeatherContract.LocationSearchEntry.TABLE_NAME + " MATCH ? ";
+
+    // Spelled out, as the saved column is only there when the projection asks for it
+    private static final String sLocationSearchSortOrder =
+            "docid < " + WeatherDbHelper.GAZETTEER_DOCID_BASE + " DESC, " +
+                    WeatherContract.LocationSearchEntry.COLUMN_CITY_NAME + " ASC";
+
+    //location.location_setting = ? AND month >= ? AND month <= ?
+    static final String sArchiveLocationSettingWithMonthRangeSelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+                    WeatherContract.WeatherArchiveEntry.COLUMN_MONTH + " >= ? AND " +
+                    WeatherContract.WeatherArchiveEntry.COLUMN_MONTH + " <= ? ";
+
+    //weather_archive.location_id = ? AND month = ?
+    private static final String sArchiveLocationIdAndMonthSelection =
+            WeatherContract.WeatherArchiveEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherArchiveEntry.COLUMN_MONTH + " = ? ";
+
+    //month < ?
+    private static final String sArchiveExpirySelection =
+            WeatherContract.WeatherArchiveEntry.COLUMN_MONTH + " < ? ";
+
+    // What the archiving reads of a weather row: its key, then what ArchiveCodec keeps
+    private static final String[] sArchiveSourceColumns = {
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
+    };
+    // Where ArchiveCodec.NUMERIC_COLUMNS start in sArchiveSourceColumns
+    private static final int ARCHIVE_SOURCE_NUMERIC_INDEX = 4;
+
+    // Every column of a weather row but _id, in the order the bulk insert statement binds them
+    private static final String[] sWeatherInsertColumns = {
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
+    };
+    // The date column's position in sWeatherInsertColumns
+    private static final int WEATHER_INSERT_DATE_INDEX = 1;
+
+    //INSERT INTO weather (location_id, date, ...) VALUES (?, ?, ...)
+    private static final String sWeatherInsertStatement;
+
+    static {
+        StringBuilder sql = new StringBuilder("INSERT INTO ")
+                .append(WeatherContract.WeatherEntry.TABLE_NAME).append(" (");
+        StringBuilder parameters = new StringBuilder();
+        for (int i = 0; i < sWeatherInsertColumns.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+                parameters.append(", ");
+            }
+            sql.append(sWeatherInsertColumns[i]);
+            parameters.append('?');
+        }
+        sWeatherInsertStatement = sql.append(") VALUES (").append(parameters).append(")")
+                .toString();
+    }
+
+    // What the find statement answers when the day isn't stored, and when the stored row
+    // already matches.  Any other answer is the _id of a row that needs updating.
+    private static final long WEATHER_ROW_NOT_STORED = 0;
+    private static final long WEATHER_ROW_UNCHANGED = -1;
+
+    //SELECT IFNULL((SELECT CASE WHEN short_desc IS ?3 AND ... THEN -1 ELSE _id END
+    //        FROM weather WHERE location_id = ?1 AND date = ?2), 0)
+    private static final String sWeatherFindStatement;
+
+    //UPDATE weather SET location_id = ?1, date = ?2, ... WHERE _id = ?11
+    private static final String sWeatherUpdateStatement;
+
+    // Both number their parameters by sWeatherInsertColumns, like the insert statement, so
+    // bindWeatherRow binds any of the three
+    static {
+        StringBuilder matches = new StringBuilder();
+        StringBuilder assignments = new StringBuilder();
+        for (int i = 0; i < sWeatherInsertColumns.length; i++) {
+            String parameter = " ?" + (i + 1);
+            if (i > 0) {
+                assignments.append(", ");
+            }
+            assignments.append(sWeatherInsertColumns[i]).append(" =").append(parameter);
+            if (i == 0 || i == WEATHER_INSERT_DATE_INDEX) {
+                continue;
+            }
+            if (matches.length() > 0) {
+                matches.append(" AND ");
+            }
+            // IS, so a null matches a null
+            matches.append(sWeatherInsertColumns[i]).append(" IS").append(parameter);
+        }
+        sWeatherFindStatement = "SELECT IFNULL((SELECT CASE WHEN " + matches
+                + " THEN " + WEATHER_ROW_UNCHANGED
+                + " ELSE " + WeatherContract.WeatherEntry._ID + " END FROM "
+                + WeatherContract.WeatherEntry.TABLE_NAME + " WHERE "
+                + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?1 AND "
+                + WeatherContract.WeatherEntry.COLUMN_DATE + " = ?"
+                + (WEATHER_INSERT_DATE_INDEX + 1) + "), " + WEATHER_ROW_NOT_STORED + ")";
+        sWeatherUpdateStatement = "UPDATE " + WeatherContract.WeatherEntry.TABLE_NAME
+                + " SET " + assignments + " WHERE " + WeatherContract.WeatherEntry._ID
+                + " = ?" + (sWeatherInsertColumns.length + 1);
+    }
+
+    //weather.location_id = ? AND date = ?
+    private static final String sLocationIdAndDaySelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
+    // The retention deletes.  Each is a range of dates, which the UNIQUE constraint's
+    // (date, location_id) index finds for the whole table and weather_location_date finds for
+    // one location.
+    //date <= ?
+    static final String sRetentionSelection =
+            WeatherContract.WeatherEntry.COLUMN_DATE + " <= ? ";
+
+    //weather.location_id = ? AND date <= ?
+    static final String sLocationIdRetentionSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " <= ? ";
+
+    //weather.location_id = ?
+    static final String sLocationIdSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    // The display refreshes.  The display table has the weather table's location and date
+    // columns, so these pick out the same days in either.
+    //location_id = ? AND date >= ? AND date <= ?
+    static final String sLocationIdWithDateRangeSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " <= ? ";
+
+    //date >= ?
+    private static final String sFromDateSelection =
+            WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
+
+    //location_id = (SELECT _id FROM location WHERE location_setting = ?) AND date >= ?
+    private static final String sLocationSettingFromDateSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = (SELECT " +
+                    WeatherContract.LocationEntry._ID + " FROM " +
+                    WeatherContract.LocationEntry.TABLE_NAME + " WHERE " +
+                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?) AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
+
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+        long endDate = WeatherContract.WeatherEntry.getEndDateFromUri(uri);
+        long afterDate = WeatherContract.WeatherEntry.getAfterDateFromUri(uri);
+        int limit = WeatherContract.WeatherEntry.getLimitFromUri(uri);
+        if (limit < 0) {
+            throw new IllegalArgumentException("Negative limit in uri: " + uri);
+        }
 
         String[] selectionArgs;
         String selection;
 
-        if (startDate == 0) {
+        if (afterDate != 0) {
+            // A page: the date after the page before takes the place of the start date
+            if (endDate != 0) {
+                selection = sLocationSettingAfterDateSelection + sToDateSelection;
+                selectionArgs = new String[]{locationSetting, Long.toString(afterDate),
+                        Long.toString(endDate)};
+            } else {
+                selection = sLocationSettingAfterDateSelection;
+                selectionArgs = new String[]{locationSetting, Long.toString(afterDate)};
+            }
+        } else if (endDate != 0) {
+            selectionArgs = new String[]{locationSetting, Long.toString(startDate),
+                    Long.toString(endDate)};
+            selection = sLocationSettingWithDateRangeSelection;
+        } else if (startDate == 0) {
             selection = sLocationSettingSelection;
             selectionArgs = new String[]{locationSetting};
         } else {
@@ -89,7 +540,8 @@ public class WeatherProvider extends ContentProvider {
                 selectionArgs,
                 null,
                 null,
-                sortOrder
+                sortOrder,
+                limit == 0 ? null : Integer.toString(limit)
         );
     }
 
@@ -108,6 +560,244 @@ public class WeatherProvider extends ContentProvider {
         );
     }
 
+    /*
+        Both weather by location queries go through the cache, and so does the summary.  They
+        ignore any selection, so the uri, the projection and the sort order are all a result
+        depends on.
+     */
+    private Cursor getWeatherByLocationSettingCached(
+            int match, Uri uri, String[] projection, String sortOrder) {
+        String key = null;
+        if (QueryCache.isSupported()) {
+            key = QueryCache.buildKey(match, uri.toString(), projection, sortOrder);
+            Cursor cached = mQueryCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        int generation = mQueryCache.getGeneration();
+        Cursor cursor;
+        switch (match) {
+            case WEATHER_WITH_LOCATION_AND_DATE:
+                cursor = getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
+                break;
+            case WEATHER_SUMMARY_WITH_LOCATION:
+                cursor = getWeatherSummary(uri, projection);
+                break;
+            default:
+                cursor = getWeatherByLocationSetting(uri, projection, sortOrder);
+        }
+        if (key == null) {
+            return cursor;
+        }
+        return mQueryCache.put(key, generation,
+                WeatherContract.WeatherEntry.getLocationSettingFromUri(uri), cursor);
+    }
+
+    /*
+        The one row summing up the days a summary uri asks for, all of them if it names no
+        dates.  Like the weather by location queries, it ignores any selection, and the
+        location and date index finds the days.
+     */
+    private Cursor getWeatherSummary(Uri uri, String[] projection) {
+        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+        long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+        long endDate = WeatherContract.WeatherEntry.getEndDateFromUri(uri);
+        if (endDate == 0) {
+            endDate = Long.MAX_VALUE;
+        }
+
+        return sWeatherSummaryQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+                projection,
+                sLocationSettingWithDateRangeSelection,
+                new String[]{locationSetting, Long.toString(startDate), Long.toString(endDate)},
+                null,
+                null,
+                null
+        );
+    }
+
+    /*
+        Finds the places whose names or location settings have words starting with each of
+        the words in the uri's query.  Like the weather by location queries, it ignores any
+        selection and sort order.
+     */
+    private Cursor getLocationSearch(Uri uri, String[] projection) {
+        String match = buildSearchMatch(WeatherContract.LocationSearchEntry.getQueryFromUri(uri));
+        if (match == null) {
+            // Nothing to search for, and MATCH would reject an empty query
+            return new MatrixCursor(projection != null ? projection : new String[]{
+                    WeatherContract.LocationSearchEntry._ID,
+                    WeatherContract.LocationSearchEntry.COLUMN_CITY_NAME,
+                    WeatherContract.LocationSearchEntry.COLUMN_LOCATION_SETTING,
+                    WeatherContract.LocationSearchEntry.COLUMN_COUNTRY,
+                    WeatherContract.LocationSearchEntry.COLUMN_SAVED});
+        }
+        int limit = WeatherContract.WeatherEntry.getLimitFromUri(uri);
+        return sLocationSearchQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+                projection,
+                sLocationSearchSelection,
+                new String[]{match},
+                null,
+                null,
+                sLocationSearchSortOrder,
+                limit > 0 ? Integer.toString(limit) : null
+        );
+    }
+
+    /*
+        Turns what the user typed into an FTS query that wants every word as a prefix: "san fr"
+        becomes "san* fr*".  The words are split where the index's tokenizer splits them, on
+        any ASCII character that isn't a letter or a digit, which also leaves out the quotes,
+        brackets and dashes the query syntax would read.  They're lower cased so none of them
+        reads as an operator such as OR.  Returns null if there are no words.
+     */
+    static String buildSearchMatch(String query) {
+        StringBuilder match = new StringBuilder();
+        int start = -1;
+        for (int i = 0; i <= query.length(); i++) {
+            char c = i < query.length() ? query.charAt(i) : ' ';
+            boolean separator = c < 128 && !Character.isLetterOrDigit(c);
+            if (!separator && start < 0) {
+                start = i;
+            } else if (separator && start >= 0) {
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                match.append(query.substring(start, i).toLowerCase(Locale.US)).append('*');
+                start = -1;
+            }
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    /*
+        Unpacks the archived months that overlap the uri's dates into a row a day, keeping the
+        days within the dates.  Like the weather by location queries, it ignores any selection;
+        it ignores the sort order too, as the days always come back by date.
+     */
+    private Cursor getArchiveByLocationSetting(Uri uri, String[] projection) {
+        String locationSetting =
+                WeatherContract.WeatherArchiveEntry.getLocationSettingFromUri(uri);
+        long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+        long endDate = WeatherContract.WeatherEntry.getEndDateFromUri(uri);
+        if (endDate == 0) {
+            endDate = Long.MAX_VALUE;
+        }
+        String[] columns = projection != null
+                ? projection : WeatherContract.WeatherArchiveEntry.DAY_COLUMNS;
+
+        Time dayTime = new Time();
+        long firstMonth = startDate == 0 ? 0 : ArchiveCodec.monthStart(startDate, dayTime);
+        Cursor months = sArchiveByLocationSettingQueryBuilder.query(
+                mOpenHelper.getReadableDatabase(),
+                new String[]{WeatherContract.WeatherArchiveEntry.COLUMN_LOC_KEY,
+                        WeatherContract.WeatherArchiveEntry.COLUMN_MONTH,
+                        WeatherContract.WeatherArchiveEntry.COLUMN_DATA},
+                sArchiveLocationSettingWithMonthRangeSelection,
+                new String[]{locationSetting, Long.toString(firstMonth), Long.toString(endDate)},
+                null,
+                null,
+                WeatherContract.WeatherArchiveEntry.COLUMN_MONTH + " ASC");
+
+        MatrixCursor days = new MatrixCursor(columns);
+        try {
+            while (months.moveToNext()) {
+                long locationId = months.getLong(0);
+                int firstOfMonth = ArchiveCodec.toJulianDay(months.getLong(1), dayTime);
+                for (ArchiveCodec.Day day : ArchiveCodec.decode(months.getBlob(2), firstOfMonth)) {
+                    long date = dayTime.setJulianDay(day.julianDay);
+                    if (date < startDate || date > endDate) {
+                        continue;
+                    }
+                    Object[] row = new Object[columns.length];
+                    for (int i = 0; i < columns.length; i++) {
+                        row[i] = getArchivedValue(columns[i], locationId, date, day);
+                    }
+                    days.addRow(row);
+                }
+            }
+        } finally {
+            months.close();
+        }
+        return days;
+    }
+
+    private static Object getArchivedValue(String column, long locationId, long date,
+                                           ArchiveCodec.Day day) {
+        if (column.equals(WeatherContract.WeatherArchiveEntry._ID)
+                || column.equals(WeatherContract.WeatherEntry.COLUMN_DATE)) {
+            return date;
+        }
+        if (column.equals(WeatherContract.WeatherEntry.COLUMN_LOC_KEY)) {
+            return locationId;
+        }
+        if (column.equals(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID)) {
+            return day.weatherId;
+        }
+        if (column.equals(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC)) {
+            return day.shortDesc;
+        }
+        for (int i = 0; i < ArchiveCodec.NUMERIC_COLUMNS.length; i++) {
+            if (column.equals(ArchiveCodec.NUMERIC_COLUMNS[i])) {
+                return day.values[i];
+            }
+        }
+        throw new IllegalArgumentException("Unknown archive column: " + column);
+    }
+
+    /*
+        The display rows for a location, from a date on, a page after a date or for one day, in
+        the user's units.  Like the weather by location queries, it ignores any selection.
+        Stale rows are formatted again first.
+     */
+    private Cursor getDisplayByLocationSetting(
+            int match, Uri uri, String[] projection, String sortOrder) {
+        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+        refreshStaleDisplay(locationSetting);
+        String selection;
+        String[] selectionArgs;
+        String limit = null;
+        if (match == WEATHER_DISPLAY_WITH_LOCATION_AND_DATE) {
+            selection = sLocationSettingAndDaySelection;
+            selectionArgs = new String[]{locationSetting,
+                    Long.toString(WeatherContract.WeatherEntry.getDateFromUri(uri))};
+        } else {
+            long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+            long afterDate = WeatherContract.WeatherEntry.getAfterDateFromUri(uri);
+            int limitRows = WeatherContract.WeatherEntry.getLimitFromUri(uri);
+            if (limitRows < 0) {
+                throw new IllegalArgumentException("Negative limit in uri: " + uri);
+            }
+            if (limitRows > 0) {
+                limit = Integer.toString(limitRows);
+            }
+            if (afterDate != 0) {
+                selection = sLocationSettingAfterDateSelection;
+                selectionArgs = new String[]{locationSetting, Long.toString(afterDate)};
+            } else if (startDate == 0) {
+                selection = sLocationSettingSelection;
+                selectionArgs = new String[]{locationSetting};
+            } else {
+                selection = sLocationSettingWithStartDateSelection;
+                selectionArgs = new String[]{locationSetting, Long.toString(startDate)};
+            }
+        }
+
+        SQLiteQueryBuilder builder = Utility.isMetric(getContext())
+                ? sMetricDisplayQueryBuilder : sImperialDisplayQueryBuilder;
+        return builder.query(mOpenHelper.getReadableDatabase(),
+                projection,
+                selection,
+                selectionArgs,
+                null,
+                null,
+                sortOrder,
+                limit
+        );
+    }
+
     /*
         Students: Here is where you need to create the UriMatcher. This UriMatcher will
         match each URI to the WEATHER, WEATHER_WITH_LOCATION, WEATHER_WITH_LOCATION_AND_DATE,
@@ -130,6 +820,18 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION + "/" +
+                WeatherContract.PATH_SEARCH, LOCATION_SEARCH);
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_HISTORY, SYNC_HISTORY);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER_ARCHIVE, WEATHER_ARCHIVE);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER_ARCHIVE + "/*",
+                WEATHER_ARCHIVE_WITH_LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER_DISPLAY + "/*",
+                WEATHER_DISPLAY_WITH_LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER_DISPLAY + "/*/#",
+                WEATHER_DISPLAY_WITH_LOCATION_AND_DATE);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/" +
+                WeatherContract.PATH_SUMMARY, WEATHER_SUMMARY_WITH_LOCATION);
         return matcher;
     }
 
@@ -140,6 +842,7 @@ public class WeatherProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         mOpenHelper = new WeatherDbHelper(getContext());
+        mDisplayBuilder = new WeatherDisplayBuilder(getContext());
         return true;
     }
 
@@ -164,6 +867,19 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case LOCATION_SEARCH:
+                return WeatherContract.LocationSearchEntry.CONTENT_TYPE;
+            case SYNC_HISTORY:
+                return WeatherContract.SyncHistoryEntry.CONTENT_TYPE;
+            case WEATHER_ARCHIVE:
+            case WEATHER_ARCHIVE_WITH_LOCATION:
+                return WeatherContract.WeatherArchiveEntry.CONTENT_TYPE;
+            case WEATHER_DISPLAY_WITH_LOCATION_AND_DATE:
+                return WeatherContract.WeatherDisplayEntry.CONTENT_ITEM_TYPE;
+            case WEATHER_DISPLAY_WITH_LOCATION:
+                return WeatherContract.WeatherDisplayEntry.CONTENT_TYPE;
+            case WEATHER_SUMMARY_WITH_LOCATION:
+                return WeatherContract.WeatherSummaryEntry.CONTENT_ITEM_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -175,16 +891,14 @@ public class WeatherProvider extends ContentProvider {
         // Here's the switch statement that, given a URI, will determine what kind of request it is,
         // and query the database accordingly.
         Cursor retCursor;
-        switch (sUriMatcher.match(uri)) {
+        Uri notificationUri = uri;
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
             // "weather/*/*"
             case WEATHER_WITH_LOCATION_AND_DATE:
-            {
-                retCursor = getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
-                break;
-            }
             // "weather/*"
             case WEATHER_WITH_LOCATION: {
-                retCursor = getWeatherByLocationSetting(uri, projection, sortOrder);
+                retCursor = getWeatherByLocationSettingCached(match, uri, projection, sortOrder);
                 break;
             }
             // "weather"
@@ -213,11 +927,73 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "location/search"
+            case LOCATION_SEARCH: {
+                retCursor = getLocationSearch(uri, projection);
+                // Saving, renaming or removing a location changes what the search finds
+                notificationUri = WeatherContract.LocationEntry.CONTENT_URI;
+                break;
+            }
+            // "sync_history"
+            case SYNC_HISTORY: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.SyncHistoryEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder != null ? sortOrder
+                                : WeatherContract.SyncHistoryEntry._ID + " DESC"
+                );
+                break;
+            }
+            // "weather_archive/*"
+            case WEATHER_ARCHIVE_WITH_LOCATION: {
+                retCursor = getArchiveByLocationSetting(uri, projection);
+                break;
+            }
+            // "weather_archive", the packed months as they are stored
+            case WEATHER_ARCHIVE: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.WeatherArchiveEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "weather_display/*/*"
+            case WEATHER_DISPLAY_WITH_LOCATION_AND_DATE:
+            // "weather_display/*"
+            case WEATHER_DISPLAY_WITH_LOCATION: {
+                retCursor = getDisplayByLocationSetting(match, uri, projection, sortOrder);
+                // The display rows change with the weather rows, so they're told of changes
+                // on the same uris
+                String locationSetting =
+                        WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+                notificationUri = match == WEATHER_DISPLAY_WITH_LOCATION_AND_DATE
+                        ? WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                                locationSetting, WeatherContract.WeatherEntry.getDateFromUri(uri))
+                        : WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting);
+                break;
+            }
+            // "weather/*/summary"
+            case WEATHER_SUMMARY_WITH_LOCATION: {
+                retCursor = getWeatherByLocationSettingCached(match, uri, projection, null);
+                // Any change to the location's days can change the sums
+                notificationUri = WeatherContract.WeatherEntry.buildWeatherLocation(
+                        WeatherContract.WeatherEntry.getLocationSettingFromUri(uri));
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        retCursor.setNotificationUri(getContext().getContentResolver(), uri);
+        retCursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
         return retCursor;
     }
 
@@ -233,19 +1009,42 @@ public class WeatherProvider extends ContentProvider {
         switch (match) {
             case WEATHER: {
                 normalizeDate(values);
-                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                WeatherChanges changes = new WeatherChanges();
+                long _id;
+                db.beginTransaction();
+                try {
+                    _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                    if (_id > 0) {
+                        changes.add(new ContentValues[]{values});
+                        refreshDisplay(db, changes);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 if ( _id > 0 )
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
-                break;
+                publishWeatherChanges(changes);
+                return returnUri;
             }
             case LOCATION: {
+                invalidateLocationCache();
                 long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
                 if ( _id > 0 )
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                mQueryCache.invalidateAll();
+                break;
+            }
+            case SYNC_HISTORY: {
+                long _id = db.insert(WeatherContract.SyncHistoryEntry.TABLE_NAME, null, values);
+                if ( _id > 0 )
+                    returnUri = ContentUris.withAppendedId(uri, _id);
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
             }
             default:
@@ -263,13 +1062,32 @@ public class WeatherProvider extends ContentProvider {
         // this makes delete all rows return the number of rows deleted
         if ( null == selection ) selection = "1";
         switch (match) {
-            case WEATHER:
-                rowsDeleted = db.delete(
-                        WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
-                break;
+            case WEATHER: {
+                WeatherChanges changes = new WeatherChanges();
+                db.beginTransaction();
+                try {
+                    rowsDeleted = deleteWeather(db, selection, selectionArgs, changes);
+                    refreshDisplay(db, changes);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                publishWeatherChanges(changes);
+                return rowsDeleted;
+            }
             case LOCATION:
+                invalidateLocationCache();
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                mQueryCache.invalidateAll();
+                break;
+            case SYNC_HISTORY:
+                rowsDeleted = db.delete(
+                        WeatherContract.SyncHistoryEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            case WEATHER_ARCHIVE:
+                rowsDeleted = db.delete(
+                        WeatherContract.WeatherArchiveEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -281,7 +1099,7 @@ public class WeatherProvider extends ContentProvider {
         return rowsDeleted;
     }
 
-    private void normalizeDate(ContentValues values) {
+    private static void normalizeDate(ContentValues values) {
         // normalize the date value
         if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
             long dateValue = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
@@ -297,14 +1115,34 @@ public class WeatherProvider extends ContentProvider {
         int rowsUpdated;
 
         switch (match) {
-            case WEATHER:
+            case WEATHER: {
                 normalizeDate(values);
-                rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
-                break;
+                WeatherChanges changes = new WeatherChanges();
+                db.beginTransaction();
+                try {
+                    // The rows' days, as they were.  If the update moves rows to other days,
+                    // there's no telling which, so the display is formatted afresh.
+                    collectWeatherDays(db, selection, selectionArgs, changes);
+                    if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_LOC_KEY)
+                            || values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
+                        changes.unknown = true;
+                    }
+                    rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values,
+                            selection, selectionArgs);
+                    refreshDisplay(db, changes);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                // Only the days the update touched, unless it moved rows to days unknown
+                publishWeatherChanges(changes);
+                return rowsUpdated;
+            }
             case LOCATION:
+                invalidateLocationCache();
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                mQueryCache.invalidateAll();
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -321,27 +1159,925 @@ public class WeatherProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case WEATHER:
-                db.beginTransaction();
-                int returnCount = 0;
-                try {
-                    for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
-                            returnCount++;
-                        }
-                    }
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
+                if (WeatherContract.WeatherEntry.isDeltaUpsert(uri)) {
+                    return upsertWeather(values, null, null);
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
+                WeatherChanges changes = new WeatherChanges();
+                int returnCount = insertWeather(db, values, changes);
+                publishWeatherChanges(changes);
                 return returnCount;
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /**
+     * Inserts weather rows in one transaction, with {@link #insertWeatherRows}.  The rows' days
+     * go into the changes, and their display rows are formatted in the same transaction.
+     *
+     * @return the number of rows inserted
+     */
+    private int insertWeather(SQLiteDatabase db, ContentValues[] values,
+                              WeatherChanges changes) {
+        int returnCount;
+        db.beginTransaction();
+        try {
+            returnCount = insertWeatherRows(db, values);
+            changes.add(values);
+            refreshDisplay(db, changes);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return returnCount;
+    }
+
+    /**
+     * Inserts weather rows through one compiled statement that is bound afresh for each row.
+     * That saves building the SQL and going through a map of columns for every row, as
+     * SQLiteDatabase.insert does.  A row with a column the statement doesn't know still goes
+     * through insert, so it fails the same way it always did.  The caller holds the
+     * transaction.  Not private, so TestBulkInsertBenchmark can time it on its own.
+     *
+     * @return the number of rows inserted
+     */
+    static int insertWeatherRows(SQLiteDatabase db, ContentValues[] values) {
+        DateNormalizer dateNormalizer = new DateNormalizer();
+        int returnCount = 0;
+        SQLiteStatement statement = db.compileStatement(sWeatherInsertStatement);
+        try {
+            for (ContentValues value : values) {
+                if (!bindWeatherRow(statement, value, dateNormalizer)) {
+                    normalizeDate(value);
+                    if (db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value) != -1) {
+                        returnCount++;
+                    }
+                    continue;
+                }
+                try {
+                    statement.executeInsert();
+                    returnCount++;
+                } catch (SQLException e) {
+                    // Like insert, skip the row and carry on with the rest
+                    Log.e(LOG_TAG, "Error inserting " + value, e);
+                }
+            }
+        } finally {
+            statement.close();
+        }
+        return returnCount;
+    }
+
+    /**
+     * Binds a weather row to the insert, find or update statement.  Returns false, binding
+     * nothing, if the row has a column the statements don't have.
+     */
+    private static boolean bindWeatherRow(SQLiteStatement statement, ContentValues value,
+                                          DateNormalizer dateNormalizer) {
+        int bound = 0;
+        for (int i = 0; i < sWeatherInsertColumns.length; i++) {
+            if (value.containsKey(sWeatherInsertColumns[i])) {
+                bound++;
+            }
+        }
+        if (bound != value.size()) {
+            return false;
+        }
+
+        statement.clearBindings();
+        for (int i = 0; i < sWeatherInsertColumns.length; i++) {
+            // Bind indexes start at 1
+            if (i == WEATHER_INSERT_DATE_INDEX) {
+                Long date = value.getAsLong(sWeatherInsertColumns[i]);
+                if (date != null) {
+                    statement.bindLong(i + 1, dateNormalizer.normalize(date));
+                    continue;
+                }
+            }
+            // Binds each value as its own type, and a missing one as null
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, value.get(sWeatherInsertColumns[i]));
+        }
+        return true;
+    }
+
+    @Override
+    @TargetApi(11)
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.METHOD_INGEST.equals(method)) {
+            return ingest(extras);
+        }
+        if (WeatherContract.METHOD_RUN_MAINTENANCE.equals(method)) {
+            return runMaintenance(extras == null ? Bundle.EMPTY : extras);
+        }
+        if (WeatherContract.METHOD_GET_FORECAST_SNAPSHOT.equals(method)) {
+            return getForecastSnapshot(extras);
+        }
+        if (WeatherContract.METHOD_GET_CACHE_STATS.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(WeatherContract.KEY_CACHE_HITS, mQueryCache.getHits());
+            result.putLong(WeatherContract.KEY_CACHE_MISSES, mQueryCache.getMisses());
+            return result;
+        }
+        if (WeatherContract.METHOD_UPSERT_WEATHER.equals(method)) {
+            ContentValues[] values =
+                    toContentValues(extras.getParcelableArray(WeatherContract.KEY_VALUES));
+            long[] changedLocationIds = new long[values.length];
+            long[] changedDates = new long[values.length];
+            int changed = upsertWeather(values, changedLocationIds, changedDates);
+
+            Bundle result = new Bundle();
+            result.putInt(WeatherContract.KEY_CHANGED_COUNT, changed);
+            result.putLongArray(WeatherContract.KEY_CHANGED_LOCATION_IDS,
+                    Arrays.copyOf(changedLocationIds, changed));
+            result.putLongArray(WeatherContract.KEY_CHANGED_DATES,
+                    Arrays.copyOf(changedDates, changed));
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Handles {@link WeatherContract#METHOD_GET_FORECAST_SNAPSHOT}: each location's display
+     * rows, read like the display queries read them, but handed back as arrays instead of
+     * through a cursor.
+     */
+    private Bundle getForecastSnapshot(Bundle extras) {
+        String[] locationSettings = extras.getStringArray(WeatherContract.KEY_LOCATION_SETTINGS);
+        if (locationSettings == null) {
+            throw new IllegalArgumentException("No locations for the snapshot");
+        }
+        String startDate = Long.toString(WeatherContract.normalizeDate(
+                extras.getLong(WeatherContract.KEY_START_DATE, System.currentTimeMillis())));
+        int dayCount = extras.getInt(WeatherContract.KEY_DAY_COUNT, 0);
+        if (dayCount < 0) {
+            throw new IllegalArgumentException("Negative day count: " + dayCount);
+        }
+
+        SQLiteQueryBuilder builder = Utility.isMetric(getContext())
+                ? sMetricDisplayQueryBuilder : sImperialDisplayQueryBuilder;
+        final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Bundle result = new Bundle();
+        for (String locationSetting : locationSettings) {
+            refreshStaleDisplay(locationSetting);
+            Cursor cursor = builder.query(db,
+                    WeatherSnapshot.COLUMNS,
+                    sLocationSettingWithStartDateSelection,
+                    new String[]{locationSetting, startDate},
+                    null,
+                    null,
+                    WeatherContract.WeatherDisplayEntry.COLUMN_DATE + " ASC",
+                    dayCount == 0 ? null : Integer.toString(dayCount));
+            try {
+                result.putBundle(locationSetting, WeatherSnapshot.toBundle(cursor));
+            } finally {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Handles {@link WeatherContract#METHOD_INGEST}: the locations, their weather and the
+     * retention deletes go in together, in one transaction, and observers hear about it once.
+     */
+    private Bundle ingest(Bundle extras) {
+        ContentValues[] locations =
+                toContentValues(extras.getParcelableArray(WeatherContract.KEY_LOCATIONS));
+        ContentValues[] values =
+                toContentValues(extras.getParcelableArray(WeatherContract.KEY_VALUES));
+        long[] locationIds = new long[locations.length];
+        long[] changedLocationIds = new long[values.length];
+        long[] changedDates = new long[values.length];
+        HashMap<String, CachedLocation> written = new HashMap<String, CachedLocation>();
+        int generation;
+        synchronized (mLocationCache) {
+            generation = mLocationCacheGeneration;
+        }
+
+        refreshStaleDisplay();
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        // The locations the ingest inserted, and of those it updated, the ones that were
+        // stored before
+        ArrayList<String> changedLocations = new ArrayList<String>();
+        ArrayList<String> updatedLocations = new ArrayList<String>();
+        int changed;
+        int deleted;
+        WeatherChanges changes = new WeatherChanges();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < locations.length; i++) {
+                ContentValues location = locations[i];
+                String locationSetting = location.getAsString(
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+                CachedLocation stored = findLocation(db, locationSetting, location);
+                long locationId;
+                if (stored == null) {
+                    locationId = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, location);
+                    if (locationId == -1) {
+                        throw new SQLException("Failed to insert location " + locationSetting);
+                    }
+                    changedLocations.add(locationSetting);
+                } else {
+                    locationId = stored.id;
+                    if (stored.needsUpdate) {
+                        db.update(WeatherContract.LocationEntry.TABLE_NAME, location,
+                                WeatherContract.LocationEntry._ID + " = ?",
+                                new String[]{Long.toString(locationId)});
+                        changedLocations.add(locationSetting);
+                        updatedLocations.add(locationSetting);
+                    }
+                }
+                locationIds[i] = locationId;
+                written.put(locationSetting, new CachedLocation(locationId, location));
+            }
+
+            // Swap each row's location setting for the id it now has
+            for (ContentValues value : values) {
+                String locationSetting = value.getAsString(
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+                if (locationSetting != null) {
+                    value.remove(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+                    CachedLocation location = written.get(locationSetting);
+                    if (location != null) {
+                        value.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, location.id);
+                    }
+                }
+            }
+            changed = upsertWeatherRows(db, values, changedLocationIds, changedDates);
+            changes.add(changedLocationIds, changedDates, changed);
+
+            deleted = applyRetention(db, extras, changes);
+            refreshDisplay(db, changes);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        synchronized (mLocationCache) {
+            if (generation == mLocationCacheGeneration) {
+                mLocationCache.putAll(written);
+            }
+        }
+
+        // A new or renamed location changes what the weather queries of that location join
+        // in, so those results go and the location's readers hear about it, as do the
+        // readers of the location table.  Each changed or deleted day is told once as usual.
+        if (!changedLocations.isEmpty()) {
+            mQueryCache.invalidate(changedLocations);
+            ContentResolver resolver = getContext().getContentResolver();
+            resolver.notifyChange(WeatherContract.LocationEntry.CONTENT_URI, null);
+            for (String locationSetting : updatedLocations) {
+                resolver.notifyChange(
+                        WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting), null);
+            }
+        }
+        publishWeatherChanges(changes);
+
+        Bundle result = new Bundle();
+        result.putLongArray(WeatherContract.KEY_LOCATION_IDS, locationIds);
+        result.putInt(WeatherContract.KEY_CHANGED_COUNT, changed);
+        result.putLongArray(WeatherContract.KEY_CHANGED_LOCATION_IDS,
+                Arrays.copyOf(changedLocationIds, changed));
+        result.putLongArray(WeatherContract.KEY_CHANGED_DATES,
+                Arrays.copyOf(changedDates, changed));
+        result.putInt(WeatherContract.KEY_DELETED_COUNT, deleted);
+        result.putInt(WeatherContract.KEY_ARCHIVED_COUNT, changes.archived);
+        return result;
+    }
+
+    /**
+     * Handles {@link WeatherContract#METHOD_RUN_MAINTENANCE}: applies the retention policy,
+     * then hands the space that frees, and any other unused pages, back to the file system.
+     */
+    private Bundle runMaintenance(Bundle extras) {
+        refreshStaleDisplay();
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        WeatherChanges changes = new WeatherChanges();
+        int deleted;
+        db.beginTransaction();
+        try {
+            deleted = applyRetention(db, extras, changes);
+            refreshDisplay(db, changes);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        publishWeatherChanges(changes);
+
+        // Vacuuming can't be done inside a transaction, so it comes after the deletes commit
+        long freed = WeatherDbHelper.reclaimSpace(db);
+        Log.d(LOG_TAG, "Maintenance deleted " + deleted + " rows, archived " + changes.archived
+                + " and freed " + freed + " bytes");
+
+        Bundle result = new Bundle();
+        result.putInt(WeatherContract.KEY_DELETED_COUNT, deleted);
+        result.putInt(WeatherContract.KEY_ARCHIVED_COUNT, changes.archived);
+        result.putLong(WeatherContract.KEY_FREED_BYTES, freed);
+        return result;
+    }
+
+    /*
+        Removes the weather the retention extras ask to (see WeatherRetentionPolicy), inside the
+        caller's transaction, and returns how many rows went.  The row and size limits only
+        take days from before today, oldest first.  If the extras ask for an archive, what the
+        date and row limits remove goes into it first.
+     */
+    private static int applyRetention(SQLiteDatabase db, Bundle extras, WeatherChanges changes) {
+        Long archiveStart = null;
+        if (extras.containsKey(WeatherContract.KEY_ARCHIVE_START_DATE)) {
+            archiveStart = extras.getLong(WeatherContract.KEY_ARCHIVE_START_DATE);
+            if (db.delete(WeatherContract.WeatherArchiveEntry.TABLE_NAME, sArchiveExpirySelection,
+                    new String[]{archiveStart.toString()}) > 0) {
+                changes.archiveChanged = true;
+            }
+        }
+
+        int deleted = 0;
+        if (extras.containsKey(WeatherContract.KEY_RETENTION_DATE)) {
+            String[] selectionArgs = new String[]{Long.toString(
+                    extras.getLong(WeatherContract.KEY_RETENTION_DATE))};
+            if (archiveStart != null) {
+                archiveWeather(db, sRetentionSelection, selectionArgs, archiveStart, changes);
+            }
+            deleted += deleteWeather(db, sRetentionSelection, selectionArgs, changes);
+        }
+        if (!extras.containsKey(WeatherContract.KEY_TODAY_DATE)) {
+            return deleted;
+        }
+        long yesterday = extras.getLong(WeatherContract.KEY_TODAY_DATE) - 1;
+
+        int maxRows = extras.getInt(WeatherContract.KEY_MAX_ROWS_PER_LOCATION, 0);
+        if (maxRows > 0) {
+            Cursor locations = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                    new String[]{WeatherContract.LocationEntry._ID}, null, null, null, null, null);
+            try {
+                while (locations.moveToNext()) {
+                    // The newest row past the limit goes, and everything older with it.  The
+                    // MAX() gives null, rather than no row, for a location within the limit.
+                    String locationId = locations.getString(0);
+                    String firstOver = DatabaseUtils.stringForQuery(db, "SELECT MAX(" +
+                            WeatherContract.WeatherEntry.COLUMN_DATE + ") FROM (SELECT " +
+                            WeatherContract.WeatherEntry.COLUMN_DATE + " FROM " +
+                            WeatherContract.WeatherEntry.TABLE_NAME + " WHERE " +
+                            sLocationIdSelection + " ORDER BY " +
+                            WeatherContract.WeatherEntry.COLUMN_DATE + " DESC LIMIT 1 OFFSET " +
+                            maxRows + ")", new String[]{locationId});
+                    if (firstOver != null) {
+                        long endDate = Math.min(Long.parseLong(firstOver), yesterday);
+                        String[] selectionArgs =
+                                new String[]{locationId, Long.toString(endDate)};
+                        if (archiveStart != null) {
+                            archiveWeather(db, sLocationIdRetentionSelection, selectionArgs,
+                                    archiveStart, changes);
+                        }
+                        deleted += deleteWeather(db, sLocationIdRetentionSelection,
+                                selectionArgs, changes);
+                    }
+                }
+            } finally {
+                locations.close();
+            }
+        }
+
+        long maxBytes = extras.getLong(WeatherContract.KEY_MAX_DATABASE_BYTES, 0);
+        if (maxBytes > 0) {
+            // A day of all the locations at a time, until the database fits or only the
+            // forecast is left
+            while (WeatherDbHelper.getUsedBytes(db) > maxBytes) {
+                String oldest = DatabaseUtils.stringForQuery(db, "SELECT MIN(" +
+                        WeatherContract.WeatherEntry.COLUMN_DATE + ") FROM " +
+                        WeatherContract.WeatherEntry.TABLE_NAME + " WHERE " +
+                        sRetentionSelection, new String[]{Long.toString(yesterday)});
+                if (oldest == null) {
+                    break;
+                }
+                deleted += deleteWeather(db, sRetentionSelection, new String[]{oldest}, changes);
+                // The day's display rows take room too, and the refresh that would delete
+                // them only comes after this
+                db.delete(WeatherContract.WeatherDisplayEntry.TABLE_NAME, sRetentionSelection,
+                        new String[]{oldest});
+            }
+        }
+        return deleted;
+    }
+
+    /*
+        Packs the weather rows the selection matches from the archive's start date on into the
+        archive, a month of a location at a time, inside the caller's transaction.  A month
+        that is already archived is unpacked and merged, with the rows winning over what it
+        had for the same day.  The rows themselves are left for the caller to delete.
+     */
+    private static void archiveWeather(SQLiteDatabase db, String selection,
+                                       String[] selectionArgs, long archiveStart,
+                                       WeatherChanges changes) {
+        String[] args = Arrays.copyOf(selectionArgs, selectionArgs.length + 1);
+        args[selectionArgs.length] = Long.toString(archiveStart);
+        Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME, sArchiveSourceColumns,
+                "(" + selection + ") AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?",
+                args, null, null, WeatherContract.WeatherEntry.COLUMN_LOC_KEY + ", " +
+                        WeatherContract.WeatherEntry.COLUMN_DATE);
+        Time dayTime = new Time();
+        ArrayList<ArchiveCodec.Day> month = new ArrayList<ArchiveCodec.Day>();
+        long locationId = 0;
+        int firstOfMonth = 0;
+        try {
+            while (cursor.moveToNext()) {
+                long rowLocationId = cursor.getLong(0);
+                int julianDay = ArchiveCodec.toJulianDay(cursor.getLong(1), dayTime);
+                int rowFirstOfMonth = ArchiveCodec.firstOfMonth(julianDay, dayTime);
+                if (!month.isEmpty()
+                        && (rowLocationId != locationId || rowFirstOfMonth != firstOfMonth)) {
+                    archiveMonth(db, locationId, firstOfMonth, month, dayTime);
+                    month.clear();
+                }
+                locationId = rowLocationId;
+                firstOfMonth = rowFirstOfMonth;
+
+                double[] values = new double[ArchiveCodec.NUMERIC_COLUMNS.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = cursor.getDouble(ARCHIVE_SOURCE_NUMERIC_INDEX + i);
+                }
+                month.add(new ArchiveCodec.Day(julianDay, cursor.getInt(2), cursor.getString(3),
+                        values));
+                changes.archived++;
+            }
+        } finally {
+            cursor.close();
+        }
+        if (!month.isEmpty()) {
+            archiveMonth(db, locationId, firstOfMonth, month, dayTime);
+        }
+    }
+
+    private static void archiveMonth(SQLiteDatabase db, long locationId, int firstOfMonth,
+                                     List<ArchiveCodec.Day> days, Time dayTime) {
+        long monthStart = dayTime.setJulianDay(firstOfMonth);
+        TreeMap<Integer, ArchiveCodec.Day> merged = new TreeMap<Integer, ArchiveCodec.Day>();
+        Cursor stored = db.query(WeatherContract.WeatherArchiveEntry.TABLE_NAME,
+                new String[]{WeatherContract.WeatherArchiveEntry.COLUMN_DATA},
+                sArchiveLocationIdAndMonthSelection,
+                new String[]{Long.toString(locationId), Long.toString(monthStart)},
+                null, null, null);
+        try {
+            if (stored.moveToFirst()) {
+                for (ArchiveCodec.Day day : ArchiveCodec.decode(stored.getBlob(0), firstOfMonth)) {
+                    merged.put(day.julianDay, day);
+                }
+            }
+        } finally {
+            stored.close();
+        }
+        for (ArchiveCodec.Day day : days) {
+            merged.put(day.julianDay, day);
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.WeatherArchiveEntry.COLUMN_LOC_KEY, locationId);
+        values.put(WeatherContract.WeatherArchiveEntry.COLUMN_MONTH, monthStart);
+        values.put(WeatherContract.WeatherArchiveEntry.COLUMN_DAY_COUNT, merged.size());
+        values.put(WeatherContract.WeatherArchiveEntry.COLUMN_DATA, ArchiveCodec.encode(
+                new ArrayList<ArchiveCodec.Day>(merged.values()), firstOfMonth));
+        // The UNIQUE constraint replaces the month's old row
+        if (db.insert(WeatherContract.WeatherArchiveEntry.TABLE_NAME, null, values) == -1) {
+            throw new SQLException("Failed to archive month " + monthStart + " of location "
+                    + locationId);
+        }
+    }
+
+    /*
+        Deletes the weather rows the selection matches, and adds their days to the changes
+        first, so only the observers of those days are told
+     */
+    private static int deleteWeather(SQLiteDatabase db, String selection, String[] selectionArgs,
+                                     WeatherChanges changes) {
+        collectWeatherDays(db, selection, selectionArgs, changes);
+        return db.delete(WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+    }
+
+    /**
+     * Looks a location up by its setting, from the cache if it's there.  Returns null if the
+     * location isn't stored.  The returned entry holds the given values, and says whether the
+     * stored row needs updating to match them.
+     */
+    private CachedLocation findLocation(SQLiteDatabase db, String locationSetting,
+                                        ContentValues values) {
+        CachedLocation cached;
+        synchronized (mLocationCache) {
+            cached = mLocationCache.get(locationSetting);
+        }
+        if (cached != null) {
+            return new CachedLocation(cached.id, values, !cached.values.equals(values));
+        }
+
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME, null,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting}, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            long id = cursor.getLong(cursor.getColumnIndex(WeatherContract.LocationEntry._ID));
+            return new CachedLocation(id, values, !isSameRow(cursor, values));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void invalidateLocationCache() {
+        synchronized (mLocationCache) {
+            mLocationCache.clear();
+            mLocationCacheGeneration++;
+        }
+    }
+
+    /**
+     * Tells observers about the weather a write changed, once it has committed, and drops the
+     * query cache's results for the locations it changed.  Each changed day is notified once,
+     * on its own weather/<location>/<date> uri.  That reaches the detail view of that day, the
+     * list of that location and anyone observing all the weather, but not the readers of other
+     * days or other locations.
+     */
+    private void publishWeatherChanges(WeatherChanges changes) {
+        ContentResolver resolver = getContext().getContentResolver();
+        if (changes.archived > 0 || changes.archiveChanged) {
+            resolver.notifyChange(WeatherContract.WeatherArchiveEntry.CONTENT_URI, null);
+        }
+        if (changes.unknown) {
+            mQueryCache.invalidateAll();
+            resolver.notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
+            return;
+        }
+        if (changes.days.isEmpty()) {
+            return;
+        }
+
+        HashMap<Long, String> locationSettings = getLocationSettings(changes.days.keySet());
+        mQueryCache.invalidate(locationSettings.values());
+        boolean byDay = changes.count <= MAX_DAY_NOTIFICATIONS;
+        for (Map.Entry<Long, LinkedHashSet<Long>> entry : changes.days.entrySet()) {
+            String locationSetting = locationSettings.get(entry.getKey());
+            if (locationSetting == null) {
+                // Weather for a location that isn't there any more; nobody can be reading it
+                // by location, so tell whoever reads the whole table
+                resolver.notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
+            } else if (byDay) {
+                for (Long date : entry.getValue()) {
+                    resolver.notifyChange(WeatherContract.WeatherEntry
+                            .buildWeatherLocationWithDate(locationSetting, date), null);
+                }
+            } else {
+                resolver.notifyChange(WeatherContract.WeatherEntry
+                        .buildWeatherLocation(locationSetting), null);
+            }
+        }
+    }
+
+    /**
+     * Adds the location and date of every weather row the selection matches.
+     */
+    private static void collectWeatherDays(SQLiteDatabase db, String selection,
+                                           String[] selectionArgs, WeatherChanges changes) {
+        Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                new String[]{WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                        WeatherContract.WeatherEntry.COLUMN_DATE},
+                selection, selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                changes.add(cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+        Formats the display rows of the days a write changed, inside the write's transaction.
+        For each location, the display rows from its first changed day to its last are
+        deleted and formatted again from the weather rows that are left, which also takes
+        away the display rows of deleted weather.
+     */
+    private void refreshDisplay(SQLiteDatabase db, WeatherChanges changes) {
+        if (changes.unknown) {
+            rebuildDisplay(db, null, null);
+            return;
+        }
+        for (Map.Entry<Long, LinkedHashSet<Long>> entry : changes.days.entrySet()) {
+            long first = Long.MAX_VALUE;
+            long last = Long.MIN_VALUE;
+            for (Long date : entry.getValue()) {
+                first = Math.min(first, date);
+                last = Math.max(last, date);
+            }
+            rebuildDisplay(db, sLocationIdWithDateRangeSelection, new String[]{
+                    entry.getKey().toString(), Long.toString(first), Long.toString(last)});
+        }
+    }
+
+    /*
+        Replaces the display rows the selection matches with freshly formatted ones, from the
+        weather rows it matches.  The selection may only use the location and date columns,
+        which both tables have.
+     */
+    private void rebuildDisplay(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        db.delete(WeatherContract.WeatherDisplayEntry.TABLE_NAME, selection, selectionArgs);
+        Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                WeatherDisplayBuilder.SOURCE_COLUMNS, selection, selectionArgs,
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (db.insert(WeatherContract.WeatherDisplayEntry.TABLE_NAME, null,
+                        mDisplayBuilder.build(cursor)) == -1) {
+                    throw new SQLException("Failed to format weather for display");
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+        Formats the display rows again if what they say has gone stale: all of them after a
+        change of locale or of the app, or the first time they're read, and the ones from the
+        day they were last brought up to date on once a day has gone by, since "Today" and
+        "Tomorrow" have moved.  Older days read the same whatever day it is.  The sync's writes
+        and the maintenance job call this, off the main thread and before their own
+        transactions, so reads don't have to wait for it.
+     */
+    private void refreshStaleDisplay() {
+        Time dayTime = new Time();
+        int today = ArchiveCodec.toJulianDay(System.currentTimeMillis(), dayTime);
+        synchronized (mDisplayLock) {
+            int formattedDay = WeatherDisplayBuilder.getFormattedDay(getContext());
+            if (formattedDay == today) {
+                return;
+            }
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                rebuildDisplay(db, sFromDateSelection, new String[]{
+                        Long.toString(getStaleSince(formattedDay, today, dayTime))});
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            WeatherDisplayBuilder.setFormattedDay(getContext(), today);
+        }
+        // Whoever is showing the old rows reads them again
+        getContext().getContentResolver().notifyChange(
+                WeatherContract.WeatherEntry.CONTENT_URI, null);
+    }
+
+    /*
+        The read's share of refreshStaleDisplay: if the rows are stale, formats just the
+        given location's again, the first time it's read, and leaves the rest of the table
+        to the next sync or maintenance run.
+     */
+    private void refreshStaleDisplay(String locationSetting) {
+        Time dayTime = new Time();
+        int today = ArchiveCodec.toJulianDay(System.currentTimeMillis(), dayTime);
+        synchronized (mDisplayLock) {
+            int formattedDay = WeatherDisplayBuilder.getFormattedDay(getContext());
+            if (formattedDay == today || WeatherDisplayBuilder.isLocationFormatted(
+                    getContext(), locationSetting, today)) {
+                return;
+            }
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                rebuildDisplay(db, sLocationSettingFromDateSelection, new String[]{
+                        locationSetting,
+                        Long.toString(getStaleSince(formattedDay, today, dayTime))});
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            WeatherDisplayBuilder.setLocationFormatted(getContext(), locationSetting, today);
+        }
+    }
+
+    // The first date whose display rows are stale, given the day they were formatted on
+    private static long getStaleSince(int formattedDay, int today, Time dayTime) {
+        // A clock that went back leaves no telling what's stale, so all of it goes
+        return formattedDay == 0 || formattedDay > today
+                ? 0 : dayTime.setJulianDay(formattedDay);
+    }
+
+    /**
+     * Looks up the settings of these locations, by id.  Locations that aren't stored are left
+     * out.
+     */
+    private HashMap<Long, String> getLocationSettings(Collection<Long> locationIds) {
+        StringBuilder selection = new StringBuilder(WeatherContract.LocationEntry._ID)
+                .append(" IN (");
+        String[] selectionArgs = new String[locationIds.size()];
+        int i = 0;
+        for (Long locationId : locationIds) {
+            selection.append(i == 0 ? "?" : ", ?");
+            selectionArgs[i++] = locationId.toString();
+        }
+        selection.append(")");
+
+        HashMap<Long, String> locationSettings = new HashMap<Long, String>();
+        Cursor cursor = mOpenHelper.getReadableDatabase().query(
+                WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID,
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                selection.toString(), selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                locationSettings.put(cursor.getLong(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return locationSettings;
+    }
+
+    private static ContentValues[] toContentValues(Parcelable[] parcelables) {
+        if (parcelables == null) {
+            return new ContentValues[0];
+        }
+        ContentValues[] values = new ContentValues[parcelables.length];
+        for (int i = 0; i < parcelables.length; i++) {
+            values[i] = (ContentValues) parcelables[i];
+        }
+        return values;
+    }
+
+    /**
+     * Writes only the weather rows that differ from what's stored, in one transaction.  A row
+     * that is already stored for the same location and date is updated in place, so its _id
+     * doesn't change, and a row that matches it exactly isn't written at all.  Only the
+     * observers of the days that were written are notified.
+     *
+     * @param changedLocationIds if not null, receives the location id of each written row
+     * @param changedDates if not null, receives the date of each written row
+     * @return the number of rows written
+     */
+    private int upsertWeather(ContentValues[] values, long[] changedLocationIds,
+                              long[] changedDates) {
+        // Before Honeycomb the sync writes through here rather than through ingest
+        refreshStaleDisplay();
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        // Observers and the query cache need these even if the caller doesn't
+        if (changedLocationIds == null) {
+            changedLocationIds = new long[values.length];
+        }
+        if (changedDates == null) {
+            changedDates = new long[values.length];
+        }
+        int changed;
+        WeatherChanges changes = new WeatherChanges();
+        db.beginTransaction();
+        try {
+            changed = upsertWeatherRows(db, values, changedLocationIds, changedDates);
+            changes.add(changedLocationIds, changedDates, changed);
+            refreshDisplay(db, changes);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        publishWeatherChanges(changes);
+        return changed;
+    }
+
+    /**
+     * The body of {@link #upsertWeather}, for callers that already hold a transaction and
+     * notify observers themselves.  A row with every weather column is looked up, compared
+     * and written through compiled statements, bound afresh for each row; any other row goes
+     * through query, insert and update.  Not private, so TestBulkInsertBenchmark can time it
+     * on its own.
+     */
+    static int upsertWeatherRows(SQLiteDatabase db, ContentValues[] values,
+                                 long[] changedLocationIds, long[] changedDates) {
+        DateNormalizer dateNormalizer = new DateNormalizer();
+        int changed = 0;
+        SQLiteStatement find = db.compileStatement(sWeatherFindStatement);
+        SQLiteStatement insert = null;
+        SQLiteStatement update = null;
+        try {
+            insert = db.compileStatement(sWeatherInsertStatement);
+            update = db.compileStatement(sWeatherUpdateStatement);
+            for (ContentValues value : values) {
+                Long locationId = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+                Long date = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+                if (locationId == null || date == null) {
+                    // Without its key the row can't be stored; let the insert say why
+                    normalizeDate(value);
+                    db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                    continue;
+                }
+
+                date = dateNormalizer.normalize(date);
+                boolean written;
+                if (value.size() == sWeatherInsertColumns.length
+                        && bindWeatherRow(find, value, dateNormalizer)) {
+                    written = upsertWeatherRow(find, insert, update, value, dateNormalizer);
+                } else {
+                    value.put(WeatherContract.WeatherEntry.COLUMN_DATE, date);
+                    written = upsertWeatherRow(db, value, locationId, date);
+                }
+                if (written) {
+                    changedLocationIds[changed] = locationId;
+                    changedDates[changed] = date;
+                    changed++;
+                }
+            }
+        } finally {
+            find.close();
+            if (insert != null) {
+                insert.close();
+            }
+            if (update != null) {
+                update.close();
+            }
+        }
+        return changed;
+    }
+
+    /*
+        Writes a row that is bound to the find statement, if it isn't stored already.  The
+        find statement answers whether the row's day is stored and matches in one step.
+        Returns true if the row was written.
+     */
+    private static boolean upsertWeatherRow(SQLiteStatement find, SQLiteStatement insert,
+                                            SQLiteStatement update, ContentValues value,
+                                            DateNormalizer dateNormalizer) {
+        long _id = find.simpleQueryForLong();
+        if (_id == WEATHER_ROW_UNCHANGED) {
+            return false;
+        }
+        try {
+            if (_id == WEATHER_ROW_NOT_STORED) {
+                bindWeatherRow(insert, value, dateNormalizer);
+                return insert.executeInsert() != -1;
+            }
+            bindWeatherRow(update, value, dateNormalizer);
+            update.bindLong(sWeatherInsertColumns.length + 1, _id);
+            // execute rather than executeUpdateDelete, which Gingerbread doesn't have
+            update.execute();
+            return true;
+        } catch (SQLException e) {
+            // Like insert, skip the row and carry on with the rest
+            Log.e(LOG_TAG, "Error writing " + value, e);
+            return false;
+        }
+    }
+
+    /*
+        Writes a row that only has some of the weather columns, if it isn't stored already,
+        leaving the columns it doesn't have as they are.  Returns true if the row was written.
+     */
+    private static boolean upsertWeatherRow(SQLiteDatabase db, ContentValues value,
+                                            long locationId, long date) {
+        Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                sLocationIdAndDaySelection,
+                new String[]{Long.toString(locationId), Long.toString(date)},
+                null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value) != -1;
+            }
+            if (isSameRow(cursor, value)) {
+                return false;
+            }
+            long _id = cursor.getLong(cursor.getColumnIndex(WeatherContract.WeatherEntry._ID));
+            db.update(WeatherContract.WeatherEntry.TABLE_NAME, value,
+                    WeatherContract.WeatherEntry._ID + " = ?",
+                    new String[]{Long.toString(_id)});
+            return true;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns true if every value matches the stored row the cursor is on.  Numbers are
+     * compared by value, since SQLite hands back REAL columns as doubles whatever was put in.
+     */
+    private static boolean isSameRow(Cursor cursor, ContentValues values) {
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            int index = cursor.getColumnIndex(entry.getKey());
+            if (index == -1) {
+                // Not a column we know; let the update complain about it
+                return false;
+            }
+            Object value = entry.getValue();
+            if (value == null || cursor.isNull(index)) {
+                if (value != null || !cursor.isNull(index)) {
+                    return false;
+                }
+            } else if (value instanceof Number) {
+                if (((Number) value).doubleValue() != cursor.getDouble(index)) {
+                    return false;
+                }
+            } else if (!value.toString().equals(cursor.getString(index))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
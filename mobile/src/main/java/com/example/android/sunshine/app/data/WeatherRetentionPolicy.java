@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.R;
+
+/**
+ * How much old weather the database keeps.  There are three limits, and the strictest wins:
+ *
+ * <ul>
+ * <li>{@link #keepDays}: days of past weather to keep before today.</li>
+ * <li>{@link #maxRowsPerLocation}: rows any one location may have, forecast included.</li>
+ * <li>{@link #maxDatabaseBytes}: space the database may fill.</li>
+ * </ul>
+ *
+ * The last two only ever remove past days, oldest first, so the forecast is always kept
+ * whole.  The provider applies the policy when a sync is stored and again at maintenance;
+ * see {@link WeatherContract#METHOD_INGEST} and {@link WeatherContract#METHOD_RUN_MAINTENANCE}.
+ *
+ * With {@link #archiveMonths}, the days the first two limits remove are packed into the
+ * archive rather than lost, and it keeps them for that many months before this one.  The
+ * size limit still just drops days, since it is there to free space.
+ */
+public final class WeatherRetentionPolicy {
+
+    // A forecast is 14 days, so this leaves room for a month of history
+    public static final int DEFAULT_MAX_ROWS_PER_LOCATION = 45;
+    public static final long DEFAULT_MAX_DATABASE_BYTES = 2 * 1024 * 1024;
+    // A packed month is a few hundred bytes, so a year of them costs little
+    public static final int DEFAULT_ARCHIVE_MONTHS = 12;
+
+    public final int keepDays;
+    public final int maxRowsPerLocation;
+    public final long maxDatabaseBytes;
+    // 0 archives nothing
+    public final int archiveMonths;
+
+    /**
+     * A policy that archives nothing.
+     */
+    public WeatherRetentionPolicy(int keepDays, int maxRowsPerLocation, long maxDatabaseBytes) {
+        this(keepDays, maxRowsPerLocation, maxDatabaseBytes, 0);
+    }
+
+    public WeatherRetentionPolicy(int keepDays, int maxRowsPerLocation, long maxDatabaseBytes,
+                                  int archiveMonths) {
+        if (keepDays < 0 || maxRowsPerLocation <= 0 || maxDatabaseBytes <= 0
+                || archiveMonths < 0) {
+            throw new IllegalArgumentException("Invalid retention policy: " + keepDays + " days, "
+                    + maxRowsPerLocation + " rows, " + maxDatabaseBytes + " bytes, "
+                    + archiveMonths + " archived months");
+        }
+        this.keepDays = keepDays;
+        this.maxRowsPerLocation = maxRowsPerLocation;
+        this.maxDatabaseBytes = maxDatabaseBytes;
+        this.archiveMonths = archiveMonths;
+    }
+
+    /**
+     * The policy the user picked in the settings.
+     */
+    public static WeatherRetentionPolicy fromPreferences(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        int keepDays = Integer.parseInt(prefs.getString(
+                context.getString(R.string.pref_history_key),
+                context.getString(R.string.pref_history_none)));
+        return new WeatherRetentionPolicy(keepDays, DEFAULT_MAX_ROWS_PER_LOCATION,
+                DEFAULT_MAX_DATABASE_BYTES, DEFAULT_ARCHIVE_MONTHS);
+    }
+
+    /**
+     * Adds the extras that ask the provider to apply this policy on the given day.
+     *
+     * @param julianToday today, as a Julian day
+     */
+    public void putExtras(Bundle extras, int julianToday) {
+        Time dayTime = new Time();
+        extras.putLong(WeatherContract.KEY_TODAY_DATE, dayTime.setJulianDay(julianToday));
+        extras.putLong(WeatherContract.KEY_RETENTION_DATE,
+                dayTime.setJulianDay(julianToday - 1 - keepDays));
+        extras.putInt(WeatherContract.KEY_MAX_ROWS_PER_LOCATION, maxRowsPerLocation);
+        extras.putLong(WeatherContract.KEY_MAX_DATABASE_BYTES, maxDatabaseBytes);
+        if (archiveMonths > 0) {
+            // The first of the month, archiveMonths before this one
+            dayTime.setJulianDay(julianToday);
+            dayTime.monthDay = 1;
+            dayTime.month -= archiveMonths;
+            extras.putLong(WeatherContract.KEY_ARCHIVE_START_DATE,
+                    WeatherContract.normalizeDate(dayTime.normalize(true)));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return keepDays + " days, " + maxRowsPerLocation + " rows per location, "
+                + maxDatabaseBytes + " bytes, " + archiveMonths + " archived months";
+    }
+}
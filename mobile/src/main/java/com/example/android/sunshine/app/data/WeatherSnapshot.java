@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.Bundle;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherDisplayEntry;
+
+import java.util.HashMap;
+
+/**
+ * A location's forecast as the display table has it, one array per column with a day at
+ * each index, for readers that only want a few values and would rather not walk a cursor.
+ * See {@link WeatherContract#METHOD_GET_FORECAST_SNAPSHOT}.
+ */
+public final class WeatherSnapshot {
+
+    // The columns a snapshot keeps, which are also the keys of its arrays in the Bundle
+    static final String[] COLUMNS = {
+            WeatherDisplayEntry._ID,
+            WeatherDisplayEntry.COLUMN_DATE,
+            WeatherDisplayEntry.COLUMN_WEATHER_ID,
+            WeatherDisplayEntry.COLUMN_ICON_RES,
+            WeatherDisplayEntry.COLUMN_ART_RES,
+            WeatherDisplayEntry.COLUMN_FRIENDLY_DATE,
+            WeatherDisplayEntry.COLUMN_DESCRIPTION,
+            WeatherDisplayEntry.COLUMN_HIGH,
+            WeatherDisplayEntry.COLUMN_LOW
+    };
+    private static final int COL_ID = 0;
+    private static final int COL_DATE = 1;
+    private static final int COL_WEATHER_ID = 2;
+    private static final int COL_ICON_RES = 3;
+    private static final int COL_ART_RES = 4;
+    private static final int COL_FRIENDLY_DATE = 5;
+    private static final int COL_DESCRIPTION = 6;
+    private static final int COL_HIGH = 7;
+    private static final int COL_LOW = 8;
+
+    public final String locationSetting;
+    // The display rows' ids
+    public final long[] ids;
+    public final long[] dates;
+    public final int[] weatherIds;
+    public final int[] iconResources;
+    public final int[] artResources;
+    // Formatted as the display table has them, with the temperatures in the user's units
+    public final String[] friendlyDates;
+    public final String[] descriptions;
+    public final String[] highs;
+    public final String[] lows;
+
+    private WeatherSnapshot(String locationSetting, Bundle days) {
+        this.locationSetting = locationSetting;
+        ids = days.getLongArray(COLUMNS[COL_ID]);
+        dates = days.getLongArray(COLUMNS[COL_DATE]);
+        weatherIds = days.getIntArray(COLUMNS[COL_WEATHER_ID]);
+        iconResources = days.getIntArray(COLUMNS[COL_ICON_RES]);
+        artResources = days.getIntArray(COLUMNS[COL_ART_RES]);
+        friendlyDates = days.getStringArray(COLUMNS[COL_FRIENDLY_DATE]);
+        descriptions = days.getStringArray(COLUMNS[COL_DESCRIPTION]);
+        highs = days.getStringArray(COLUMNS[COL_HIGH]);
+        lows = days.getStringArray(COLUMNS[COL_LOW]);
+    }
+
+    public int getDayCount() {
+        return dates.length;
+    }
+
+    /**
+     * Reads the forecast of each location from the start date on, at most dayCount days of it
+     * (or all of it, for 0).  A location without weather gets a snapshot with no days.
+     */
+    public static HashMap<String, WeatherSnapshot> load(ContentResolver resolver,
+            long startDate, int dayCount, String... locationSettings) {
+        HashMap<String, WeatherSnapshot> snapshots = new HashMap<String, WeatherSnapshot>();
+        Bundle result = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                ? call(resolver, startDate, dayCount, locationSettings)
+                : query(resolver, startDate, dayCount, locationSettings);
+        for (String locationSetting : locationSettings) {
+            Bundle days = result.getBundle(locationSetting);
+            if (days != null) {
+                snapshots.put(locationSetting, new WeatherSnapshot(locationSetting, days));
+            }
+        }
+        return snapshots;
+    }
+
+    // All of the locations in one call
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static Bundle call(ContentResolver resolver, long startDate, int dayCount,
+                               String[] locationSettings) {
+        Bundle extras = new Bundle();
+        extras.putStringArray(WeatherContract.KEY_LOCATION_SETTINGS, locationSettings);
+        extras.putLong(WeatherContract.KEY_START_DATE, startDate);
+        extras.putInt(WeatherContract.KEY_DAY_COUNT, dayCount);
+        return resolver.call(WeatherDisplayEntry.CONTENT_URI,
+                WeatherContract.METHOD_GET_FORECAST_SNAPSHOT, null, extras);
+    }
+
+    // Before Honeycomb there is no call(), so each location gets a query
+    private static Bundle query(ContentResolver resolver, long startDate, int dayCount,
+                                String[] locationSettings) {
+        Bundle result = new Bundle();
+        for (String locationSetting : locationSettings) {
+            Cursor cursor = resolver.query(dayCount > 0
+                            ? WeatherDisplayEntry.buildDisplayLocationWithStartDate(
+                                    locationSetting, startDate, dayCount)
+                            : WeatherDisplayEntry.buildDisplayLocationWithStartDate(
+                                    locationSetting, startDate),
+                    COLUMNS, null, null, WeatherDisplayEntry.COLUMN_DATE + " ASC");
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                result.putBundle(locationSetting, toBundle(cursor));
+            } finally {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copies the rows of a cursor with {@link #COLUMNS} into the arrays of a snapshot.
+     */
+    static Bundle toBundle(Cursor cursor) {
+        int count = cursor.getCount();
+        long[] ids = new long[count];
+        long[] dates = new long[count];
+        int[] weatherIds = new int[count];
+        int[] iconResources = new int[count];
+        int[] artResources = new int[count];
+        String[] friendlyDates = new String[count];
+        String[] descriptions = new String[count];
+        String[] highs = new String[count];
+        String[] lows = new String[count];
+        for (int i = 0; cursor.moveToPosition(i); i++) {
+            ids[i] = cursor.getLong(COL_ID);
+            dates[i] = cursor.getLong(COL_DATE);
+            weatherIds[i] = cursor.getInt(COL_WEATHER_ID);
+            iconResources[i] = cursor.getInt(COL_ICON_RES);
+            artResources[i] = cursor.getInt(COL_ART_RES);
+            friendlyDates[i] = cursor.getString(COL_FRIENDLY_DATE);
+            descriptions[i] = cursor.getString(COL_DESCRIPTION);
+            highs[i] = cursor.getString(COL_HIGH);
+            lows[i] = cursor.getString(COL_LOW);
+        }
+
+        Bundle days = new Bundle();
+        days.putLongArray(COLUMNS[COL_ID], ids);
+        days.putLongArray(COLUMNS[COL_DATE], dates);
+        days.putIntArray(COLUMNS[COL_WEATHER_ID], weatherIds);
+        days.putIntArray(COLUMNS[COL_ICON_RES], iconResources);
+        days.putIntArray(COLUMNS[COL_ART_RES], artResources);
+        days.putStringArray(COLUMNS[COL_FRIENDLY_DATE], friendlyDates);
+        days.putStringArray(COLUMNS[COL_DESCRIPTION], descriptions);
+        days.putStringArray(COLUMNS[COL_HIGH], highs);
+        days.putStringArray(COLUMNS[COL_LOW], lows);
+        return days;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Bundle;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherRetentionPolicy;
+
+/**
+ * Keeps weather.db small: applies the retention policy and gives the space it frees back to
+ * the file system (see {@link WeatherContract#METHOD_RUN_MAINTENANCE}), about once a day.
+ *
+ * From Lollipop on this runs as a job while the device is idle and charging.  Before that
+ * there is no such window to wait for, so it runs at the end of a sync, which is in the
+ * background anyway.  Before Honeycomb the provider can't be called, and the syncs' own
+ * retention delete is all there is.
+ */
+final class DatabaseMaintenance {
+    private static final String LOG_TAG = DatabaseMaintenance.class.getSimpleName();
+
+    static final int JOB_ID = 1;
+    private static final long INTERVAL_MILLIS = 24 * 60 * 60 * 1000;
+
+    private static final String PREFS_NAME = "database_maintenance";
+    private static final String KEY_LAST_RUN = "last_run";
+
+    private DatabaseMaintenance() {
+    }
+
+    /**
+     * Called at the end of every sync, to make sure maintenance comes round.
+     */
+    static void onSyncFinished(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            scheduleJob(context);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            long sinceLast = System.currentTimeMillis()
+                    - getPrefs(context).getLong(KEY_LAST_RUN, 0);
+            if (sinceLast < 0 || sinceLast >= INTERVAL_MILLIS) {
+                run(context);
+            }
+        }
+    }
+
+    /**
+     * Runs maintenance now.  It writes to the database, so keep it off the main thread.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static void run(Context context) {
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        int julianToday = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+        Bundle extras = new Bundle();
+        WeatherRetentionPolicy.fromPreferences(context).putExtras(extras, julianToday);
+
+        Bundle result = context.getContentResolver().call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_RUN_MAINTENANCE, null, extras);
+        getPrefs(context).edit().putLong(KEY_LAST_RUN, System.currentTimeMillis()).commit();
+        Log.d(LOG_TAG, "Deleted " + result.getInt(WeatherContract.KEY_DELETED_COUNT)
+                + " rows, freed " + result.getLong(WeatherContract.KEY_FREED_BYTES) + " bytes");
+    }
+
+    // Scheduling the job again would restart its period, so leave a pending one be
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void scheduleJob(Context context) {
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) {
+                return;
+            }
+        }
+        scheduler.schedule(new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, MaintenanceJobService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPeriodic(INTERVAL_MILLIS)
+                .build());
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+
+/**
+ * In-memory form of an OpenWeatherMap daily forecast response.  Every day is kept as a record
+ * of primitives, so ingesting a response never needs the JSON object tree.
+ */
+final class Forecast {
+    // The "cod" value reported by the server.  Responses without one are treated as OK.
+    int code = HttpURLConnection.HTTP_OK;
+
+    boolean hasCity;
+    String cityName;
+    double cityLatitude;
+    double cityLongitude;
+
+    boolean hasList;
+    final ArrayList<Day> days = new ArrayList<Day>(14);
+
+    /* One element of the "list" array, in server order (the first day is always today) */
+    static final class Day {
+        double pressure;
+        int humidity;
+        double windSpeed;
+        double windDirection;
+
+        double high;
+        double low;
+
+        String description;
+        int weatherId;
+    }
+}
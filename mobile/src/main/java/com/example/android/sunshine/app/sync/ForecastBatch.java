@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fetches the forecasts for several locations at once.  At most
+ * {@link #MAX_PARALLEL_FETCHES} requests are in flight, and every request first waits for the
+ * rate limiter.
+ */
+final class ForecastBatch {
+
+    static final int MAX_PARALLEL_FETCHES = 4;
+
+    /* The outcome of fetching one location: either a response or the error that stopped it */
+    static final class Result {
+        final String locationSetting;
+        final ForecastFetcher.Response response;
+        final Exception error;
+
+        Result(String locationSetting, ForecastFetcher.Response response, Exception error) {
+            this.locationSetting = locationSetting;
+            this.response = response;
+            this.error = error;
+        }
+    }
+
+    private final ForecastFetcher mFetcher;
+    private final RateLimiter mRateLimiter;
+    private final SyncMetrics mMetrics;
+
+    ForecastBatch(ForecastFetcher fetcher, RateLimiter rateLimiter) {
+        this(fetcher, rateLimiter, new SyncMetrics());
+    }
+
+    /**
+     * @param metrics Receives the timings and byte counts of every fetch.
+     */
+    ForecastBatch(ForecastFetcher fetcher, RateLimiter rateLimiter, SyncMetrics metrics) {
+        mFetcher = fetcher;
+        mRateLimiter = rateLimiter;
+        mMetrics = metrics;
+    }
+
+    /**
+     * Fetches every location and waits for all of them.
+     *
+     * @param locations The locations to fetch.
+     * @param validators The validators to send for each location, in the same order.
+     * @return one result for each location, in the same order
+     * @throws InterruptedException if the sync is cancelled while waiting
+     */
+    Result[] fetchAll(List<String> locations, ResponseValidators[] validators)
+            throws InterruptedException {
+        int count = locations.size();
+        Result[] results = new Result[count];
+        if (count == 0) {
+            return results;
+        }
+
+        ExecutorService executor =
+                Executors.newFixedThreadPool(Math.min(count, MAX_PARALLEL_FETCHES));
+        try {
+            List<Future<Result>> futures = new ArrayList<Future<Result>>(count);
+            for (int i = 0; i < count; i++) {
+                futures.add(executor.submit(new FetchTask(locations.get(i), validators[i])));
+            }
+            for (int i = 0; i < count; i++) {
+                try {
+                    results[i] = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    // FetchTask catches the expected failures itself, so this is a bug
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            // Interrupts anything still running if we're bailing out early
+            executor.shutdownNow();
+        }
+    }
+
+    private class FetchTask implements Callable<Result> {
+        private final String mLocationSetting;
+        private final ResponseValidators mValidators;
+
+        FetchTask(String locationSetting, ResponseValidators validators) {
+            mLocationSetting = locationSetting;
+            mValidators = validators;
+        }
+
+        @Override
+        public Result call() throws InterruptedException {
+            mRateLimiter.acquire();
+            try {
+                return new Result(mLocationSetting,
+                        mFetcher.fetch(mLocationSetting, mValidators, mMetrics), null);
+            } catch (IOException | JSONException e) {
+                return new Result(mLocationSetting, null, e);
+            }
+        }
+    }
+}
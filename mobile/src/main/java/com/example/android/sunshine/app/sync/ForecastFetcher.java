@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.net.Uri;
+import android.net.http.HttpResponseCache;
+import android.os.Build;
+import android.util.Log;
+
+import com.example.android.sunshine.app.BuildConfig;
+
+import org.json.JSONException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Requests the daily forecast for one location from OpenWeatherMap.  A fetcher has no state of
+ * its own, so one instance can be used from several threads.
+ *
+ * Requests are made conditional on the validators of the last stored response, and the body
+ * is hashed while it is parsed, so callers can tell when nothing has changed.
+ *
+ * From Honeycomb MR2 on, responses also go through a bounded on-disk HTTP cache, which
+ * survives the process being killed between syncs.  We ask for gzip ourselves rather than let
+ * HttpURLConnection do it transparently, so that we can count the bytes on both sides of it.
+ */
+final class ForecastFetcher {
+    private static final String LOG_TAG = ForecastFetcher.class.getSimpleName();
+
+    // The cache is shared with anything else in the process using HttpURLConnection
+    private static final String HTTP_CACHE_DIR = "http";
+    private static final long HTTP_CACHE_SIZE = 2 * 1024 * 1024; // 2 MiB
+
+    // Construct the URL for the OpenWeatherMap query
+    // Possible parameters are avaiable at OWM's forecast API page, at
+    // http://openweathermap.org/API#forecast
+    private static final String FORECAST_BASE_URL =
+            "http://api.openweathermap.org/data/2.5/forecast/daily?";
+    private static final String QUERY_PARAM = "q";
+    private static final String FORMAT_PARAM = "mode";
+    private static final String UNITS_PARAM = "units";
+    private static final String DAYS_PARAM = "cnt";
+    private static final String APPID_PARAM = "APPID";
+
+    private static final String FORMAT = "json";
+    private static final String UNITS = "metric";
+    private static final int NUM_DAYS = 14;
+
+    /* What came back from one request */
+    static final class Response {
+        final int httpStatus;
+        // true if the server answered 304 Not Modified
+        final boolean notModified;
+        // null if the server sent an empty body (or notModified is set)
+        final Forecast forecast;
+        final ResponseValidators validators;
+        // bytes received, before and after gzip decoding
+        final long wireBytes;
+        final long bodyBytes;
+
+        Response(int httpStatus, boolean notModified, Forecast forecast,
+                 ResponseValidators validators, long wireBytes, long bodyBytes) {
+            this.httpStatus = httpStatus;
+            this.notModified = notModified;
+            this.forecast = forecast;
+            this.validators = validators;
+            this.wireBytes = wireBytes;
+            this.bodyBytes = bodyBytes;
+        }
+    }
+
+    /* Thrown when the server answers with an HTTP error, so callers can tell which one */
+    static final class HttpStatusException extends IOException {
+        final int httpStatus;
+
+        HttpStatusException(int httpStatus) {
+            super("HTTP " + httpStatus);
+            this.httpStatus = httpStatus;
+        }
+    }
+
+    private final String mBaseUrl;
+
+    ForecastFetcher(Context context) {
+        this(context, FORECAST_BASE_URL);
+    }
+
+    /**
+     * Creates a fetcher that sends its requests to another server, such as a local stand-in
+     * used by tests.  The query parameters are the same as for OpenWeatherMap.
+     */
+    ForecastFetcher(Context context, String baseUrl) {
+        mBaseUrl = baseUrl;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR2) {
+            installHttpCache(context);
+        }
+    }
+
+    /**
+     * Installs the on-disk HTTP response cache, unless one is installed already.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR2)
+    private static synchronized void installHttpCache(Context context) {
+        if (HttpResponseCache.getInstalled() != null) {
+            return;
+        }
+        try {
+            File cacheDir = new File(context.getCacheDir(), HTTP_CACHE_DIR);
+            HttpResponseCache.install(cacheDir, HTTP_CACHE_SIZE);
+        } catch (IOException e) {
+            // We can live without the cache
+            Log.w(LOG_TAG, "HTTP response cache installation failed", e);
+        }
+    }
+
+    /**
+     * Fetches the forecast for the location.
+     *
+     * @param locationQuery The location string to send as the OpenWeatherMap query.
+     * @param validators The validators of the response we already have, or
+     *                   {@link ResponseValidators#NONE}.
+     * @param metrics Receives the time spent in each stage of the request, and its bytes.
+     * @throws IOException if the request fails; {@link HttpStatusException} if the server
+     *                     answered with an error status
+     * @throws JSONException if the response isn't a well-formed forecast
+     */
+    Response fetch(String locationQuery, ResponseValidators validators, SyncMetrics metrics)
+            throws IOException, JSONException {
+        Uri builtUri = Uri.parse(mBaseUrl).buildUpon()
+                .appendQueryParameter(QUERY_PARAM, locationQuery)
+                .appendQueryParameter(FORMAT_PARAM, FORMAT)
+                .appendQueryParameter(UNITS_PARAM, UNITS)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(NUM_DAYS))
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build();
+
+        URL url = new URL(builtUri.toString());
+
+        HttpURLConnection urlConnection = null;
+        try {
+            // Create the request to OpenWeatherMap, and open the connection
+            urlConnection = (HttpURLConnection) url.openConnection();
+            urlConnection.setRequestMethod("GET");
+            // Setting this ourselves turns off transparent decompression; see below
+            urlConnection.setRequestProperty("Accept-Encoding", "gzip");
+            validators.applyTo(urlConnection);
+            long start = System.nanoTime();
+            urlConnection.connect();
+            long connected = System.nanoTime();
+            metrics.add(SyncMetrics.STAGE_CONNECT, connected - start);
+
+            // Waits for the response headers
+            int responseCode = urlConnection.getResponseCode();
+            long firstByte = System.nanoTime();
+            metrics.add(SyncMetrics.STAGE_FIRST_BYTE, firstByte - connected);
+
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // What we have is still current.  There's no body to read.
+                // (The HTTP cache hands conditional requests we make ourselves straight through.)
+                return new Response(responseCode, true, null, validators, 0, 0);
+            }
+            if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                // There's no forecast to read; getInputStream would only throw anyway
+                throw new HttpStatusException(responseCode);
+            }
+
+            InputStream inputStream = urlConnection.getInputStream();
+            if (inputStream == null) {
+                return new Response(responseCode, false, null, ResponseValidators.NONE, 0, 0);
+            }
+            CountingInputStream wireStream = new CountingInputStream(inputStream);
+            CountingInputStream bodyStream = wireStream;
+            if ("gzip".equalsIgnoreCase(urlConnection.getContentEncoding())) {
+                bodyStream = new CountingInputStream(new GZIPInputStream(wireStream));
+            }
+            inputStream = new BufferedInputStream(bodyStream);
+
+            // Peek at the first byte so an empty body can be told apart from a bad one
+            inputStream.mark(1);
+            if (inputStream.read() == -1) {
+                metrics.add(SyncMetrics.STAGE_BODY_READ, wireStream.getReadNanos());
+                metrics.addBytes(wireStream.getCount(), 0);
+                return new Response(responseCode, false, null, ResponseValidators.NONE,
+                        wireStream.getCount(), 0);
+            }
+            inputStream.reset();
+
+            // Hash the body as it goes past the parser, so we don't have to keep a copy of it
+            MessageDigest digest = newDigest();
+            DigestInputStream digestStream = new DigestInputStream(inputStream, digest);
+            Forecast forecast = readForecast(digestStream);
+            drain(digestStream);
+
+            // The parser pulls the body in as it goes, so whatever time wasn't spent waiting
+            // on the network was spent parsing
+            long readNanos = wireStream.getReadNanos();
+            metrics.add(SyncMetrics.STAGE_BODY_READ, readNanos);
+            metrics.add(SyncMetrics.STAGE_PARSE, System.nanoTime() - firstByte - readNanos);
+            metrics.addBytes(wireStream.getCount(), bodyStream.getCount());
+
+            Log.d(LOG_TAG, "Read " + bodyStream.getCount() + " bytes, "
+                    + wireStream.getCount() + " on the wire");
+            return new Response(responseCode, false, forecast, new ResponseValidators(
+                    urlConnection.getHeaderField("ETag"),
+                    urlConnection.getHeaderField("Last-Modified"),
+                    toHex(digest.digest())),
+                    wireStream.getCount(), bodyStream.getCount());
+        } finally {
+            if (urlConnection != null) {
+                // Disconnecting also closes the response stream
+                urlConnection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Reads the forecast out of the response body.  On Honeycomb and higher the body is streamed
+     * through {@link ForecastParser#parse(InputStream)}; older devices don't have JsonReader, so
+     * there we still collect the body into a String and use JSONObject.
+     */
+    private static Forecast readForecast(InputStream inputStream)
+            throws IOException, JSONException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return ForecastParser.parse(inputStream);
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+        StringBuilder buffer = new StringBuilder();
+        char[] chunk = new char[1024];
+        int read;
+        while ((read = reader.read(chunk)) != -1) {
+            buffer.append(chunk, 0, read);
+        }
+        return ForecastParser.parse(buffer.toString());
+    }
+
+    // The parser can stop before trailing whitespace; the hash has to cover the whole body.
+    private static void drain(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[256];
+        while (inputStream.read(buffer) != -1) {
+            // keep reading
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device is required to provide SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
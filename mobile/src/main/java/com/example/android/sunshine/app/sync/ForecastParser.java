@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+
+/**
+ * Turns an OpenWeatherMap daily forecast response into a {@link Forecast}.
+ *
+ * There are two ways in.  {@link #parse(InputStream)} pulls tokens straight off the network
+ * stream, so the body is never held as a String and no JSON object tree is built.  JsonReader
+ * only exists from Honeycomb on, so {@link #parse(String)} keeps the original JSONObject path
+ * for older devices (and as a baseline for benchmarks).
+ */
+final class ForecastParser {
+
+    // Location information
+    static final String OWM_CITY = "city";
+    static final String OWM_CITY_NAME = "name";
+    static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    static final String OWM_LATITUDE = "lat";
+    static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    static final String OWM_LIST = "list";
+
+    static final String OWM_PRESSURE = "pressure";
+    static final String OWM_HUMIDITY = "humidity";
+    static final String OWM_WINDSPEED = "speed";
+    static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    static final String OWM_TEMPERATURE = "temp";
+    static final String OWM_MAX = "max";
+    static final String OWM_MIN = "min";
+
+    static final String OWM_WEATHER = "weather";
+    static final String OWM_DESCRIPTION = "main";
+    static final String OWM_WEATHER_ID = "id";
+
+    static final String OWM_MESSAGE_CODE = "cod";
+
+    // Bits used to make sure every day carried all of the values we store
+    private static final int FIELD_PRESSURE = 1;
+    private static final int FIELD_HUMIDITY = 1 << 1;
+    private static final int FIELD_WINDSPEED = 1 << 2;
+    private static final int FIELD_WIND_DIRECTION = 1 << 3;
+    private static final int FIELD_MAX = 1 << 4;
+    private static final int FIELD_MIN = 1 << 5;
+    private static final int FIELD_DESCRIPTION = 1 << 6;
+    private static final int FIELD_WEATHER_ID = 1 << 7;
+    private static final int FIELD_ALL = (1 << 8) - 1;
+
+    private ForecastParser() {
+    }
+
+    /**
+     * Streams the forecast out of the given response body.  The stream is not closed.
+     *
+     * @throws JSONException if the body isn't a well-formed forecast
+     * @throws IOException if reading from the stream fails
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static Forecast parse(InputStream in) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            Forecast forecast = new Forecast();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name) && reader.peek() != JsonToken.NULL) {
+                    forecast.code = reader.nextInt();
+                } else if (OWM_CITY.equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    readCity(reader, forecast);
+                } else if (OWM_LIST.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    readList(reader, forecast);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            checkComplete(forecast);
+            return forecast;
+        } catch (MalformedJsonException | EOFException e) {
+            // A body that ends early or isn't JSON is a server problem, not a network one.
+            throw asJsonException(e);
+        } catch (IllegalStateException | NumberFormatException e) {
+            // Thrown by JsonReader when a value doesn't have the type we expect.
+            throw asJsonException(e);
+        }
+    }
+
+    /**
+     * Parses a complete response body with {@link JSONObject}.
+     *
+     * @throws JSONException if the body isn't a well-formed forecast
+     */
+    static Forecast parse(String forecastJsonStr) throws JSONException {
+        JSONObject forecastJson = new JSONObject(forecastJsonStr);
+        Forecast forecast = new Forecast();
+
+        if (forecastJson.has(OWM_MESSAGE_CODE)) {
+            forecast.code = forecastJson.getInt(OWM_MESSAGE_CODE);
+        }
+
+        if (forecastJson.has(OWM_CITY)) {
+            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
+            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
+            forecast.cityName = cityJson.getString(OWM_CITY_NAME);
+            forecast.cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
+            forecast.cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
+            forecast.hasCity = true;
+        }
+
+        if (forecastJson.has(OWM_LIST)) {
+            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
+            forecast.days.ensureCapacity(weatherArray.length());
+            for (int i = 0; i < weatherArray.length(); i++) {
+                JSONObject dayForecast = weatherArray.getJSONObject(i);
+                Forecast.Day day = new Forecast.Day();
+
+                day.pressure = dayForecast.getDouble(OWM_PRESSURE);
+                day.humidity = dayForecast.getInt(OWM_HUMIDITY);
+                day.windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
+                day.windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
+
+                // Description is in a child array called "weather", which is 1 element long.
+                // That element also contains a weather code.
+                JSONObject weatherObject =
+                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
+                day.description = weatherObject.getString(OWM_DESCRIPTION);
+                day.weatherId = weatherObject.getInt(OWM_WEATHER_ID);
+
+                // Temperatures are in a child object called "temp".  Try not to name variables
+                // "temp" when working with temperature.  It confuses everybody.
+                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
+                day.high = temperatureObject.getDouble(OWM_MAX);
+                day.low = temperatureObject.getDouble(OWM_MIN);
+
+                forecast.days.add(day);
+            }
+            forecast.hasList = true;
+        }
+
+        checkComplete(forecast);
+        return forecast;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readCity(JsonReader reader, Forecast forecast)
+            throws IOException, JSONException {
+        boolean hasName = false;
+        boolean hasCoord = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_NAME.equals(name)) {
+                forecast.cityName = reader.nextString();
+                hasName = true;
+            } else if (OWM_COORD.equals(name)) {
+                boolean hasLatitude = false;
+                boolean hasLongitude = false;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        forecast.cityLatitude = reader.nextDouble();
+                        hasLatitude = true;
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        forecast.cityLongitude = reader.nextDouble();
+                        hasLongitude = true;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                hasCoord = hasLatitude && hasLongitude;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (!hasName || !hasCoord) {
+            throw new JSONException("Incomplete " + OWM_CITY + " object");
+        }
+        forecast.hasCity = true;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readList(JsonReader reader, Forecast forecast)
+            throws IOException, JSONException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            forecast.days.add(readDay(reader));
+        }
+        reader.endArray();
+        forecast.hasList = true;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static Forecast.Day readDay(JsonReader reader) throws IOException, JSONException {
+        Forecast.Day day = new Forecast.Day();
+        int fields = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_PRESSURE.equals(name)) {
+                day.pressure = reader.nextDouble();
+                fields |= FIELD_PRESSURE;
+            } else if (OWM_HUMIDITY.equals(name)) {
+                // JSONObject.getInt() truncates fractional values, so we do the same
+                day.humidity = (int) reader.nextDouble();
+                fields |= FIELD_HUMIDITY;
+            } else if (OWM_WINDSPEED.equals(name)) {
+                day.windSpeed = reader.nextDouble();
+                fields |= FIELD_WINDSPEED;
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                day.windDirection = reader.nextDouble();
+                fields |= FIELD_WIND_DIRECTION;
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String temperatureName = reader.nextName();
+                    if (OWM_MAX.equals(temperatureName)) {
+                        day.high = reader.nextDouble();
+                        fields |= FIELD_MAX;
+                    } else if (OWM_MIN.equals(temperatureName)) {
+                        day.low = reader.nextDouble();
+                        fields |= FIELD_MIN;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                // Only the first element of the "weather" array is used.
+                reader.beginArray();
+                if (reader.hasNext()) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String weatherName = reader.nextName();
+                        if (OWM_DESCRIPTION.equals(weatherName)) {
+                            day.description = reader.nextString();
+                            fields |= FIELD_DESCRIPTION;
+                        } else if (OWM_WEATHER_ID.equals(weatherName)) {
+                            day.weatherId = reader.nextInt();
+                            fields |= FIELD_WEATHER_ID;
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (fields != FIELD_ALL) {
+            throw new JSONException("Incomplete forecast day, fields=" + Integer.toBinaryString(fields));
+        }
+        return day;
+    }
+
+    // A successful response has to carry both the city and the list, just like the JSONObject
+    // path which looked both of them up unconditionally.
+    private static void checkComplete(Forecast forecast) throws JSONException {
+        if (forecast.code == HttpURLConnection.HTTP_OK
+                && (!forecast.hasCity || !forecast.hasList)) {
+            throw new JSONException("Forecast is missing the " +
+                    (forecast.hasCity ? OWM_LIST : OWM_CITY) + " value");
+        }
+    }
+
+    private static JSONException asJsonException(Exception e) {
+        JSONException jsonException = new JSONException(String.valueOf(e.getMessage()));
+        jsonException.initCause(e);
+        return jsonException;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.Utility;
+
+/**
+ * Today's forecast for a location, as it was just written to the database, formatted the way
+ * the display table has it.  It is immutable, so it can be handed to all of the post-sync
+ * consumers at once instead of each of them querying the provider for the same row.
+ */
+final class ForecastSnapshot {
+    final String locationSetting;
+    // normalized like the weather table's date column
+    final long date;
+    final int weatherId;
+    final int iconResource;
+    final int artResource;
+    // Formatted for the user's locale and units, as the display table formats them
+    final String description;
+    final String high;
+    final String low;
+
+    private ForecastSnapshot(String locationSetting, long date, int weatherId, int iconResource,
+                             int artResource, String description, String high, String low) {
+        this.locationSetting = locationSetting;
+        this.date = date;
+        this.weatherId = weatherId;
+        this.iconResource = iconResource;
+        this.artResource = artResource;
+        this.description = description;
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * Takes today's values out of a forecast that was stored starting at the given julian day,
+     * and formats them once for every consumer.  The forecast must have at least one day.
+     */
+    static ForecastSnapshot fromForecast(Context context, String locationSetting,
+                                         Forecast forecast, int julianStartDay) {
+        Forecast.Day today = forecast.days.get(0);
+        // the same UTC date the sync adapter stored the row with
+        long date = new Time().setJulianDay(julianStartDay);
+        return new ForecastSnapshot(locationSetting, date, today.weatherId,
+                Utility.getIconResourceForWeatherCondition(today.weatherId),
+                Utility.getArtResourceForWeatherCondition(today.weatherId),
+                Utility.getStringForWeatherCondition(context, today.weatherId),
+                Utility.formatTemperature(context, today.high),
+                Utility.formatTemperature(context, today.low));
+    }
+}
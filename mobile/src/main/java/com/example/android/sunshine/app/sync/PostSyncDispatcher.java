@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Hands a freshly synced {@link ForecastSnapshot} to everything that shows it (widgets, Muzei,
+ * the notification, the wearable) at the same time, so a slow consumer doesn't hold up the
+ * others.  Each consumer gets the same time limit; one that runs over is interrupted and the
+ * sync moves on.
+ */
+final class PostSyncDispatcher {
+    private static final String LOG_TAG = PostSyncDispatcher.class.getSimpleName();
+
+    /* Something that wants to know about the new forecast */
+    abstract static class Consumer {
+        final String name;
+
+        Consumer(String name) {
+            this.name = name;
+        }
+
+        abstract void onForecast(ForecastSnapshot snapshot) throws Exception;
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final long mTimeoutMillis;
+
+    /**
+     * @param threads The number of consumers that can run at once.
+     * @param timeoutMillis How long each consumer may take.
+     */
+    PostSyncDispatcher(int threads, long timeoutMillis) {
+        mTimeoutMillis = timeoutMillis;
+        // Syncs are hours apart, so don't keep the threads around between them
+        mExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs every consumer on the snapshot, and returns once they have all finished or run out
+     * of time.
+     *
+     * @param metrics Receives the time each consumer took, as a stage of its own.
+     * @return the number of consumers that finished successfully
+     */
+    int dispatch(final ForecastSnapshot snapshot, List<Consumer> consumers,
+                 final SyncMetrics metrics) {
+        long start = SystemClock.elapsedRealtime();
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(consumers.size());
+        for (final Consumer consumer : consumers) {
+            futures.add(mExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    long start = System.nanoTime();
+                    try {
+                        consumer.onForecast(snapshot);
+                    } finally {
+                        // Includes consumers that failed, or were cut off
+                        metrics.add(SyncMetrics.STAGE_POST_SYNC_PREFIX + consumer.name,
+                                System.nanoTime() - start);
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        int succeeded = 0;
+        for (int i = 0; i < futures.size(); i++) {
+            Future<Void> future = futures.get(i);
+            String name = consumers.get(i).name;
+            // Everything started together, so each deadline counts from the start
+            long remaining = start + mTimeoutMillis - SystemClock.elapsedRealtime();
+            try {
+                future.get(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+                succeeded++;
+            } catch (TimeoutException e) {
+                Log.w(LOG_TAG, name + " took longer than " + mTimeoutMillis + "ms");
+                future.cancel(true);
+            } catch (ExecutionException e) {
+                Log.e(LOG_TAG, name + " failed", e.getCause());
+            } catch (InterruptedException e) {
+                // The sync was cancelled; let the rest carry on without us
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        Log.d(LOG_TAG, succeeded + " of " + consumers.size() + " consumers done in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+        return succeeded;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+
+/**
+ * A token bucket: up to {@code burst} requests go through at once, after that requests are
+ * spaced out to {@code permitsPerSecond}.
+ *
+ * OpenWeatherMap limits calls per API key, not per connection, so there is one shared limiter
+ * for each key; see {@link #forApiKey(String)}.
+ */
+final class RateLimiter {
+
+    // The free OpenWeatherMap plan allows 60 calls a minute
+    private static final double OWM_PERMITS_PER_SECOND = 1.0;
+    private static final int OWM_BURST = 10;
+
+    // For servers that don't limit us, like the local stand-in the tests use
+    static final RateLimiter UNLIMITED = new RateLimiter(0, 0);
+
+    private static final HashMap<String, RateLimiter> sLimiters =
+            new HashMap<String, RateLimiter>();
+
+    private final double mPermitsPerMilli;
+    private final int mBurst;
+    private double mTokens;
+    private long mLastRefill;
+
+    RateLimiter(double permitsPerSecond, int burst) {
+        mPermitsPerMilli = permitsPerSecond / 1000;
+        mBurst = burst;
+        mTokens = burst;
+        mLastRefill = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Returns the limiter shared by everything calling OpenWeatherMap with the given key.
+     */
+    static RateLimiter forApiKey(String apiKey) {
+        synchronized (sLimiters) {
+            RateLimiter limiter = sLimiters.get(apiKey);
+            if (limiter == null) {
+                limiter = new RateLimiter(OWM_PERMITS_PER_SECOND, OWM_BURST);
+                sLimiters.put(apiKey, limiter);
+            }
+            return limiter;
+        }
+    }
+
+    /**
+     * Blocks until a request may be made.
+     */
+    void acquire() throws InterruptedException {
+        if (this == UNLIMITED) {
+            return;
+        }
+        long waitMillis = reserve();
+        if (waitMillis > 0) {
+            Thread.sleep(waitMillis);
+        }
+    }
+
+    // Takes a token, going into debt if there isn't one, and returns how long to wait for it
+    private synchronized long reserve() {
+        long now = SystemClock.elapsedRealtime();
+        mTokens = Math.min(mBurst, mTokens + (now - mLastRefill) * mPermitsPerMilli);
+        mLastRefill = now;
+        mTokens -= 1;
+        if (mTokens >= 0) {
+            return 0;
+        }
+        return (long) Math.ceil(-mTokens / mPermitsPerMilli);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.net.HttpURLConnection;
+
+/**
+ * The validators of the last forecast response we stored for a location: the ETag and
+ * Last-Modified headers, and a hash of the body for servers that send neither.
+ *
+ * Dates in the weather table are derived from the day the response was received, so the
+ * same body means something different tomorrow.  Validators are therefore only good for the
+ * julian day they were saved on.
+ */
+final class ResponseValidators {
+    private static final String PREFS_NAME = "sync_validators";
+
+    private static final String KEY_ETAG = "etag:";
+    private static final String KEY_LAST_MODIFIED = "last_modified:";
+    private static final String KEY_BODY_HASH = "body_hash:";
+    private static final String KEY_JULIAN_DAY = "julian_day:";
+
+    // Used when there is nothing stored, or what is stored can't be trusted
+    static final ResponseValidators NONE = new ResponseValidators(null, null, null);
+
+    final String etag;
+    final String lastModified;
+    final String bodyHash;
+
+    ResponseValidators(String etag, String lastModified, String bodyHash) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.bodyHash = bodyHash;
+    }
+
+    /**
+     * Loads the validators saved for the location on the given julian day.
+     *
+     * @return the saved validators, or {@link #NONE} if they were saved on another day
+     */
+    static ResponseValidators load(Context context, String locationSetting, int julianDay) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (prefs.getInt(KEY_JULIAN_DAY + locationSetting, -1) != julianDay) {
+            return NONE;
+        }
+        return new ResponseValidators(
+                prefs.getString(KEY_ETAG + locationSetting, null),
+                prefs.getString(KEY_LAST_MODIFIED + locationSetting, null),
+                prefs.getString(KEY_BODY_HASH + locationSetting, null));
+    }
+
+    /**
+     * Saves these validators for the location.  Like setLocationStatus, this commits
+     * synchronously, so it must not be called from the UI thread.
+     */
+    void save(Context context, String locationSetting, int julianDay) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putString(KEY_ETAG + locationSetting, etag)
+                .putString(KEY_LAST_MODIFIED + locationSetting, lastModified)
+                .putString(KEY_BODY_HASH + locationSetting, bodyHash)
+                .putInt(KEY_JULIAN_DAY + locationSetting, julianDay)
+                .commit();
+    }
+
+    /**
+     * Turns the request into a conditional one, if we have anything to validate against.
+     */
+    void applyTo(HttpURLConnection urlConnection) {
+        if (etag != null) {
+            urlConnection.setRequestProperty("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            urlConnection.setRequestProperty("If-Modified-Since", lastModified);
+        }
+    }
+
+    boolean isSameBody(String otherBodyHash) {
+        return bodyHash != null && bodyHash.equals(otherBodyHash);
+    }
+}
@@ -3,6 +3,7 @@ package com.example.android.sunshine.app.sync;
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
@@ -34,6 +35,7 @@ import com.example.android.sunshine.app.BuildConfig;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherRetentionPolicy;
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
 import com.google.android.gms.common.ConnectionResult;
@@ -44,20 +46,16 @@ import com.google.android.gms.wearable.PutDataMapRequest;
 import com.google.android.gms.wearable.PutDataRequest;
 import com.google.android.gms.wearable.Wearable;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static android.graphics.BitmapFactory.decodeResource;
 
@@ -74,18 +72,13 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     private static final int WEATHER_NOTIFICATION_ID = 3004;
 
 
-    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
-    };
+    // Each post-sync consumer gets this long before the sync moves on without it
+    private static final long POST_SYNC_TIMEOUT_MILLIS = 15 * 1000;
+    // Leaves the notification time to fall back to the bundled art
+    private static final long LARGE_ICON_TIMEOUT_MILLIS = 10 * 1000;
 
-    // these indices must match the projection
-    private static final int INDEX_WEATHER_ID = 0;
-    private static final int INDEX_MAX_TEMP = 1;
-    private static final int INDEX_MIN_TEMP = 2;
-    private static final int INDEX_SHORT_DESC = 3;
+    private static final PostSyncDispatcher sPostSyncDispatcher =
+            new PostSyncDispatcher(4, POST_SYNC_TIMEOUT_MILLIS);
 
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID,  LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID})
@@ -118,321 +111,401 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
             .addApi(Wearable.API)
             .build();
 
+    // Set by tests to fetch from a local stand-in instead of OpenWeatherMap; see
+    // setBaseUrlForTesting
+    private static volatile String sBaseUrlOverride;
+
     public SunshineSyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
     }
 
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
+        boolean manualSync = extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false);
+        if (!SyncScheduler.beginSync()) {
+            Log.d(LOG_TAG, "Sync already in progress");
+            return;
+        }
+        try {
+            if (!manualSync && SyncScheduler.isRecentlySynced(getContext())) {
+                // A manual sync just got everything a periodic one would
+                Log.d(LOG_TAG, "Skipping sync, last one was moments ago");
+                return;
+            }
+            performSync(manualSync, syncResult);
+        } finally {
+            SyncScheduler.endSync();
+        }
+    }
+
+    private void performSync(boolean manualSync, SyncResult syncResult) {
         Log.d(LOG_TAG, "Starting sync");
+        SyncMetrics metrics = new SyncMetrics();
         mGoogleApiClient.connect();
-        String locationQuery = Utility.getPreferredLocation(getContext());
-
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
-
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
-
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
+        // The preferred location always comes first
+        List<String> locations = Utility.getSyncLocations(getContext());
+        String preferredLocation = locations.get(0);
+
+        // OWM returns daily forecasts based upon the local time of the city that is being
+        // asked for, which means that we need to know the GMT offset to translate this data
+        // properly.
+
+        // Since this data is also sent in-order and the first day is always the
+        // current day, we're going to take advantage of that to get a nice
+        // normalized UTC date for all of our weather.
+
+        Time dayTime = new Time();
+        dayTime.setToNow();
+
+        // we start at the day returned by local time. Otherwise this is a mess.
+        int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+
+        // Only ask the server whether anything changed if we still hold what it would be
+        // compared against.  Manual syncs (a new location, or the first run) always fetch.
+        ResponseValidators[] validators = new ResponseValidators[locations.size()];
+        for (int i = 0; i < validators.length; i++) {
+            String location = locations.get(i);
+            validators[i] = !manualSync && hasForecast(location)
+                    ? ResponseValidators.load(getContext(), location, julianStartDay)
+                    : ResponseValidators.NONE;
+        }
 
+        // A stand-in server doesn't need OpenWeatherMap's rate limit
+        String baseUrl = sBaseUrlOverride;
+        ForecastBatch batch = baseUrl == null
+                ? new ForecastBatch(new ForecastFetcher(getContext()),
+                        RateLimiter.forApiKey(BuildConfig.OPEN_WEATHER_MAP_API_KEY), metrics)
+                : new ForecastBatch(new ForecastFetcher(getContext(), baseUrl),
+                        RateLimiter.UNLIMITED, metrics);
+        ForecastBatch.Result[] results;
         try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
-
-            Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
-                    .appendQueryParameter(QUERY_PARAM, locationQuery)
-                    .appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
-                    .build();
-
-            URL url = new URL(builtUri.toString());
-
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
-            }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
-            }
+            results = batch.fetchAll(locations, validators);
+        } catch (InterruptedException e) {
+            // The sync was cancelled
+            Thread.currentThread().interrupt();
+            metrics.finish();
+            recordSyncHistory(metrics, 0, 0, LOCATION_STATUS_UNKNOWN);
+            return;
+        }
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
+        // On Honeycomb and higher the whole sync goes to the provider in one call(), which
+        // finds the locations itself.  Older devices add each location first and refer to
+        // it by id.
+        boolean singleCall = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+
+        // Collect the rows of every location that changed, so they go in together
+        ArrayList<ContentValues> locationValues = new ArrayList<ContentValues>();
+        ArrayList<ContentValues> weatherValues = new ArrayList<ContentValues>();
+        ArrayList<Integer> storedIndexes = new ArrayList<Integer>();
+        @LocationStatus int preferredStatus = LOCATION_STATUS_UNKNOWN;
+        long preferredLocationId = -1;
+        for (int i = 0; i < results.length; i++) {
+            ForecastBatch.Result result = results[i];
+            // Tells the sync framework how this went, so it can back off on its own
+            if (result.error instanceof JSONException) {
+                syncResult.stats.numParseExceptions++;
+            } else if (result.error != null) {
+                syncResult.stats.numIoExceptions++;
             }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Error ", e);
-            // If the code didn't successfully get the weather data, there's no point in attempting
-            // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+            @LocationStatus int status = getLocationStatus(result);
+            boolean changed = status == LOCATION_STATUS_OK
+                    && !result.response.notModified
+                    // A server without validators can still send us the same body again
+                    && !validators[i].isSameBody(result.response.validators.bodyHash);
+            if (changed) {
+                Forecast forecast = result.response.forecast;
+                ContentValues locationKey = new ContentValues(1);
+                if (singleCall) {
+                    locationValues.add(createLocationValues(result.locationSetting,
+                            forecast.cityName, forecast.cityLatitude, forecast.cityLongitude));
+                    locationKey.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                            result.locationSetting);
+                } else {
+                    long start = System.nanoTime();
+                    long locationId = addLocation(result.locationSetting, forecast.cityName,
+                            forecast.cityLatitude, forecast.cityLongitude);
+                    metrics.add(SyncMetrics.STAGE_LOCATION_LOOKUP, System.nanoTime() - start);
+                    locationKey.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
+                    if (i == 0) {
+                        preferredLocationId = locationId;
+                    }
+                }
+                addWeatherValues(weatherValues, forecast, locationKey, julianStartDay);
+                storedIndexes.add(i);
+            } else {
+                Log.d(LOG_TAG, result.locationSetting + ": nothing to store, status " + status);
             }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
+            if (i == 0) {
+                preferredStatus = status;
+            }
+        }
+
+        // add to database.  Only rows that differ from what we have are written.
+        int changedCount = 0;
+        boolean preferredChanged = false;
+        if (weatherValues.size() > 0) {
+            ContentValues[] cvArray = weatherValues.toArray(new ContentValues[weatherValues.size()]);
+            // delete old data so we don't build up an endless history
+            WeatherRetentionPolicy retention = WeatherRetentionPolicy.fromPreferences(getContext());
+
+            long start = System.nanoTime();
+            if (singleCall) {
+                // One transaction and one change notification for the whole sync.  call()
+                // also tells us which rows changed.
+                Bundle changes = ingest(locationValues, cvArray, retention, julianStartDay);
+                changedCount = changes.getInt(WeatherContract.KEY_CHANGED_COUNT);
+                syncResult.stats.numDeletes += changes.getInt(WeatherContract.KEY_DELETED_COUNT);
+                // The preferred location is the first one stored, if it was stored at all
+                if (storedIndexes.get(0) == 0) {
+                    preferredLocationId =
+                            changes.getLongArray(WeatherContract.KEY_LOCATION_IDS)[0];
                 }
+                for (long locationId
+                        : changes.getLongArray(WeatherContract.KEY_CHANGED_LOCATION_IDS)) {
+                    preferredChanged |= locationId == preferredLocationId;
+                }
+                metrics.add(SyncMetrics.STAGE_INGEST, System.nanoTime() - start);
+            } else {
+                changedCount = getContext().getContentResolver().bulkInsert(
+                        WeatherContract.WeatherEntry.buildWeatherDeltaUpsertUri(), cvArray);
+                preferredChanged = preferredLocationId != -1 && changedCount > 0;
+                long inserted = System.nanoTime();
+                metrics.add(SyncMetrics.STAGE_BULK_INSERT, inserted - start);
+
+                // Without call() only the days limit can be kept to
+                dayTime = new Time();
+                long retentionDate = dayTime.setJulianDay(julianStartDay - 1 - retention.keepDays);
+                syncResult.stats.numDeletes += getContext().getContentResolver().delete(
+                        WeatherContract.WeatherEntry.CONTENT_URI,
+                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
+                        new String[] {Long.toString(retentionDate)});
+                metrics.add(SyncMetrics.STAGE_RETENTION_DELETE, System.nanoTime() - inserted);
             }
+            // Every row the upsert wrote, whether it was new or replaced an older forecast
+            syncResult.stats.numInserts += changedCount;
+        }
+        for (int i : storedIndexes) {
+            results[i].response.validators.save(getContext(), locations.get(i), julianStartDay);
         }
-        return;
+
+        // Everything outside the app only shows the preferred location, so only tell it
+        // when the preferred location's forecast actually changed
+        if (preferredChanged) {
+            dispatchPostSync(ForecastSnapshot.fromForecast(getContext(), preferredLocation,
+                    results[0].response.forecast, julianStartDay), metrics);
+        }
+        metrics.finish();
+        Log.d(LOG_TAG, "Sync Complete. " + changedCount + " of " + weatherValues.size()
+                + " rows changed for " + storedIndexes.size() + " of " + locations.size()
+                + " locations");
+        Log.d(LOG_TAG, "Sync took " + metrics);
+        setLocationStatus(getContext(), preferredStatus);
+        recordSyncHistory(metrics, getHttpStatus(results[0]), changedCount, preferredStatus);
+
+        // Retry sooner if the server let us down, otherwise pace ourselves to the weather.
+        // An invalid location isn't going to get better by asking again sooner.
+        if (preferredStatus == LOCATION_STATUS_SERVER_DOWN
+                || preferredStatus == LOCATION_STATUS_SERVER_INVALID) {
+            SyncScheduler.onSyncFailed(getContext());
+        } else {
+            SyncScheduler.onSyncSucceeded(getContext(), changedCount > 0);
+        }
+        DatabaseMaintenance.onSyncFinished(getContext());
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
-     *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * Tells everything outside the app about the new forecast, all at once.  Returns when they
+     * are all done, or have run out of time.
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
-
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
-
-        // These are the names of the JSON objects that need to be extracted.
-
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
-
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
-
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
-
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
-
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
-
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
-
-        final String OWM_MESSAGE_CODE = "cod";
-
-        try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-
-            // do we have an error?
-            if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
-                }
+    private void dispatchPostSync(ForecastSnapshot snapshot, SyncMetrics metrics) {
+        List<PostSyncDispatcher.Consumer> consumers = new ArrayList<PostSyncDispatcher.Consumer>(4);
+        consumers.add(new PostSyncDispatcher.Consumer("widgets") {
+            @Override
+            void onForecast(ForecastSnapshot snapshot) {
+                updateWidgets();
             }
+        });
+        consumers.add(new PostSyncDispatcher.Consumer("muzei") {
+            @Override
+            void onForecast(ForecastSnapshot snapshot) {
+                updateMuzei();
+            }
+        });
+        consumers.add(new PostSyncDispatcher.Consumer("notification") {
+            @Override
+            void onForecast(ForecastSnapshot snapshot) {
+                notifyWeather(snapshot);
+            }
+        });
+        consumers.add(new PostSyncDispatcher.Consumer("wearable") {
+            @Override
+            void onForecast(ForecastSnapshot snapshot) {
+                sendToWearable(snapshot);
+            }
+        });
+        sPostSyncDispatcher.dispatch(snapshot, consumers, metrics);
+    }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
-
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
-
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
-
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
-
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
-
-            Time dayTime = new Time();
-            dayTime.setToNow();
-
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
-
-            // now we work exclusively in UTC
-            dayTime = new Time();
-
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
-
-                double high;
-                double low;
-
-                String description;
-                int weatherId;
-
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
-
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
-
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
-
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
+    /**
+     * Adds a row for this sync to the sync history.
+     */
+    private void recordSyncHistory(SyncMetrics metrics, int httpStatus, int rowsChanged,
+                                   @LocationStatus int outcome) {
+        ContentValues values = new ContentValues(9);
+        values.put(WeatherContract.SyncHistoryEntry.COLUMN_START_TIME, metrics.getStartTime());
+        values.put(WeatherContract.SyncHistoryEntry.COLUMN_DURATION,
+                Math.round(metrics.getTotalMillis()));
+        values.put(WeatherContract.SyncHistoryEntry.COLUMN_WIRE_BYTES, metrics.getWireBytes());
+        values.put(WeatherContract.SyncHistoryEntry.COLUMN_BODY_BYTES, metrics.getBodyBytes());
+        values.put(WeatherContract.SyncHistoryEntry.COLUMN_HTTP_STATUS, httpStatus);
+        values.put(WeatherContract.SyncHistoryEntry.COLUMN_ROWS_CHANGED, rowsChanged);
+        values.put(WeatherContract.SyncHistoryEntry.COLUMN_OUTCOME, outcome);
+        values.put(WeatherContract.SyncHistoryEntry.COLUMN_ART_WIRE_BYTES,
+                metrics.getArtWireBytes());
+        values.put(WeatherContract.SyncHistoryEntry.COLUMN_ART_BODY_BYTES,
+                metrics.getArtBodyBytes());
+        getContext().getContentResolver().insert(
+                WeatherContract.SyncHistoryEntry.CONTENT_URI, values);
+    }
 
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
+    /**
+     * The HTTP status a fetch got back, or 0 if it never got that far.
+     */
+    private static int getHttpStatus(ForecastBatch.Result result) {
+        if (result.response != null) {
+            return result.response.httpStatus;
+        } else if (result.error instanceof ForecastFetcher.HttpStatusException) {
+            return ((ForecastFetcher.HttpStatusException) result.error).httpStatus;
+        }
+        return 0;
+    }
 
-                ContentValues weatherValues = new ContentValues();
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private Bundle ingest(ArrayList<ContentValues> locationValues, ContentValues[] cvArray,
+                          WeatherRetentionPolicy retention, int julianStartDay) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.KEY_LOCATIONS,
+                locationValues.toArray(new ContentValues[locationValues.size()]));
+        extras.putParcelableArray(WeatherContract.KEY_VALUES, cvArray);
+        retention.putExtras(extras, julianStartDay);
+        return getContext().getContentResolver().call(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_INGEST, null, extras);
+    }
 
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+    /**
+     * Works out the location status a fetch result should be reported as.
+     */
+    @LocationStatus
+    private int getLocationStatus(ForecastBatch.Result result) {
+        if (result.error instanceof JSONException) {
+            Log.e(LOG_TAG, result.error.getMessage(), result.error);
+            return LOCATION_STATUS_SERVER_INVALID;
+        } else if (result.error != null) {
+            Log.e(LOG_TAG, "Error ", result.error);
+            // If the code didn't successfully get the weather data, there's no point in
+            // attempting to parse it.
+            return LOCATION_STATUS_SERVER_DOWN;
+        }
 
-                cVVector.add(weatherValues);
-            }
+        if (result.response.notModified) {
+            return LOCATION_STATUS_OK;
+        }
+        if (result.response.forecast == null) {
+            // Stream was empty.  No point in parsing.
+            return LOCATION_STATUS_SERVER_DOWN;
+        }
 
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
+        // do we have an error?
+        switch (result.response.forecast.code) {
+            case HttpURLConnection.HTTP_OK:
+                return LOCATION_STATUS_OK;
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                return LOCATION_STATUS_INVALID;
+            default:
+                return LOCATION_STATUS_SERVER_DOWN;
+        }
+    }
 
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
+    /**
+     * Checks whether the database has today's forecast for the location.  If it doesn't, a
+     * "not modified" answer from the server would leave us with nothing to show.
+     */
+    private boolean hasForecast(String locationSetting) {
+        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                locationSetting, System.currentTimeMillis());
+        Cursor cursor = getContext().getContentResolver().query(weatherUri,
+                new String[]{WeatherContract.WeatherEntry.TABLE_NAME + "." +
+                        WeatherContract.WeatherEntry._ID}, null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        boolean hasForecast = cursor.moveToFirst();
+        cursor.close();
+        return hasForecast;
+    }
 
-                updateWidgets();
-                updateMuzei();
-                notifyWeather();
-            }
-            sendToWearable();
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
-
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+    /**
+     * Turns the parsed forecast into weather rows.
+     *
+     * @param locationKey The column that ties each row to its location: either the location
+     *                    id, or the location setting for the provider to look up.
+     */
+    private void addWeatherValues(ArrayList<ContentValues> weatherValues, Forecast forecast,
+                                  ContentValues locationKey, int julianStartDay) {
+        // now we work exclusively in UTC
+        Time dayTime = new Time();
+
+        int dayCount = forecast.days.size();
+        weatherValues.ensureCapacity(weatherValues.size() + dayCount);
+        for (int i = 0; i < dayCount; i++) {
+            Forecast.Day day = forecast.days.get(i);
+
+            // Cheating to convert this to UTC time, which is what we want anyhow
+            long dateTime = dayTime.setJulianDay(julianStartDay + i);
+
+            ContentValues values = new ContentValues(10);
+
+            values.putAll(locationKey);
+            values.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
+            values.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, day.humidity);
+            values.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, day.pressure);
+            values.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, day.windSpeed);
+            values.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, day.windDirection);
+            values.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, day.high);
+            values.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, day.low);
+            values.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, day.description);
+            values.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, day.weatherId);
+
+            weatherValues.add(values);
         }
     }
 
-    private void sendToWearable() {
-        String locationQuery = Utility.getPreferredLocation(getContext());
-
-        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
-
-        // we'll query our contentProvider, as always
-        Cursor cursor = getContext().getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
-
-        if (cursor.moveToFirst()) {
-            int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-            double high = cursor.getDouble(INDEX_MAX_TEMP);
-            double low = cursor.getDouble(INDEX_MIN_TEMP);
-
-            final String DATA_ITEM_PATH = "/sunshine";
-            final String DATA_ITEM_LOW_TEMPERATURE_KEY = "low-temperature";
-            final String DATA_ITEM_HIGH_TEMPERATURE_KEY = "high-temperature";
-            final String DATA_ITEM_WEATHER_ICON_KEY = "weather-icon";
-            final String DATA_ITEM_TIME_KEY = "not-using-this";
-
-            PutDataMapRequest putDataMapReq = PutDataMapRequest.create(DATA_ITEM_PATH).setUrgent();
-            putDataMapReq.getDataMap().putString(DATA_ITEM_LOW_TEMPERATURE_KEY,
-                    Utility.formatTemperature(getContext(), (int) low));
-            putDataMapReq.getDataMap().putString(DATA_ITEM_HIGH_TEMPERATURE_KEY,
-                    Utility.formatTemperature(getContext(), (int) high));
-            putDataMapReq.getDataMap().putInt(DATA_ITEM_WEATHER_ICON_KEY, weatherId);
-            putDataMapReq.getDataMap().putDouble(DATA_ITEM_TIME_KEY, System.currentTimeMillis());
-
-            PutDataRequest putDataReq = putDataMapReq.asPutDataRequest();
-            Wearable.DataApi.putDataItem(mGoogleApiClient, putDataReq)
-                    .setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
-                        @Override
-                        public void onResult(@NonNull DataApi.DataItemResult dataItemResult) {
-                            if (dataItemResult.getStatus().isSuccess()) {
-                                Log.d(LOG_TAG, "Successfully sent to wearable!");
-                            } else {
-                                Log.d(LOG_TAG, "Failure sending to wearable..");
-                            }
+    private void sendToWearable(ForecastSnapshot snapshot) {
+        final String DATA_ITEM_PATH = "/sunshine";
+        final String DATA_ITEM_LOW_TEMPERATURE_KEY = "low-temperature";
+        final String DATA_ITEM_HIGH_TEMPERATURE_KEY = "high-temperature";
+        final String DATA_ITEM_WEATHER_ICON_KEY = "weather-icon";
+        final String DATA_ITEM_TIME_KEY = "not-using-this";
+
+        PutDataMapRequest putDataMapReq = PutDataMapRequest.create(DATA_ITEM_PATH).setUrgent();
+        putDataMapReq.getDataMap().putString(DATA_ITEM_LOW_TEMPERATURE_KEY, snapshot.low);
+        putDataMapReq.getDataMap().putString(DATA_ITEM_HIGH_TEMPERATURE_KEY, snapshot.high);
+        putDataMapReq.getDataMap().putInt(DATA_ITEM_WEATHER_ICON_KEY, snapshot.weatherId);
+        putDataMapReq.getDataMap().putDouble(DATA_ITEM_TIME_KEY, System.currentTimeMillis());
+
+        PutDataRequest putDataReq = putDataMapReq.asPutDataRequest();
+        Wearable.DataApi.putDataItem(mGoogleApiClient, putDataReq)
+                .setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
+                    @Override
+                    public void onResult(@NonNull DataApi.DataItemResult dataItemResult) {
+                        if (dataItemResult.getStatus().isSuccess()) {
+                            Log.d(LOG_TAG, "Successfully sent to wearable!");
+                        } else {
+                            Log.d(LOG_TAG, "Failure sending to wearable..");
                         }
-                    });
-            Log.d(LOG_TAG, "Sending request: " + putDataMapReq);
-        }
-        cursor.close();
+                    }
+                });
+        Log.d(LOG_TAG, "Sending request: " + putDataMapReq);
     }
 
     private void updateWidgets() {
@@ -453,7 +526,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         }
     }
 
-    private void notifyWeather() {
+    private void notifyWeather(ForecastSnapshot snapshot) {
         Context context = getContext();
         //checking the last update and notify if it' the first of the day
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
@@ -468,98 +541,106 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
 
             if (System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS) {
                 // Last sync was more than 1 day ago, let's send a notification with the weather.
-                String locationQuery = Utility.getPreferredLocation(context);
-
-                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
-
-                // we'll query our contentProvider, as always
-                Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
-
-                if (cursor.moveToFirst()) {
-                    int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-                    double high = cursor.getDouble(INDEX_MAX_TEMP);
-                    double low = cursor.getDouble(INDEX_MIN_TEMP);
-                    String desc = cursor.getString(INDEX_SHORT_DESC);
-
-                    int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
-                    Resources resources = context.getResources();
-                    int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
-                    String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherId);
-
-                    // On Honeycomb and higher devices, we can retrieve the size of the large icon
-                    // Prior to that, we use a fixed size
-                    @SuppressLint("InlinedApi")
-                    int largeIconWidth = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-                    @SuppressLint("InlinedApi")
-                    int largeIconHeight = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-
-                    // Retrieve the large icon
-                    Bitmap largeIcon;
-                    try {
-                        largeIcon = Glide.with(context)
-                                .load(artUrl)
-                                .asBitmap()
-                                .error(artResourceId)
-                                .fitCenter()
-                                .into(largeIconWidth, largeIconHeight).get();
-                    } catch (InterruptedException | ExecutionException e) {
-                        Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
-                        largeIcon = decodeResource(resources, artResourceId);
-                    }
-                    String title = context.getString(R.string.app_name);
-
-                    // Define the text of the forecast.
-                    String contentText = String.format(context.getString(R.string.format_notification),
-                            desc,
-                            Utility.formatTemperature(context, high),
-                            Utility.formatTemperature(context, low));
-
-                    // NotificationCompatBuilder is a very convenient way to build backward-compatible
-                    // notifications.  Just throw in some data.
-                    NotificationCompat.Builder mBuilder =
-                            new NotificationCompat.Builder(getContext())
-                                    .setColor(resources.getColor(R.color.primary_light))
-                                    .setSmallIcon(iconId)
-                                    .setLargeIcon(largeIcon)
-                                    .setContentTitle(title)
-                                    .setContentText(contentText);
-
-                    // Make something interesting happen when the user clicks on the notification.
-                    // In this case, opening the app is sufficient.
-                    Intent resultIntent = new Intent(context, MainActivity.class);
-
-                    // The stack builder object will contain an artificial back stack for the
-                    // started Activity.
-                    // This ensures that navigating backward from the Activity leads out of
-                    // your application to the Home screen.
-                    TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
-                    stackBuilder.addNextIntent(resultIntent);
-                    PendingIntent resultPendingIntent =
-                            stackBuilder.getPendingIntent(
-                                    0,
-                                    PendingIntent.FLAG_UPDATE_CURRENT
-                            );
-                    mBuilder.setContentIntent(resultPendingIntent);
-
-                    NotificationManager mNotificationManager =
-                            (NotificationManager) getContext().getSystemService(Context.NOTIFICATION_SERVICE);
-                    // WEATHER_NOTIFICATION_ID allows you to update the notification later on.
-                    mNotificationManager.notify(WEATHER_NOTIFICATION_ID, mBuilder.build());
-
-                    //refreshing last sync
-                    SharedPreferences.Editor editor = prefs.edit();
-                    editor.putLong(lastNotificationKey, System.currentTimeMillis());
-                    editor.commit();
+                // The snapshot already has today's values formatted as the app shows them, so
+                // there's nothing to ask the provider for
+                int iconId = snapshot.iconResource;
+                int artResourceId = snapshot.artResource;
+                String desc = snapshot.description;
+                String high = snapshot.high;
+                String low = snapshot.low;
+
+                Resources resources = context.getResources();
+                String artUrl = Utility.getArtUrlForWeatherCondition(context, snapshot.weatherId);
+
+                // On Honeycomb and higher devices, we can retrieve the size of the large icon
+                // Prior to that, we use a fixed size
+                @SuppressLint("InlinedApi")
+                int largeIconWidth = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                        ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
+                        : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+                @SuppressLint("InlinedApi")
+                int largeIconHeight = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                        ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
+                        : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+
+                // Retrieve the large icon.  Don't wait for it for longer than the dispatcher
+                // gives us; the bundled art will do if the download is slow.
+                Bitmap largeIcon;
+                try {
+                    largeIcon = Glide.with(context)
+                            .load(artUrl)
+                            .asBitmap()
+                            .error(artResourceId)
+                            .fitCenter()
+                            .into(largeIconWidth, largeIconHeight)
+                            .get(LARGE_ICON_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                    Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
+                    largeIcon = decodeResource(resources, artResourceId);
                 }
-                cursor.close();
+                String title = context.getString(R.string.app_name);
+
+                // Define the text of the forecast.
+                String contentText = String.format(context.getString(R.string.format_notification),
+                        desc,
+                        high,
+                        low);
+
+                // NotificationCompatBuilder is a very convenient way to build backward-compatible
+                // notifications.  Just throw in some data.
+                NotificationCompat.Builder mBuilder =
+                        new NotificationCompat.Builder(getContext())
+                                .setColor(resources.getColor(R.color.primary_light))
+                                .setSmallIcon(iconId)
+                                .setLargeIcon(largeIcon)
+                                .setContentTitle(title)
+                                .setContentText(contentText);
+
+                // Make something interesting happen when the user clicks on the notification.
+                // In this case, opening the app is sufficient.
+                Intent resultIntent = new Intent(context, MainActivity.class);
+
+                // The stack builder object will contain an artificial back stack for the
+                // started Activity.
+                // This ensures that navigating backward from the Activity leads out of
+                // your application to the Home screen.
+                TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
+                stackBuilder.addNextIntent(resultIntent);
+                PendingIntent resultPendingIntent =
+                        stackBuilder.getPendingIntent(
+                                0,
+                                PendingIntent.FLAG_UPDATE_CURRENT
+                        );
+                mBuilder.setContentIntent(resultPendingIntent);
+
+                NotificationManager mNotificationManager =
+                        (NotificationManager) getContext().getSystemService(Context.NOTIFICATION_SERVICE);
+                // WEATHER_NOTIFICATION_ID allows you to update the notification later on.
+                mNotificationManager.notify(WEATHER_NOTIFICATION_ID, mBuilder.build());
+
+                //refreshing last sync
+                SharedPreferences.Editor editor = prefs.edit();
+                editor.putLong(lastNotificationKey, System.currentTimeMillis());
+                editor.commit();
             }
         }
     }
 
+    /**
+     * Creates the location row for a location setting.
+     */
+    private static ContentValues createLocationValues(String locationSetting, String cityName,
+                                                      double lat, double lon) {
+        // Add the data, along with the corresponding name of the data type,
+        // so the content provider knows what kind of value is being inserted.
+        ContentValues locationValues = new ContentValues(4);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+        return locationValues;
+    }
+
     /**
      * Helper method to handle insertion of a new location in the weather database.
      *
@@ -585,15 +666,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
             locationId = locationCursor.getLong(locationIdIndex);
         } else {
             // Now that the content provider is set up, inserting rows of data is pretty simple.
-            // First create a ContentValues object to hold the data you want to insert.
-            ContentValues locationValues = new ContentValues();
-
-            // Then add the data, along with the corresponding name of the data type,
-            // so the content provider knows what kind of value is being inserted.
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+            ContentValues locationValues = createLocationValues(locationSetting, cityName, lat, lon);
 
             // Finally, insert location data into the database.
             Uri insertedUri = getContext().getContentResolver().insert(
@@ -634,11 +707,19 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
      * @param context The context used to access the account service
      */
     public static void syncImmediately(Context context) {
+        Account account = getSyncAccount(context);
+        String authority = context.getString(R.string.content_authority);
+        // A sync that hasn't started yet reads the settings when it does, so it will do
+        // everything this one would
+        if (account != null && ContentResolver.isSyncPending(account, authority)
+                && !ContentResolver.isSyncActive(account, authority)) {
+            Log.d(SunshineSyncAdapter.class.getSimpleName(), "Sync already pending");
+            return;
+        }
         Bundle bundle = new Bundle();
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
-        ContentResolver.requestSync(getSyncAccount(context),
-                context.getString(R.string.content_authority), bundle);
+        ContentResolver.requestSync(account, authority, bundle);
     }
 
     /**
@@ -684,7 +765,8 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         /*
          * Since we've created an account
          */
-        SunshineSyncAdapter.configurePeriodicSync(context, SYNC_INTERVAL, SYNC_FLEXTIME);
+        int syncInterval = SyncScheduler.getInterval(context);
+        SunshineSyncAdapter.configurePeriodicSync(context, syncInterval, syncInterval / 3);
 
         /*
          * Without calling setSyncAutomatically, our periodic sync will not be enabled.
@@ -697,6 +779,14 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         syncImmediately(context);
     }
 
+    /**
+     * Sends every forecast request to the given server instead of OpenWeatherMap, or back to
+     * OpenWeatherMap if baseUrl is null.  Only meant for tests.
+     */
+    static void setBaseUrlForTesting(String baseUrl) {
+        sBaseUrlOverride = baseUrl;
+    }
+
     public static void initializeSyncAdapter(Context context) {
         getSyncAccount(context);
     }
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Where the time of one sync went, stage by stage, and how many bytes it moved.
+ *
+ * Locations are fetched in parallel, so the fetch stages (connect, first byte, body read and
+ * parse) add up the time of every location and can come to more than the sync took.  Each
+ * post-sync consumer gets a stage of its own, named {@code post_sync:<consumer>}.
+ *
+ * The metrics of the last finished sync in the process are kept, see {@link #getLast()}.
+ * Weather art downloaded while a sync runs, such as the notification's, counts toward that
+ * sync, see {@link #addArtBytes(long, long)}.
+ */
+public final class SyncMetrics {
+
+    // Opening the connection to the server
+    public static final String STAGE_CONNECT = "connect";
+    // From the request going out to the response headers coming back
+    public static final String STAGE_FIRST_BYTE = "first_byte";
+    // Waiting for the body to come off the network
+    public static final String STAGE_BODY_READ = "body_read";
+    // Parsing and hashing the body, not counting the waits for it
+    public static final String STAGE_PARSE = "parse";
+    // Finding or adding the location rows
+    public static final String STAGE_LOCATION_LOOKUP = "location_lookup";
+    public static final String STAGE_BULK_INSERT = "bulk_insert";
+    public static final String STAGE_RETENTION_DELETE = "retention_delete";
+    // The location lookup, bulk insert and retention delete together, where the provider does
+    // them in one transaction
+    public static final String STAGE_INGEST = "ingest";
+    public static final String STAGE_POST_SYNC_PREFIX = "post_sync:";
+
+    private static volatile SyncMetrics sLast;
+    // The sync running now, if there is one
+    private static volatile SyncMetrics sCurrent;
+
+    /* The time spent in one stage, and how many times it ran */
+    private static final class Stage {
+        long nanos;
+        int count;
+    }
+
+    private final long mStartTime = System.currentTimeMillis();
+    private final long mStartNanos = System.nanoTime();
+    private final LinkedHashMap<String, Stage> mStages = new LinkedHashMap<String, Stage>();
+    private long mWireBytes;
+    private long mBodyBytes;
+    private long mArtWireBytes;
+    private long mArtBodyBytes;
+    private long mTotalNanos = -1;
+
+    SyncMetrics() {
+        sCurrent = this;
+    }
+
+    /**
+     * Returns the metrics of the last sync to finish in this process, or null if there hasn't
+     * been one.
+     */
+    public static SyncMetrics getLast() {
+        return sLast;
+    }
+
+    /**
+     * Adds time to a stage.  Safe to call from any thread.
+     */
+    synchronized void add(String stage, long nanos) {
+        Stage entry = mStages.get(stage);
+        if (entry == null) {
+            entry = new Stage();
+            mStages.put(stage, entry);
+        }
+        entry.nanos += nanos;
+        entry.count++;
+    }
+
+    synchronized void addBytes(long wireBytes, long bodyBytes) {
+        mWireBytes += wireBytes;
+        mBodyBytes += bodyBytes;
+    }
+
+    /**
+     * Counts a weather art download toward the sync running now.  Art downloaded when no sync
+     * is running, for the app's own screens, isn't part of any sync and isn't counted.
+     * Safe to call from any thread.
+     */
+    public static void addArtBytes(long wireBytes, long bodyBytes) {
+        SyncMetrics current = sCurrent;
+        if (current != null) {
+            synchronized (current) {
+                current.mArtWireBytes += wireBytes;
+                current.mArtBodyBytes += bodyBytes;
+            }
+        }
+    }
+
+    /**
+     * Marks the sync as over and makes these the metrics {@link #getLast()} returns.
+     */
+    void finish() {
+        synchronized (this) {
+            mTotalNanos = System.nanoTime() - mStartNanos;
+        }
+        sLast = this;
+        if (sCurrent == this) {
+            sCurrent = null;
+        }
+    }
+
+    /**
+     * The wall clock time the sync started at.
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    public synchronized double getTotalMillis() {
+        return (mTotalNanos == -1 ? System.nanoTime() - mStartNanos : mTotalNanos) / 1e6;
+    }
+
+    /**
+     * The stages that ran, in the order they first ran.
+     */
+    public synchronized List<String> getStages() {
+        return new ArrayList<String>(mStages.keySet());
+    }
+
+    /**
+     * The time spent in a stage, or 0 if it didn't run.
+     */
+    public synchronized double getMillis(String stage) {
+        Stage entry = mStages.get(stage);
+        return entry == null ? 0 : entry.nanos / 1e6;
+    }
+
+    /**
+     * How many times a stage ran; the fetch stages run once for every location.
+     */
+    public synchronized int getCount(String stage) {
+        Stage entry = mStages.get(stage);
+        return entry == null ? 0 : entry.count;
+    }
+
+    /**
+     * Bytes received from the server, as they came over the network.
+     */
+    public synchronized long getWireBytes() {
+        return mWireBytes;
+    }
+
+    /**
+     * Bytes received from the server, once decompressed.
+     */
+    public synchronized long getBodyBytes() {
+        return mBodyBytes;
+    }
+
+    /**
+     * Bytes of weather art downloaded during the sync, as they came over the network.
+     */
+    public synchronized long getArtWireBytes() {
+        return mArtWireBytes;
+    }
+
+    /**
+     * Bytes of weather art downloaded during the sync, once decompressed.
+     */
+    public synchronized long getArtBodyBytes() {
+        return mArtBodyBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder(String.format(Locale.US,
+                "%.1fms, %d bytes (%d on the wire), art %d bytes (%d on the wire)",
+                getTotalMillis(), mBodyBytes, mWireBytes, mArtBodyBytes, mArtWireBytes));
+        for (Map.Entry<String, Stage> entry : mStages.entrySet()) {
+            builder.append(String.format(Locale.US, ", %s %.1fms",
+                    entry.getKey(), entry.getValue().nanos / 1e6));
+            if (entry.getValue().count > 1) {
+                builder.append(" x").append(entry.getValue().count);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Decides how often the periodic sync runs, and keeps syncs from overlapping.
+ *
+ * <ul>
+ * <li>After a failed sync the next one comes sooner, at {@link #FIRST_RETRY_INTERVAL},
+ * doubling with every further failure up to {@link #MAX_INTERVAL}, with some jitter so
+ * that devices that failed together don't retry together.</li>
+ * <li>After a successful sync the interval follows the weather: it halves when the forecast
+ * changed (down to {@link #MIN_INTERVAL}) and grows by half when it didn't (up to
+ * {@link #MAX_INTERVAL}).</li>
+ * <li>Only one sync runs at a time in the process, and a periodic sync that comes right
+ * after another sync is skipped.</li>
+ * </ul>
+ *
+ * All intervals are in seconds, like the ones ContentResolver takes.
+ */
+final class SyncScheduler {
+    private static final String LOG_TAG = SyncScheduler.class.getSimpleName();
+
+    static final int MIN_INTERVAL = 60 * 60; // 1 hour
+    static final int MAX_INTERVAL = 12 * 60 * 60; // 12 hours
+    static final int FIRST_RETRY_INTERVAL = 15 * 60; // 15 minutes
+    private static final double JITTER = 0.2;
+
+    // A periodic sync this soon after the last good one has nothing new to find
+    private static final long MIN_SPACING_MILLIS = 10 * 60 * 1000;
+
+    private static final String PREFS_NAME = "sync_scheduler";
+    private static final String KEY_INTERVAL = "interval";
+    private static final String KEY_FAILURES = "failures";
+    private static final String KEY_LAST_SUCCESS = "last_success";
+
+    private static final Object sLock = new Object();
+    private static boolean sSyncInFlight;
+    private static final Random sRandom = new Random();
+
+    private SyncScheduler() {
+    }
+
+    /**
+     * Claims the right to sync.  Returns false if another sync is already running, in which
+     * case the caller should drop its sync; otherwise {@link #endSync()} must follow.
+     */
+    static boolean beginSync() {
+        synchronized (sLock) {
+            if (sSyncInFlight) {
+                return false;
+            }
+            sSyncInFlight = true;
+            return true;
+        }
+    }
+
+    static void endSync() {
+        synchronized (sLock) {
+            sSyncInFlight = false;
+        }
+    }
+
+    /**
+     * Returns true if the last successful sync was only moments ago.
+     */
+    static boolean isRecentlySynced(Context context) {
+        long lastSuccess = getPrefs(context).getLong(KEY_LAST_SUCCESS, 0);
+        long sinceLast = System.currentTimeMillis() - lastSuccess;
+        return sinceLast >= 0 && sinceLast < MIN_SPACING_MILLIS;
+    }
+
+    /**
+     * Returns the periodic sync interval currently in use.
+     */
+    static int getInterval(Context context) {
+        return getPrefs(context).getInt(KEY_INTERVAL, SunshineSyncAdapter.SYNC_INTERVAL);
+    }
+
+    /**
+     * Records a successful sync and adapts the interval to how much the forecast changed.
+     * Returns true if the interval moved, and the periodic sync was rescheduled.
+     */
+    static boolean onSyncSucceeded(Context context, boolean forecastChanged) {
+        SharedPreferences prefs = getPrefs(context);
+        int interval = prefs.getInt(KEY_INTERVAL, SunshineSyncAdapter.SYNC_INTERVAL);
+        if (prefs.getInt(KEY_FAILURES, 0) > 0) {
+            // Back from a failure; start again from the usual interval
+            interval = SunshineSyncAdapter.SYNC_INTERVAL;
+        } else if (forecastChanged) {
+            interval = Math.max(MIN_INTERVAL, interval / 2);
+        } else {
+            interval = Math.min(MAX_INTERVAL, interval + interval / 2);
+        }
+        prefs.edit()
+                .putInt(KEY_FAILURES, 0)
+                .putLong(KEY_LAST_SUCCESS, System.currentTimeMillis())
+                .commit();
+        return setInterval(context, interval);
+    }
+
+    /**
+     * Records a failed sync and brings the next one forward.
+     */
+    static void onSyncFailed(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        int failures = prefs.getInt(KEY_FAILURES, 0) + 1;
+        prefs.edit().putInt(KEY_FAILURES, failures).commit();
+        setInterval(context, getBackoffInterval(failures, sRandom.nextDouble()));
+    }
+
+    /**
+     * The interval to wait after the given number of failures in a row.
+     *
+     * @param random A number in [0, 1) that picks the jitter.
+     */
+    static int getBackoffInterval(int failures, double random) {
+        // Cap the shift, the interval tops out long before it would overflow
+        long backoff = (long) FIRST_RETRY_INTERVAL << Math.min(failures - 1, 16);
+        backoff = Math.min(backoff, MAX_INTERVAL);
+        double jitter = 1 + JITTER * (2 * random - 1);
+        return (int) Math.min(MAX_INTERVAL, Math.max(FIRST_RETRY_INTERVAL / 2, backoff * jitter));
+    }
+
+    // Only reschedules when the interval actually moves, so an unchanged interval doesn't
+    // reset the periodic sync's clock
+    private static boolean setInterval(Context context, int interval) {
+        SharedPreferences prefs = getPrefs(context);
+        if (prefs.getInt(KEY_INTERVAL, SunshineSyncAdapter.SYNC_INTERVAL) == interval) {
+            return false;
+        }
+        prefs.edit().putInt(KEY_INTERVAL, interval).commit();
+        Log.d(LOG_TAG, "Syncing every " + interval / 60 + " minutes");
+        SunshineSyncAdapter.configurePeriodicSync(context, interval, interval / 3);
+        return true;
+    }
+
+    /**
+     * Forgets the interval, the failures and the last sync, as if nothing had synced yet.
+     * Only meant for tests.
+     */
+    static void resetForTesting(Context context) {
+        getPrefs(context).edit().clear().commit();
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}